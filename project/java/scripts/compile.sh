@@ -1,8 +1,7 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
-# Indicate the path of the java compiler to use
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# Indicate the path of the java compiler to use: see jdk.sh
+. $DIR/jdk.sh
 
 # compile the java program
 
@@ -27,11 +26,11 @@ export PATH=$JAVA_HOME/bin:$PATH
 # FOR WELL
 HOSTNAME=localhost
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+javac -cp $DIR/../lib/postgresql-9.4.1208.jre6.jar -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $HOSTNAME $DB_NAME $PGPORT $USER
+java -cp $DIR/../classes:$DIR/../lib/postgresql-9.4.1208.jre6.jar Messenger $HOSTNAME $DB_NAME $PGPORT $USER
 
 
 
@@ -0,0 +1,21 @@
+#!/bin/bash
+# Picks the JDK for the other scripts; source it, don't run it. The sources
+# need JDK 8 or newer (CompletableFuture in the async store). Set JAVA_HOME
+# to pick another one, otherwise the java and javac on the PATH are used.
+#
+#    . $DIR/jdk.sh [minimum major version, default 8]
+if [ -n "$JAVA_HOME" ]; then
+  export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+JDK_MIN=${1:-8}
+# "javac 1.8.0_292" is 8, "javac 17.0.2" is 17
+JDK_VERSION=$(javac -version 2>&1 | sed -n 's/^javac \([0-9][0-9.]*\).*/\1/p')
+JDK_MAJOR=${JDK_VERSION%%.*}
+if [ "$JDK_MAJOR" = "1" ]; then
+  JDK_MAJOR=$(echo $JDK_VERSION | cut -d. -f2)
+fi
+if [ -z "$JDK_MAJOR" ] || [ "$JDK_MAJOR" -lt "$JDK_MIN" ]; then
+  echo "JDK $JDK_MIN or newer needed, found javac ${JDK_VERSION:-none}; set JAVA_HOME" >&2
+  exit 1
+fi
@@ -0,0 +1,41 @@
+#!/bin/bash
+# Fast-start launcher: compiles only when a source changed, connects to the
+# database in the background (-Dmessenger.faststart) and runs from an AppCDS
+# archive so the JVM and driver classes are mapped instead of loaded.
+# Needs JDK 13 or newer for -XX:ArchiveClassesAtExit.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+. $DIR/jdk.sh 13
+CLASSES=$DIR/../classes
+DIST=$DIR/../dist
+LIBPATH=$DIR/../lib/postgresql-9.4.1208.jre6.jar
+# CDS only archives classes loaded from jars, not from directories
+JAR=$DIST/messenger.jar
+ARCHIVE=$DIST/messenger.jsa
+HOSTNAME=${HOSTNAME:-localhost}
+
+# compile the java program only if a source is newer than its class
+if [ ! -f $JAR ] || [ -n "$(find $DIR/../src -name '*.java' -newer $JAR)" ]; then
+  mkdir -p $DIST
+  javac -cp $DIR/../lib/postgresql-9.4.1208.jre6.jar -d $CLASSES $DIR/../src/*.java && jar cf $JAR -C $CLASSES . || exit 1
+  # classes changed, the old archive no longer matches
+  rm -f $ARCHIVE
+fi
+
+# an archive recorded with another classpath (e.g. the old pg73 driver) is not used
+if [ $DIR/run.sh -nt $ARCHIVE ]; then
+  rm -f $ARCHIVE
+fi
+
+# the first run records the classes it loaded, later runs map them
+if [ -f $ARCHIVE ]; then
+  CDS="-XX:SharedArchiveFile=$ARCHIVE"
+else
+  CDS="-XX:ArchiveClassesAtExit=$ARCHIVE"
+fi
+
+# short interactive sessions never reach C2, so skip it
+exec java $CDS -XX:TieredStopAtLevel=1 \
+     -Dmessenger.faststart=true \
+     -Dmessenger.launch.millis=$(date +%s%3N) \
+     ${MESSENGER_OPTS} \
+     -cp $JAR:$LIBPATH Messenger $HOSTNAME $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,14 @@
+#!/bin/bash
+# Compiles the sources and the tests and runs the tests; no database needed.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+. $DIR/jdk.sh
+LIBPATH=$DIR/../lib/postgresql-9.4.1208.jre6.jar
+OUT=$DIR/../test-classes
+
+mkdir -p $OUT
+javac -cp $LIBPATH -d $OUT $DIR/../src/*.java $DIR/../test/*.java || exit 1
+for TEST in $DIR/../test/*Test.java; do
+  NAME=$(basename $TEST .java)
+  echo -n "$NAME: "
+  java -cp $OUT:$LIBPATH $NAME || exit 1
+done
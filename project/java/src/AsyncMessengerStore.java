@@ -0,0 +1,248 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking front end to the read operations of a MessengerStore. Every
+ * call returns at once with a CompletableFuture and runs on a small pool of
+ * worker threads, each with its own store (for Postgres, its own
+ * connection), so independent queries issued together overlap instead of
+ * queueing behind one another on the menu's connection. Threads, and
+ * their connections, are only started when calls are waiting for them.
+ *
+ * A call that has not finished after -Dmessenger.async.timeout
+ * milliseconds (default 5000, 0 for none) completes with a
+ * TimeoutException. Cancelling a future, or timing out, skips the call if
+ * it has not started; if it is running on a store that is Connected, the
+ * statement is cancelled on the server as well. A call that fails because
+ * its connection broke is run once more on a new connection, as all calls
+ * here are reads.
+ */
+public class AsyncMessengerStore {
+
+   /** A store operation run on a worker thread. */
+   public interface Query<T> {
+      T run(MessengerStore store) throws SQLException;
+   }//end Query
+
+   /** A worker's store with a database connection of its own. */
+   public interface Connected {
+      /** Stops the statement the connection is running, if any. */
+      void cancelQuery();
+
+      /** @return false if a new connection could not be opened */
+      boolean reconnect();
+   }//end Connected
+
+   private final ExecutorService executor;
+   private final ScheduledExecutorService timer;
+   private final ThreadLocal<MessengerStore> stores;
+   private final long timeoutMillis;
+
+   /**
+    * @param connector opens the store a worker thread uses; called once
+    *                  per thread, may return the same thread-safe store
+    * @param threads the number of worker threads
+    * @param timeoutMillis the time after which a call fails, 0 for none
+    */
+   public AsyncMessengerStore(final Callable<MessengerStore> connector, int threads, long timeoutMillis){
+      this.executor = Executors.newFixedThreadPool(threads, daemons("messenger-async"));
+      this.timer = Executors.newSingleThreadScheduledExecutor(daemons("messenger-async-timeout"));
+      this.timeoutMillis = timeoutMillis;
+      this.stores = new ThreadLocal<MessengerStore>(){
+         protected MessengerStore initialValue(){
+            try {
+               return connector.call();
+            } catch (Exception e){
+               throw new CompletionException(e);
+            }
+         }
+      };
+   }
+
+   public static AsyncMessengerStore fromSystemProperties(Callable<MessengerStore> connector){
+      // two connections per client at most, besides the menu's: the chat
+      // screen's membership and ownership checks are usually cached
+      return new AsyncMessengerStore(connector, Integer.getInteger("messenger.async.threads", 2),
+                                     Long.getLong("messenger.async.timeout", 5000L));
+   }
+
+   private static ThreadFactory daemons(final String name){
+      final AtomicInteger count = new AtomicInteger();
+      return new ThreadFactory(){
+         public Thread newThread(Runnable task){
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      };
+   }
+
+   /**
+    * Runs a query on a worker thread.
+    *
+    * @return a future completed with the query's result or exception
+    */
+   public <T> CompletableFuture<T> submit(final Query<T> query){
+      final CompletableFuture<T> result = new CompletableFuture<T>();
+      // the store while the query runs on it, for cancelling the statement
+      final AtomicReference<MessengerStore> running = new AtomicReference<MessengerStore>();
+      final Future<?> task = executor.submit(new Runnable(){
+         public void run(){
+            // cancelled or timed out while queued
+            if (result.isDone())
+               return;
+            T value;
+            try {
+               MessengerStore store = stores.get();
+               running.set(store);
+               try {
+                  value = query.run(store);
+               } catch (SQLException e){
+                  if (!brokenConnection(e) || !(store instanceof Connected) || !((Connected) store).reconnect())
+                     throw e;
+                  value = query.run(store);
+               }
+            } catch (Throwable e){
+               running.set(null);
+               result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+               return;
+            }
+            running.set(null);
+            result.complete(value);
+         }
+      });
+      final ScheduledFuture<?> timeout = timeoutMillis <= 0 ? null : timer.schedule(new Runnable(){
+         public void run(){
+            result.completeExceptionally(new TimeoutException("Query did not finish within " + timeoutMillis + " ms"));
+         }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+      result.whenComplete(new BiConsumer<T, Throwable>(){
+         public void accept(T value, Throwable error){
+            // a no-op once the query has returned
+            task.cancel(true);
+            MessengerStore store = running.get();
+            if (store instanceof Connected)
+               ((Connected) store).cancelQuery();
+            if (timeout != null)
+               timeout.cancel(false);
+         }
+      });
+      return result;
+   }
+
+   /*
+    * SQLState class 08: the connection failed or was closed
+    **/
+   private static boolean brokenConnection(SQLException e){
+      return e.getSQLState() != null && e.getSQLState().startsWith("08");
+   }
+
+   /**
+    * Waits for a future, reporting failures the way the blocking store does.
+    *
+    * @throws java.sql.SQLException when the query failed, timed out or was cancelled
+    */
+   public static <T> T join(CompletableFuture<T> future) throws SQLException {
+      try {
+         return future.get();
+      } catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException(cause.getMessage(), cause);
+      } catch (CancellationException e){
+         throw new SQLException("Query cancelled", e);
+      } catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         future.cancel(true);
+         throw new SQLException("Interrupted while waiting for a query", e);
+      }
+   }
+
+   public CompletableFuture<Boolean> isMember(final int chatId, final String login){
+      return submit(new Query<Boolean>(){
+         public Boolean run(MessengerStore store) throws SQLException {
+            return store.isMember(chatId, login);
+         }
+      });
+   }
+
+   public CompletableFuture<Boolean> isInitSender(final int chatId, final String login){
+      return submit(new Query<Boolean>(){
+         public Boolean run(MessengerStore store) throws SQLException {
+            return store.isInitSender(chatId, login);
+         }
+      });
+   }
+
+   public CompletableFuture<List<String>> chatMembers(final int chatId){
+      return submit(new Query<List<String>>(){
+         public List<String> run(MessengerStore store) throws SQLException {
+            return store.chatMembers(chatId);
+         }
+      });
+   }
+
+   public CompletableFuture<List<MessengerStore.ChatSummary>> listChats(final String login){
+      return submit(new Query<List<MessengerStore.ChatSummary>>(){
+         public List<MessengerStore.ChatSummary> run(MessengerStore store) throws SQLException {
+            return store.listChats(login);
+         }
+      });
+   }
+
+   public CompletableFuture<List<MessengerStore.User>> listMembers(final String owner, final MessengerStore.ListType type){
+      return submit(new Query<List<MessengerStore.User>>(){
+         public List<MessengerStore.User> run(MessengerStore store) throws SQLException {
+            return store.listMembers(owner, type);
+         }
+      });
+   }
+
+   public CompletableFuture<MessengerStore.Message> getMessage(final int msgId){
+      return submit(new Query<MessengerStore.Message>(){
+         public MessengerStore.Message run(MessengerStore store) throws SQLException {
+            return store.getMessage(msgId);
+         }
+      });
+   }
+
+   public CompletableFuture<List<MessengerStore.Message>> getMessages(final int chatId, final int limit, final int offset){
+      return submit(new Query<List<MessengerStore.Message>>(){
+         public List<MessengerStore.Message> run(MessengerStore store) throws SQLException {
+            return store.getMessages(chatId, limit, offset);
+         }
+      });
+   }
+
+   public CompletableFuture<List<MessengerStore.Message>> getFeed(final String login, final int limit, final int offset){
+      return submit(new Query<List<MessengerStore.Message>>(){
+         public List<MessengerStore.Message> run(MessengerStore store) throws SQLException {
+            return store.getFeed(login, limit, offset);
+         }
+      });
+   }
+
+   /** Stops the workers; queries already running are interrupted. */
+   public void shutdown(){
+      executor.shutdownNow();
+      timer.shutdownNow();
+   }
+
+}//end AsyncMessengerStore
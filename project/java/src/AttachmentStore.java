@@ -0,0 +1,273 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores files attached to messages. A file is cut into fixed size chunks
+ * that are stored once per distinct SHA-256 in CHUNK and listed in order in
+ * ATTACHMENT_CHUNK, so the same content uploaded twice costs one copy. A
+ * chunk is inserted with ON CONFLICT DO NOTHING, so clients uploading the
+ * same content at the same time do not fail on each other. Files are streamed between a FileChannel and the
+ * database one chunk at a time; at most one chunk is on the heap.
+ *
+ * Attachments are deleted with their message (ON DELETE CASCADE), and a
+ * trigger drops chunks no attachment refers to any more.
+ */
+public class AttachmentStore {
+
+   // chunk size; also the bound on heap used per transfer
+   static final int CHUNK_SIZE = Integer.getInteger("messenger.attachment.chunk", 256 * 1024);
+
+   /** An ATTACHMENT row. */
+   public static final class Attachment {
+      public final int attId;
+      public final int msgId;
+      public final String fileName;
+      public final long fileSize;
+
+      public Attachment(int attId, int msgId, String fileName, long fileSize){
+         this.attId = attId;
+         this.msgId = msgId;
+         this.fileName = fileName;
+         this.fileSize = fileSize;
+      }
+   }//end Attachment
+
+   private final Connection connection;
+
+   // bytes of new chunks stored by the last upload
+   private long bytesStored;
+
+   public AttachmentStore(Connection connection){
+      this.connection = connection;
+   }
+
+   static String hex(byte[] digest){
+      StringBuilder out = new StringBuilder(digest.length * 2);
+      for (byte b : digest)
+         out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      return out.toString();
+   }
+
+   /*
+    * Reads until the buffer is full or the file ends
+    **/
+   private static int fill(FileChannel in, ByteBuffer buffer) throws IOException {
+      buffer.clear();
+      while (buffer.hasRemaining()){
+         if (in.read(buffer) < 0)
+            break;
+      }
+      buffer.flip();
+      return buffer.remaining();
+   }
+
+   /**
+    * Attaches a file to a message in one transaction.
+    *
+    * @return the new att_id
+    */
+   public int upload(int msgId, File file) throws SQLException, IOException {
+      MessageDigest sha;
+      try {
+         sha = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e){
+         throw new IllegalStateException(e);
+      }
+      bytesStored = 0;
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+         PreparedStatement insertAttachment = connection.prepareStatement(
+            "INSERT INTO attachment (msg_id, file_name, file_size) VALUES (?, ?, ?)");
+         insertAttachment.setInt(1, msgId);
+         insertAttachment.setString(2, file.getName());
+         insertAttachment.setLong(3, in.size());
+         insertAttachment.executeUpdate();
+         insertAttachment.close();
+         int attId = currval(connection, "attachment_att_id_seq");
+
+         PreparedStatement insertChunk = connection.prepareStatement(
+            "INSERT INTO chunk (chunk_hash, chunk_data) VALUES (?, ?) ON CONFLICT (chunk_hash) DO NOTHING");
+         PreparedStatement insertPart = connection.prepareStatement(
+            "INSERT INTO attachment_chunk (att_id, seq, chunk_hash) VALUES (?, ?, ?)");
+
+         ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+         int length;
+         for (int seq = 0; (length = fill(in, buffer)) > 0; seq++){
+            sha.update(buffer.array(), 0, length);
+            String hash = hex(sha.digest());
+
+            // content already stored, possibly by a concurrent upload: only reference it
+            byte[] data = length == CHUNK_SIZE ? buffer.array() : java.util.Arrays.copyOf(buffer.array(), length);
+            insertChunk.setString(1, hash);
+            insertChunk.setBytes(2, data);
+            if (insertChunk.executeUpdate() > 0)
+               bytesStored += length;
+            insertPart.setInt(1, attId);
+            insertPart.setInt(2, seq);
+            insertPart.setString(3, hash);
+            insertPart.addBatch();
+         }
+         insertPart.executeBatch();
+         insertChunk.close();
+         insertPart.close();
+         connection.commit();
+         return attId;
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } catch (IOException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         in.close();
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+
+   /**
+    * Writes an attachment to a file, fetching one chunk at a time.
+    *
+    * @return the number of bytes written
+    */
+   public long download(int attId, File file) throws SQLException, IOException {
+      boolean autoCommit = connection.getAutoCommit();
+      // the driver only streams rows with a cursor inside a transaction
+      connection.setAutoCommit(false);
+      FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      PreparedStatement stmt = null;
+      try {
+         stmt = connection.prepareStatement(
+            "SELECT C.chunk_data FROM attachment_chunk AC, chunk C " +
+            "WHERE AC.att_id = ? AND C.chunk_hash = AC.chunk_hash ORDER BY AC.seq");
+         stmt.setFetchSize(1);
+         stmt.setInt(1, attId);
+         ResultSet rs = stmt.executeQuery();
+         long written = 0;
+         while (rs.next()){
+            ByteBuffer chunk = ByteBuffer.wrap(rs.getBytes(1));
+            while (chunk.hasRemaining())
+               written += out.write(chunk);
+         }
+         rs.close();
+         connection.commit();
+         return written;
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } catch (IOException e){
+         // a failed write leaves the cursor open in the transaction
+         connection.rollback();
+         throw e;
+      } finally {
+         try {
+            // also closes the result set
+            if (stmt != null)
+               stmt.close();
+         } finally {
+            out.close();
+            connection.setAutoCommit(autoCommit);
+         }
+      }
+   }
+
+   /** @return the attachments of a message */
+   public List<Attachment> list(int msgId) throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement(
+         "SELECT att_id, msg_id, file_name, file_size FROM attachment WHERE msg_id = ? ORDER BY att_id");
+      stmt.setInt(1, msgId);
+      ResultSet rs = stmt.executeQuery();
+      List<Attachment> attachments = new ArrayList<Attachment>();
+      while (rs.next())
+         attachments.add(new Attachment(rs.getInt(1), rs.getInt(2), rs.getString(3).trim(), rs.getLong(4)));
+      rs.close();
+      stmt.close();
+      return attachments;
+   }
+
+   /** @return the message an attachment belongs to, or -1 */
+   public int messageOf(int attId) throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement("SELECT msg_id FROM attachment WHERE att_id = ?");
+      stmt.setInt(1, attId);
+      ResultSet rs = stmt.executeQuery();
+      int msgId = rs.next() ? rs.getInt(1) : -1;
+      rs.close();
+      stmt.close();
+      return msgId;
+   }
+
+   private static int currval(Connection connection, String sequence) throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement("SELECT currval(?)");
+      stmt.setString(1, sequence);
+      ResultSet rs = stmt.executeQuery();
+      rs.next();
+      int value = rs.getInt(1);
+      rs.close();
+      stmt.close();
+      return value;
+   }
+
+   /**
+    * Benchmarks upload and download of a file attached to an existing message.
+    *
+    * Usage: java AttachmentStore <hostname> <dbname> <port> <user> <password> <msg_id> <file> [rounds]
+    */
+   public static void main(String[] args) {
+      if (args.length != 7 && args.length != 8) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + AttachmentStore.class.getName () +
+            " <hostname> <dbname> <port> <user> <password> <msg_id> <file> [rounds]");
+         return;
+      }//end if
+      Connection connection = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         connection = DriverManager.getConnection(
+            Messenger.connectionUrl(args[0], args[1], args[2], args[3], args[4]));
+         AttachmentStore store = new AttachmentStore(connection);
+         int msgId = Integer.parseInt(args[5]);
+         File file = new File(args[6]);
+         File copy = File.createTempFile("attachment", ".bin");
+         copy.deleteOnExit();
+         int rounds = args.length == 8 ? Integer.parseInt(args[7]) : 3;
+         double mb = file.length() / (1024.0 * 1024.0);
+
+         // the first round stores the chunks, later ones only reference them
+         for (int round = 1; round <= rounds; round++){
+            long start = System.nanoTime();
+            int attId = store.upload(msgId, file);
+            double up = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            long bytes = store.download(attId, copy);
+            double down = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(
+               "round %d: upload %.1f MB/s (%d bytes stored), download %.1f MB/s (%d bytes)",
+               round, mb / up, store.bytesStored, mb / down, bytes));
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         try{
+            if (connection != null)
+               connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+   }//end main
+
+}//end AttachmentStore
@@ -0,0 +1,338 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Per-session cache of the authorization facts the chat screens check over
+ * and over: whether the logged-in user is a member of a chat, whether they
+ * started it, and which messages they sent. Membership and ownership
+ * answers, negative ones included, are kept until the chat changes; of the
+ * messages found to be the user's, the last -Dmessenger.auth.messages
+ * (default 1000) are kept.
+ *
+ * The session's own AddMember, DeleteMember and DeleteChat invalidate the
+ * chat directly. Changes made by other clients arrive as notifications on
+ * the chat_membership channel, raised by triggers on CHAT_LIST and CHAT
+ * (create_functions.sql). One Listener per database and process polls them
+ * on its own connection every -Dmessenger.auth.poll milliseconds (default
+ * 500) and hands each one to every listening session.
+ *
+ * An answer read from the database is only kept if the chat was not
+ * invalidated while it was being read: callers take version(chatId) before
+ * the query and pass it to the put.
+ */
+public class AuthorizationCache {
+
+   static final int MESSAGES = Integer.getInteger("messenger.auth.messages", 1000);
+   static final long POLL_MILLIS = Long.getLong("messenger.auth.poll", 500L);
+
+   private final String login;
+   private final Map<Integer, Boolean> member = new HashMap<Integer, Boolean>();
+   private final Map<Integer, Boolean> owner = new HashMap<Integer, Boolean>();
+   // msg_id -> chat_id of messages this user sent, most recently used last
+   private final Map<Integer, Integer> messages = new LinkedHashMap<Integer, Integer>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest){
+         return size() > MESSAGES;
+      }
+   };
+   // bumped by every invalidate(chatId), and epoch by every clear()
+   private final Map<Integer, Integer> generations = new HashMap<Integer, Integer>();
+   private int epoch = 0;
+   private volatile Listener listener = null;
+   // false while changes by other clients could go unnoticed
+   private volatile boolean trusted = true;
+
+   public AuthorizationCache(String login){
+      this.login = login;
+   }
+
+   /** @return the user this session belongs to */
+   public String login(){
+      return login;
+   }
+
+   /** @return the cached membership of chatId, or null if not known */
+   public synchronized Boolean member(int chatId){
+      return trusted ? member.get(chatId) : null;
+   }
+
+   /** @return whether the user started chatId, or null if not known */
+   public synchronized Boolean owner(int chatId){
+      return trusted ? owner.get(chatId) : null;
+   }
+
+   /** @return a stamp that changes whenever chatId is invalidated */
+   public synchronized long version(int chatId){
+      Integer generation = generations.get(chatId);
+      return ((long) epoch << 32) | (generation == null ? 0 : generation);
+   }
+
+   /** Records a fact this session just made true itself, e.g. by creating the chat. */
+   public synchronized void putMember(int chatId, boolean isMember){
+      if (trusted)
+         member.put(chatId, isMember);
+   }
+
+   /** Records a fact read while the chat was at version; dropped if it changed since. */
+   public synchronized void putMember(int chatId, boolean isMember, long version){
+      if (version(chatId) == version)
+         putMember(chatId, isMember);
+   }
+
+   public synchronized void putOwner(int chatId, boolean isOwner){
+      if (trusted)
+         owner.put(chatId, isOwner);
+   }
+
+   public synchronized void putOwner(int chatId, boolean isOwner, long version){
+      if (version(chatId) == version)
+         putOwner(chatId, isOwner);
+   }
+
+   /** Records a message the user just sent, so checks on it need no query. */
+   public synchronized void putSent(int chatId, int msgId){
+      if (trusted)
+         messages.put(msgId, chatId);
+   }
+
+   public boolean isMember(MessengerStore store, int chatId) throws SQLException {
+      long version = version(chatId);
+      Boolean known = member(chatId);
+      if (known != null)
+         return known;
+      boolean answer = store.isMember(chatId, login);
+      putMember(chatId, answer, version);
+      return answer;
+   }
+
+   public boolean isInitSender(MessengerStore store, int chatId) throws SQLException {
+      long version = version(chatId);
+      Boolean known = owner(chatId);
+      if (known != null)
+         return known;
+      boolean answer = store.isInitSender(chatId, login);
+      putOwner(chatId, answer, version);
+      return answer;
+   }
+
+   public boolean isMessageSender(MessengerStore store, int chatId, int msgId) throws SQLException {
+      Integer known;
+      long version;
+      synchronized (this){
+         known = trusted ? messages.get(msgId) : null;
+         version = version(chatId);
+      }
+      if (known != null)
+         return known == chatId;
+      boolean answer = store.isMessageSender(chatId, msgId, login);
+      synchronized (this){
+         // a miss does not say which chat the message is in, so only hits
+         // are remembered
+         if (answer && trusted && version(chatId) == version)
+            messages.put(msgId, chatId);
+      }
+      return answer;
+   }
+
+   /** @return the chats this session holds anything about */
+   public synchronized Set<Integer> chats(){
+      Set<Integer> chats = new HashSet<Integer>(member.keySet());
+      chats.addAll(owner.keySet());
+      chats.addAll(messages.values());
+      return chats;
+   }
+
+   /** Forgets everything about chatId. */
+   public synchronized void invalidate(int chatId){
+      Integer generation = generations.get(chatId);
+      generations.put(chatId, generation == null ? 1 : generation + 1);
+      member.remove(chatId);
+      owner.remove(chatId);
+      for (Iterator<Integer> it = messages.values().iterator(); it.hasNext(); ){
+         if (it.next() == chatId)
+            it.remove();
+      }
+   }
+
+   /** Forgets everything. */
+   public synchronized void clear(){
+      epoch++;
+      generations.clear();
+      member.clear();
+      owner.clear();
+      messages.clear();
+   }
+
+   /*
+    * Trusts cached answers again once notifications are being received;
+    * answers read before then may have missed one
+    **/
+   synchronized void trust(){
+      epoch++;
+      trusted = true;
+   }
+
+   /*
+    * Sends every check to the database while changes by other clients could
+    * go unnoticed
+    **/
+   synchronized void distrust(){
+      trusted = false;
+      clear();
+   }
+
+   /**
+    * Starts invalidating chats named by chat_membership notifications on the
+    * database at url, through the listener shared by all sessions of this
+    * process. Nothing is cached until the listener is listening, nor after it
+    * fails.
+    */
+   public void listen(String url){
+      Listener shared = Listener.of(url);
+      this.listener = shared;
+      shared.add(this);
+   }
+
+   /** Stops receiving notifications, if listening. */
+   public void stop(){
+      Listener shared = listener;
+      listener = null;
+      if (shared != null)
+         shared.remove(this);
+   }
+
+   /**
+    * The chat_membership listener of one database, shared by the sessions of
+    * this process: one connection and one polling thread however many
+    * sessions there are. The thread runs while any session listens.
+    */
+   static final class Listener {
+
+      private static final Map<String, Listener> shared = new HashMap<String, Listener>();
+
+      private final String url;
+      private final List<AuthorizationCache> caches = new ArrayList<AuthorizationCache>();
+      private volatile Thread thread = null;
+      private boolean listening = false;
+
+      Listener(String url){
+         this.url = url;
+      }
+
+      static synchronized Listener of(String url){
+         Listener listener = shared.get(url);
+         if (listener == null){
+            listener = new Listener(url);
+            shared.put(url, listener);
+         }
+         return listener;
+      }
+
+      synchronized void add(AuthorizationCache cache){
+         caches.add(cache);
+         if (listening)
+            return;
+         cache.distrust();
+         if (thread == null && url != null)
+            start();
+      }
+
+      synchronized void remove(AuthorizationCache cache){
+         caches.remove(cache);
+         if (caches.isEmpty() && thread != null){
+            thread.interrupt();
+            thread = null;
+            listening = false;
+         }
+      }
+
+      /*
+       * Called once LISTEN has been run: the sessions may cache again
+       **/
+      synchronized void started(){
+         listening = true;
+         for (AuthorizationCache cache : caches)
+            cache.trust();
+      }
+
+      /*
+       * Called when the connection failed; the next session to listen tries
+       * again. False if the thread had been stopped already.
+       **/
+      private synchronized boolean failed(Thread failed){
+         if (thread != failed)
+            return false;
+         thread = null;
+         listening = false;
+         for (AuthorizationCache cache : caches)
+            cache.distrust();
+         return true;
+      }
+
+      /** Invalidates chatId in every listening session. */
+      void deliver(int chatId){
+         List<AuthorizationCache> targets;
+         synchronized (this){
+            targets = new ArrayList<AuthorizationCache>(caches);
+         }
+         for (AuthorizationCache cache : targets)
+            cache.invalidate(chatId);
+      }
+
+      private void start(){
+         Thread thread = new Thread(new Runnable(){
+            public void run(){
+               try {
+                  Connection connection = DriverManager.getConnection(url);
+                  try {
+                     Statement stmt = connection.createStatement();
+                     stmt.execute("LISTEN chat_membership");
+                     synchronized (Listener.this){
+                        if (Listener.this.thread == Thread.currentThread())
+                           started();
+                     }
+                     PGConnection pg = (PGConnection) connection;
+                     while (Listener.this.thread == Thread.currentThread()){
+                        // notifications are only read along with a result
+                        stmt.executeQuery("SELECT 1").close();
+                        PGNotification[] notifications = pg.getNotifications();
+                        if (notifications != null){
+                           for (PGNotification notification : notifications)
+                              deliver(Integer.parseInt(notification.getParameter()));
+                        }
+                        Thread.sleep(POLL_MILLIS);
+                     }
+                     stmt.close();
+                  } finally {
+                     connection.close();
+                  }
+               } catch (InterruptedException e){
+                  // stopped.
+               } catch (Throwable e){
+                  // every check goes to the database until a session listens
+                  // again; errors too, e.g. a driver without
+                  // PGNotification.getParameter
+                  if (failed(Thread.currentThread()))
+                     System.err.println("Membership notifications stopped: " + e);
+               }
+            }
+         }, "messenger-auth-listener");
+         thread.setDaemon(true);
+         this.thread = thread;
+         thread.start();
+      }
+   }//end Listener
+
+}//end AuthorizationCache
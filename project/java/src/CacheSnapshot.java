@@ -0,0 +1,424 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps a copy of the login index on local disk, so a restarted process
+ * gets its user directory from a file instead of a full read of USR. The
+ * file is
+ *
+ *    "MSGSNAP1", int format, long system identifier, short length,
+ *    database name, long xmin, long last change_id, long written,
+ *    int count, count * (short length, login, short length, phone),
+ *    int CRC32 of all of the above                             (UTF-8)
+ *
+ * and is read through a memory mapping. The system identifier (from
+ * pg_control_system(), 0 where that is not available) and the database
+ * name say which database the copy is of; a file of another database, e.g.
+ * after the client was pointed at a new server, is not used. The rest of
+ * the stamp says which changes the copy may lack: xmin is the oldest transaction still running when USR was
+ * read, and last change_id the newest CHANGE_LOG row at that point. After
+ * loading the file, the users named by CHANGE_LOG rows of transactions at
+ * or after xmin are read again; replaying a change twice is harmless. If
+ * the log no longer reaches back that far (CHANGE_LOG_HORIZON at or past
+ * xmin after prune_change_log, or change_ids below the stamp because the
+ * tables were created again), or the file is missing or damaged, USR is
+ * read in full and a new file written.
+ *
+ * While the index is in use it catches up and is written again every
+ * -Dmessenger.snapshot.interval milliseconds (default 600000), and once
+ * more on close. Enabled by setting -Dmessenger.snapshot.dir to the
+ * directory for the file.
+ *
+ * Only the login index is kept. The AuthorizationCache also holds
+ * memberships in process, but it is filled per chat as chats are opened
+ * rather than by a full read, so starting it empty costs no more than
+ * the first lookups.
+ */
+public class CacheSnapshot {
+
+   static final byte[] MAGIC = "MSGSNAP1".getBytes(Charset.forName("US-ASCII"));
+   static final int FORMAT = 2;
+
+   // catch-ups longer than this rebuild the index once instead of copying it per change
+   static final int REPLAY_IN_PLACE = 256;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final File file;
+   private final String url;
+   private final long intervalMillis;
+
+   // the database the index is of
+   private long systemId = 0;
+   private String database = "";
+   // the stamp of the index as last loaded or caught up
+   private long xmin = -1;
+   private long lastChange = -1;
+   private LoginIndex loaded = null;
+   private volatile Thread refresher = null;
+
+   public CacheSnapshot(File dir, String url, long intervalMillis){
+      dir.mkdirs();
+      this.file = new File(dir, "users.snap");
+      this.url = url;
+      this.intervalMillis = intervalMillis;
+   }
+
+   /** @return the snapshot configured by system properties, or null if it is off */
+   public static CacheSnapshot fromSystemProperties(String url){
+      String dir = System.getProperty("messenger.snapshot.dir");
+      if (dir == null)
+         return null;
+      return new CacheSnapshot(new File(dir), url, Long.getLong("messenger.snapshot.interval", 600000L));
+   }
+
+   /**
+    * Fills index from the file and the changes made since it was written,
+    * or from USR if that is not possible, then writes a fresh file.
+    *
+    * @return true if the file was used
+    */
+   public synchronized boolean load(LoginIndex index) throws SQLException {
+      Connection connection = DriverManager.getConnection(url);
+      try {
+         identify(connection);
+         List<MessengerStore.User> users = read();
+         boolean warm = false;
+         if (users != null){
+            index.load(users);
+            warm = catchUp(connection, index);
+         }
+         if (!warm)
+            readAll(connection, index);
+         loaded = index;
+         write(index);
+         return warm;
+      } finally {
+         connection.close();
+      }
+   }
+
+   /**
+    * Brings the loaded index up to date and writes it to the file.
+    */
+   public synchronized void refresh() throws SQLException {
+      if (loaded == null)
+         return;
+      Connection connection = DriverManager.getConnection(url);
+      try {
+         long loadedSystemId = systemId;
+         String loadedDatabase = database;
+         identify(connection);
+         // changes since the stamp only make sense on the same database
+         boolean same = systemId == loadedSystemId && database.equals(loadedDatabase);
+         if (!same || !catchUp(connection, loaded))
+            readAll(connection, loaded);
+         write(loaded);
+      } finally {
+         connection.close();
+      }
+   }
+
+   /**
+    * Refreshes the snapshot every interval on a daemon thread until close().
+    */
+   public void start(){
+      Thread thread = new Thread(new Runnable(){
+         public void run(){
+            while (refresher == Thread.currentThread()){
+               try {
+                  Thread.sleep(intervalMillis);
+                  refresh();
+               } catch (InterruptedException e){
+                  return;
+               } catch (SQLException e){
+                  // the file keeps its older stamp; tried again next interval
+                  System.err.println("Snapshot refresh failed: " + e.getMessage());
+               }
+            }
+         }
+      }, "messenger-snapshot");
+      thread.setDaemon(true);
+      this.refresher = thread;
+      thread.start();
+   }
+
+   /** Stops refreshing and writes the index as it is now. */
+   public void close(){
+      Thread thread = refresher;
+      refresher = null;
+      if (thread != null)
+         thread.interrupt();
+      synchronized (this){
+         if (loaded != null){
+            try {
+               write(loaded);
+            } catch (SQLException e){
+               // ignored, the last complete file stays.
+            }
+         }
+      }
+   }
+
+   /*
+    * Reads which database connection is to; outside a transaction, so a
+    * server without pg_control_system() costs no rollback
+    **/
+   private void identify(Connection connection) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT current_database()");
+         rs.next();
+         String name = rs.getString(1);
+         rs.close();
+         long id = 0;
+         try {
+            rs = stmt.executeQuery("SELECT system_identifier FROM pg_control_system()");
+            rs.next();
+            id = rs.getLong(1);
+            rs.close();
+         } catch (SQLException e){
+            // before 9.6, or not granted: the name has to do
+         }
+         identify(id, name);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /*
+    * Sets the database that files are written for and must be read from
+    **/
+   void identify(long systemId, String database){
+      this.systemId = systemId;
+      this.database = database;
+   }
+
+   /*
+    * Starts a repeatable read transaction and reads the stamp of its
+    * snapshot: xmin, the newest pruned txid and the highest change_id
+    **/
+   private static long[] begin(Connection connection, Statement stmt) throws SQLException {
+      connection.setAutoCommit(false);
+      connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+      ResultSet rs = stmt.executeQuery(
+         "SELECT txid_snapshot_xmin(txid_current_snapshot()), H.pruned_txid, "
+       + "(SELECT COALESCE(MAX(change_id), 0) FROM change_log) FROM change_log_horizon H");
+      rs.next();
+      long[] stamp = { rs.getLong(1), rs.getLong(2), rs.getLong(3) };
+      rs.close();
+      return stamp;
+   }
+
+   private static void end(Connection connection) throws SQLException {
+      connection.commit();
+      connection.setAutoCommit(true);
+      connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+   }
+
+   private void readAll(Connection connection, LoginIndex index) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         long[] stamp = begin(connection, stmt);
+         List<MessengerStore.User> users = new ArrayList<MessengerStore.User>();
+         ResultSet rs = stmt.executeQuery("SELECT login, phoneNum FROM usr");
+         while (rs.next())
+            users.add(new MessengerStore.User(rs.getString(1).trim(), rs.getString(2).trim(), null));
+         rs.close();
+         end(connection);
+         index.load(users);
+         xmin = stamp[0];
+         lastChange = stamp[2];
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /*
+    * Replays the changes since the stamp onto index
+    *
+    * @return false if CHANGE_LOG no longer holds every change since the stamp
+    **/
+   private boolean catchUp(Connection connection, LoginIndex index) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         long[] stamp = begin(connection, stmt);
+         // changes of transactions at or after xmin were pruned, or the
+         // log was created again and restarted its change_ids
+         if (stamp[1] >= xmin || stamp[2] < lastChange){
+            end(connection);
+            return false;
+         }
+         // the login a change was made under, then the user's current row if any
+         List<String[]> changes = new ArrayList<String[]>();
+         ResultSet rs = stmt.executeQuery(
+            "SELECT C.login, U.login, U.phoneNum FROM change_log C LEFT JOIN usr U ON U.user_id = C.row_id "
+          + "WHERE C.table_name = 'usr' AND C.txid >= " + xmin + " ORDER BY C.change_id");
+         while (rs.next())
+            changes.add(new String[] { trim(rs.getString(1)), trim(rs.getString(2)), trim(rs.getString(3)) });
+         rs.close();
+         end(connection);
+         synchronized (index){
+            if (changes.size() <= REPLAY_IN_PLACE){
+               for (String[] change : changes){
+                  index.remove(change[0]);
+                  if (change[1] != null){
+                     index.remove(change[1]);
+                     index.add(change[1], change[2]);
+                  }
+               }
+            } else {
+               Map<String, String> users = new HashMap<String, String>();
+               for (MessengerStore.User user : index.users())
+                  users.put(user.login, user.phoneNum);
+               for (String[] change : changes){
+                  users.remove(change[0]);
+                  if (change[1] != null)
+                     users.put(change[1], change[2]);
+               }
+               List<MessengerStore.User> replayed = new ArrayList<MessengerStore.User>(users.size());
+               for (Map.Entry<String, String> user : users.entrySet())
+                  replayed.add(new MessengerStore.User(user.getKey(), user.getValue(), null));
+               index.load(replayed);
+            }
+         }
+         xmin = stamp[0];
+         lastChange = stamp[2];
+         return true;
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private static String trim(String value){
+      return value == null ? null : value.trim();
+   }
+
+   /*
+    * Writes index with the current stamp to a new file and moves it over
+    * the old one
+    **/
+   void write(LoginIndex index) throws SQLException {
+      File temp = new File(file.getPath() + ".tmp");
+      try {
+         CRC32 crc = new CRC32();
+         FileOutputStream stream = new FileOutputStream(temp);
+         try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc), 1 << 16));
+            List<MessengerStore.User> users = index.users();
+            out.write(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(systemId);
+            byte[] name = database.getBytes(UTF8);
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeLong(xmin);
+            out.writeLong(lastChange);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(users.size());
+            for (MessengerStore.User user : users){
+               byte[] login = user.login.getBytes(UTF8);
+               byte[] phone = user.phoneNum.getBytes(UTF8);
+               out.writeShort(login.length);
+               out.write(login);
+               out.writeShort(phone.length);
+               out.write(phone);
+            }
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            stream.getFD().sync();
+         } finally {
+            stream.close();
+         }
+         Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e){
+         temp.delete();
+         throw new SQLException("Cache snapshot: " + e.getMessage(), e);
+      }
+   }
+
+   /*
+    * Maps the file and takes the users and stamp from it
+    *
+    * @return the users, or null if there is no usable file of this database
+    **/
+   List<MessengerStore.User> read(){
+      if (!file.isFile())
+         return null;
+      try {
+         FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         try {
+            long size = channel.size();
+            if (size < MAGIC.length + 4 + 8 + 2 + 8 * 3 + 4 + 4 || size > Integer.MAX_VALUE)
+               return null;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[1 << 16];
+            ByteBuffer body = map.duplicate();
+            body.limit((int) size - 4);
+            while (body.hasRemaining()){
+               int n = Math.min(chunk.length, body.remaining());
+               body.get(chunk, 0, n);
+               crc.update(chunk, 0, n);
+            }
+            if (map.getInt((int) size - 4) != (int) crc.getValue())
+               return null;
+            byte[] magic = new byte[MAGIC.length];
+            map.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || map.getInt() != FORMAT)
+               return null;
+            long fileSystemId = map.getLong();
+            byte[] name = new byte[map.getShort() & 0xffff];
+            map.get(name);
+            if (fileSystemId != systemId || !new String(name, UTF8).equals(database))
+               return null;
+            long fileXmin = map.getLong();
+            long fileLastChange = map.getLong();
+            map.getLong();
+            int count = map.getInt();
+            List<MessengerStore.User> users = new ArrayList<MessengerStore.User>(count);
+            for (int i = 0; i < count; i++){
+               byte[] login = new byte[map.getShort() & 0xffff];
+               map.get(login);
+               byte[] phone = new byte[map.getShort() & 0xffff];
+               map.get(phone);
+               users.add(new MessengerStore.User(new String(login, UTF8), new String(phone, UTF8), null));
+            }
+            xmin = fileXmin;
+            lastChange = fileLastChange;
+            return users;
+         } finally {
+            channel.close();
+         }
+      } catch (IOException e){
+         return null;
+      } catch (RuntimeException e){
+         // truncated or otherwise damaged
+         return null;
+      }
+   }
+
+}//end CacheSnapshot
@@ -0,0 +1,95 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Calls prune_change_log on a schedule, so CHANGE_LOG keeps only the last
+ * -Dmessenger.changelog.keep of changes (a Postgres interval, e.g.
+ * "7 days"). It runs once at startup and then every
+ * -Dmessenger.changelog.interval milliseconds (default 3600000) on its own
+ * connection. Off unless keep is set; any number of clients may prune, as
+ * the function only ever moves the horizon forward.
+ */
+public class ChangeLogPruner {
+
+   private final String url;
+   private final String keep;
+   private final long intervalMillis;
+   private volatile Thread pruner = null;
+
+   public ChangeLogPruner(String url, String keep, long intervalMillis){
+      this.url = url;
+      this.keep = keep;
+      this.intervalMillis = intervalMillis;
+   }
+
+   /** @return the pruner configured by system properties, or null if it is off */
+   public static ChangeLogPruner fromSystemProperties(String url){
+      String keep = System.getProperty("messenger.changelog.keep");
+      if (keep == null)
+         return null;
+      return new ChangeLogPruner(url, keep, Long.getLong("messenger.changelog.interval", 3600000L));
+   }
+
+   /**
+    * Removes the changes older than keep.
+    *
+    * @return the number of CHANGE_LOG rows removed
+    */
+   public long prune() throws SQLException {
+      Connection connection = DriverManager.getConnection(url);
+      try {
+         PreparedStatement stmt = connection.prepareStatement("SELECT prune_change_log(CAST(? AS interval))");
+         try {
+            stmt.setString(1, keep);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         connection.close();
+      }
+   }
+
+   /**
+    * Prunes now and then every interval on a daemon thread until close().
+    */
+   public void start(){
+      Thread thread = new Thread(new Runnable(){
+         public void run(){
+            while (pruner == Thread.currentThread()){
+               try {
+                  prune();
+                  Thread.sleep(intervalMillis);
+               } catch (InterruptedException e){
+                  return;
+               } catch (SQLException e){
+                  // the log only grows until the next interval
+                  System.err.println("Change log pruning failed: " + e.getMessage());
+                  try {
+                     Thread.sleep(intervalMillis);
+                  } catch (InterruptedException stop){
+                     return;
+                  }
+               }
+            }
+         }
+      }, "messenger-prune");
+      thread.setDaemon(true);
+      this.pruner = thread;
+      thread.start();
+   }
+
+   /** Stops pruning. */
+   public void close(){
+      Thread thread = pruner;
+      pruner = null;
+      if (thread != null)
+         thread.interrupt();
+   }
+
+}//end ChangeLogPruner
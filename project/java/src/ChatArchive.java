@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
+
+/**
+ * Exports and imports whole chats, or every chat a user belongs to, as a
+ * gzip compressed archive. Rows are streamed one at a time through
+ * COPY ... TO STDOUT / FROM STDIN, so memory use does not depend on the size
+ * of the history.
+ *
+ * Archive layout (inside gzip):
+ *
+ *    "MSGARCH1"
+ *    { section byte, { varint length, COPY text row }*, 0 length }*
+ *    END section byte
+ *
+ * Each row is kept in Postgres' COPY text format, which is already a
+ * lossless, escaped encoding and can be fed back to COPY FROM STDIN as is.
+ * Users are written by login rather than user_id, so an archive can be
+ * loaded into a database whose ids differ. Import copies each section into
+ * a temporary table and inserts from there with the logins turned back into
+ * ids; it restores chats and messages with their original ids in a single
+ * transaction and fails if any of them already exist or if a user involved
+ * does not.
+ *
+ * Needs the JDBC 4 driver (lib/postgresql-9.4.1208.jre6.jar) for the COPY API.
+ *
+ * Usage:
+ *    java ChatArchive export <hostname> <dbname> <port> <user> <password> chat <chat_id> <file>
+ *    java ChatArchive export <hostname> <dbname> <port> <user> <password> user <login> <file>
+ *    java ChatArchive import <hostname> <dbname> <port> <user> <password> <file>
+ */
+public class ChatArchive {
+
+   static final byte[] MAGIC = { 'M', 'S', 'G', 'A', 'R', 'C', 'H', '1' };
+
+   static final int END = 0;
+
+   // sections in the order they must be imported to satisfy foreign keys
+   static final String[] TABLES = { null, "chat", "chat_list", "message" };
+
+   // the columns of each section as kept in the archive
+   static final String[] COLUMNS = {
+      null,
+      "chat_id integer, chat_type char(50), init_sender char(50)",
+      "chat_id integer, member char(50)",
+      "msg_id integer, msg_text char(300), msg_timestamp timestamp, sender_login char(50), chat_id integer"
+   };
+
+   // the archive column holding a login
+   static final String[] LOGIN_COLUMN = { null, "init_sender", "member", "sender_login" };
+
+   // a section's rows, with user ids turned into logins
+   static final String[] EXPORT = {
+      null,
+      "SELECT T.chat_id, T.chat_type, U.login FROM chat T LEFT JOIN usr U ON U.user_id = T.init_sender_id",
+      "SELECT T.chat_id, U.login FROM chat_list T LEFT JOIN usr U ON U.user_id = T.member_id",
+      "SELECT T.msg_id, T.msg_text, T.msg_timestamp, U.login, T.chat_id FROM message T LEFT JOIN usr U ON U.user_id = T.sender_id"
+   };
+
+   // moves a section from its staging table into place, logins back to ids
+   static final String[] RESTORE = {
+      null,
+      "INSERT INTO chat (chat_id, chat_type, init_sender_id) " +
+      "SELECT A.chat_id, A.chat_type, U.user_id FROM archive_chat A LEFT JOIN usr U ON U.login = A.init_sender",
+      "INSERT INTO chat_list (chat_id, member_id) " +
+      "SELECT A.chat_id, U.user_id FROM archive_chat_list A LEFT JOIN usr U ON U.login = A.member",
+      "INSERT INTO message (msg_id, msg_text, msg_timestamp, sender_id, chat_id) " +
+      "SELECT A.msg_id, A.msg_text, A.msg_timestamp, U.user_id, A.chat_id FROM archive_message A LEFT JOIN usr U ON U.login = A.sender_login"
+   };
+
+   static final int BUFFER_SIZE = 1 << 16;
+
+   private final Connection connection;
+   private final CopyManager copy;
+   private long rows;
+   private long bytes;
+
+   public ChatArchive(Connection connection) throws SQLException {
+      this.connection = connection;
+      this.copy = ((PGConnection) connection).getCopyAPI();
+   }
+
+   /**
+    * Writes every chat selected by chatFilter, a query returning chat ids.
+    * All sections are read in one read-only REPEATABLE READ transaction, so
+    * no row is written without the rows it refers to.
+    *
+    * @return the number of rows written
+    */
+   public long export(String chatFilter, String file) throws SQLException, IOException {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+         new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+      boolean autoCommit = connection.getAutoCommit();
+      int isolation = connection.getTransactionIsolation();
+      connection.setAutoCommit(false);
+      try {
+         connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         connection.setReadOnly(true);
+         out.write(MAGIC);
+         for (int section = 1; section < TABLES.length; section++){
+            String order = section == 3 ? " ORDER BY T.msg_id" : "";
+            CopyOut rowsOut = copy.copyOut(String.format(
+               "COPY (%s WHERE T.chat_id IN (%s)%s) TO STDOUT",
+               EXPORT[section], chatFilter, order));
+            out.writeByte(section);
+            byte[] row;
+            while ((row = rowsOut.readFromCopy()) != null){
+               // drop the row terminator, it is implied by the length
+               int length = row.length - 1;
+               writeVarint(out, length);
+               out.write(row, 0, length);
+               rows++;
+               bytes += length;
+            }
+            writeVarint(out, 0);
+         }
+         out.writeByte(END);
+         connection.commit();
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } catch (IOException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setReadOnly(false);
+         connection.setTransactionIsolation(isolation);
+         connection.setAutoCommit(autoCommit);
+         out.close();
+      }
+      return rows;
+   }
+
+   /**
+    * Loads an archive written by export in one transaction.
+    *
+    * @return the number of rows loaded
+    */
+   public long load(Connection connection, String file) throws SQLException, IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+         new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         byte[] magic = new byte[MAGIC.length];
+         in.readFully(magic);
+         if (!java.util.Arrays.equals(magic, MAGIC))
+            throw new IOException(file + " is not a chat archive");
+         byte[] row = new byte[256];
+         int section;
+         Statement stmt = connection.createStatement();
+         while ((section = in.readUnsignedByte()) != END){
+            if (section >= TABLES.length)
+               throw new IOException("Corrupt archive: unknown section " + section);
+            String staging = "archive_" + TABLES[section];
+            stmt.executeUpdate(String.format(
+               "CREATE TEMP TABLE %s (%s) ON COMMIT DROP", staging, COLUMNS[section]));
+            CopyIn rowsIn = copy.copyIn("COPY " + staging + " FROM STDIN");
+            try {
+               int length;
+               while ((length = readVarint(in)) != 0){
+                  if (length + 1 > row.length)
+                     row = new byte[Math.max(length + 1, row.length * 2)];
+                  in.readFully(row, 0, length);
+                  row[length] = '\n';
+                  rowsIn.writeToCopy(row, 0, length + 1);
+                  rows++;
+                  bytes += length;
+               }
+               rowsIn.endCopy();
+            } finally {
+               if (rowsIn.isActive())
+                  rowsIn.cancelCopy();
+            }
+            ResultSet missing = stmt.executeQuery(String.format(
+               "SELECT A.%s FROM %s A WHERE A.%s IS NOT NULL " +
+               "AND NOT EXISTS (SELECT 1 FROM usr U WHERE U.login = A.%s) LIMIT 1",
+               LOGIN_COLUMN[section], staging, LOGIN_COLUMN[section], LOGIN_COLUMN[section]));
+            if (missing.next())
+               throw new SQLException("User " + missing.getString(1).trim() + " in " + file + " does not exist");
+            missing.close();
+            stmt.executeUpdate(RESTORE[section]);
+         }
+         // rows came in with explicit ids, keep the sequences ahead of them
+         stmt.executeQuery("SELECT setval('chat_chat_id_seq', GREATEST((SELECT MAX(chat_id) FROM chat), 1))").close();
+         stmt.executeQuery("SELECT setval('message_msg_id_seq', GREATEST((SELECT MAX(msg_id) FROM message), 1))").close();
+         stmt.close();
+         connection.commit();
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } catch (IOException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+         in.close();
+      }
+      return rows;
+   }
+
+   static void writeVarint(DataOutputStream out, int value) throws IOException {
+      while ((value & ~0x7F) != 0){
+         out.writeByte((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.writeByte(value);
+   }
+
+   static int readVarint(DataInputStream in) throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7){
+         int b = in.readUnsignedByte();
+         value |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }
+      throw new IOException("Corrupt archive: varint too long");
+   }
+
+   public static void main(String[] args) {
+      if (args.length < 7 || !(args[0].equals("export") && args.length == 9 || args[0].equals("import") && args.length == 7)) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + ChatArchive.class.getName () +
+            " export <hostname> <dbname> <port> <user> <password> chat <chat_id>|user <login> <file>\n" +
+            "       java [-classpath <classpath>] " + ChatArchive.class.getName () +
+            " import <hostname> <dbname> <port> <user> <password> <file>");
+         return;
+      }//end if
+
+      Connection connection = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         connection = DriverManager.getConnection(
+            Messenger.connectionUrl(args[1], args[2], args[3], args[4], args[5]));
+         ChatArchive archive = new ChatArchive(connection);
+
+         long start = System.nanoTime();
+         String file;
+         if (args[0].equals("export")){
+            file = args[8];
+            String filter;
+            if (args[6].equals("chat"))
+               filter = String.valueOf(Integer.parseInt(args[7]));
+            else
+               filter = String.format("SELECT chat_id FROM chat_list WHERE member_id = %s",
+                                      SqlMessengerStore.idOf(args[7]));
+            archive.export(filter, file);
+         } else {
+            file = args[6];
+            archive.load(connection, file);
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format("%sed %d rows (%d bytes of row data) %s %s in %.2fs: %.0f rows/sec",
+                            args[0], archive.rows, archive.bytes, args[0].equals("export") ? "to" : "from",
+                            file, seconds, archive.rows / Math.max(seconds, 1e-9)));
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         try{
+            if (connection != null)
+               connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+   }//end main
+
+}//end ChatArchive
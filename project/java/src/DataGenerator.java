@@ -0,0 +1,385 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a synthetic dataset in the formats of project/data and
+ * load_data.sql (usr.csv, usr_list.csv, usr_list_contains.csv, chat.csv,
+ * chat_list.csv and message.csv), scaled from the seeded one: scale 1 is
+ * 27953 users, 5000 chats and 50000 messages, scale 100 a hundred times
+ * that. Every login and chat a file refers to exists in the files it
+ * depends on.
+ *
+ * The shape is skewed the way real traffic is: chat sizes follow a power
+ * law (mostly pairs, a few groups of thousands), a small share of chats
+ * gets most of the messages, and members are drawn with a bias towards a
+ * core of popular users, who therefore send most messages overall.
+ *
+ * Output depends only on the scale and the seed, not on the number of
+ * threads: every table is cut into fixed partitions, each generated from
+ * its own seeded Random, and written in partition order while the
+ * following partitions are being generated. A chat's size, members and
+ * heat are derived from the chat id alone, so chat_list.csv and
+ * message.csv agree without keeping chats in memory.
+ *
+ * Usage:
+ *    java DataGenerator <output dir> <scale> [seed] [threads]
+ */
+public class DataGenerator {
+
+   static final int BASE_USERS = 27953;
+   static final int BASE_CHATS = 5000;
+   static final int BASE_MESSAGES = 50000;
+
+   // rows generated by one task
+   static final int PARTITION = 1 << 16;
+
+   // larger is more skewed towards the popular users at the low indices
+   static final double POPULARITY = 3.0;
+   // Pareto exponents of chat size, chat heat and contact list length
+   static final double SIZE_ALPHA = 1.5;
+   static final double HEAT_ALPHA = 1.8;
+   static final double CONTACT_ALPHA = 1.5;
+   static final int MAX_CHAT_SIZE = 10000;
+   static final int MAX_CONTACTS = 500;
+
+   // messages are spread over this many days from FIRST_DAY
+   static final int DAYS = 730;
+   static final LocalDate FIRST_DAY = LocalDate.of(2016, 1, 1);
+
+   private static final Charset ASCII = Charset.forName("US-ASCII");
+
+   static final String[] FIRST = {
+      "Norma", "Lonny", "Roxanne", "Judy", "Lilla", "Hardy", "Bethel", "Geo", "Ansel", "Marta",
+      "Cleo", "Dorian", "Elna", "Fermin", "Gina", "Hollis", "Iva", "Jovan", "Kali", "Lorna",
+      "Milo", "Nella", "Orval", "Pearl", "Quinn", "Rosa", "Sonny", "Tressa", "Ulises", "Vida" };
+   static final String[] LAST = {
+      "Hahn", "Cummings", "Haley", "Barton", "Kuhn", "Lind", "Moen", "Nolan", "Ortiz", "Price",
+      "Quigley", "Rau", "Schultz", "Torp", "Upton", "Veum", "Walsh", "Yost", "Zieme", "Bauch" };
+   static final String[] WORDS = {
+      "quia", "praesentium", "maxime", "iste", "in", "saepe", "libero", "ut", "quod", "et",
+      "dolor", "sit", "amet", "voluptas", "est", "sed", "non", "eius", "modi", "tempora",
+      "aut", "officiis", "debitis", "rerum", "nihil", "omnis", "esse", "quam", "minus", "nemo" };
+
+   final long seed;
+   final int users;
+   final int chats;
+   final int messages;
+   // message ids of chat c are firstMessage[c] .. firstMessage[c + 1] - 1
+   final long[] firstMessage;
+   final String[] dayStrings = new String[DAYS];
+
+   public DataGenerator(double scale, long seed){
+      this.seed = seed;
+      this.users = Math.max(4, (int) Math.round(BASE_USERS * scale));
+      this.chats = Math.max(1, (int) Math.round(BASE_CHATS * scale));
+      this.messages = (int) Math.round(BASE_MESSAGES * scale);
+      for (int d = 0; d < DAYS; d++)
+         dayStrings[d] = FIRST_DAY.plusDays(d).toString();
+
+      // spread the messages over the chats by heat
+      double[] heat = new double[chats];
+      double total = 0;
+      for (int c = 0; c < chats; c++){
+         Random random = random(CHAT, c);
+         int size = chatSize(random);
+         heat[c] = size * pareto(random, HEAT_ALPHA, 1.0e6);
+         total += heat[c];
+      }
+      firstMessage = new long[chats + 1];
+      for (int c = 0; c < chats; c++)
+         firstMessage[c + 1] = firstMessage[c] + Math.round(messages * heat[c] / total);
+   }
+
+   // what a Random is seeded for
+   static final int USER = 1;
+   static final int CHAT = 2;
+   static final int MESSAGE = 3;
+
+   /*
+    * The Random of one user partition, chat or message partition
+    **/
+   Random random(int kind, long index){
+      long h = seed * 0x9E3779B97F4A7C15L + kind * 0xC2B2AE3D27D4EB4FL + index * 0x165667B19E3779F9L;
+      h ^= h >>> 29;
+      return new Random(h);
+   }
+
+   static double pareto(Random random, double alpha, double max){
+      return Math.min(max, 1.0 / Math.pow(1.0 - random.nextDouble(), 1.0 / alpha));
+   }
+
+   /** @return a user index, biased towards the popular low ones */
+   int popularUser(Random random){
+      return (int) (users * Math.pow(random.nextDouble(), POPULARITY));
+   }
+
+   int chatSize(Random random){
+      int max = Math.min(MAX_CHAT_SIZE, users / 2);
+      return Math.max(2, Math.min(max, (int) (2 * pareto(random, SIZE_ALPHA, max))));
+   }
+
+   /**
+    * @return the members of chat c, its initial sender first
+    */
+   int[] chatMembers(int c){
+      Random random = random(CHAT, c);
+      int size = chatSize(random);
+      pareto(random, HEAT_ALPHA, 1.0e6);
+      int[] members = new int[size];
+      IntHashSet taken = new IntHashSet();
+      for (int m = 0; m < size; ){
+         int user = popularUser(random);
+         if (taken.add(user))
+            members[m++] = user;
+      }
+      return members;
+   }
+
+   static String login(int user){
+      int h = IntHashSet.mix(user) & 0x7FFFFFFF;
+      return FIRST[h % FIRST.length] + "_" + LAST[(h / FIRST.length) % LAST.length] + user;
+   }
+
+   /*
+    * A distinct phone number per user: multiplying by a number prime to 10
+    * permutes the 10 digit numbers
+    **/
+   static void appendPhone(StringBuilder row, int user){
+      long digits = (user * 7919L + 2015550100L) % 10000000000L;
+      String d = String.valueOf(10000000000L + digits).substring(1);
+      row.append("+1(").append(d, 0, 3).append(')').append(d, 3, 6).append('-').append(d, 6, 10);
+   }
+
+   static void appendWords(StringBuilder row, Random random, int min, int max){
+      int n = min + random.nextInt(max - min + 1);
+      for (int w = 0; w < n; w++)
+         row.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+   }
+
+   static void appendTwoDigits(StringBuilder row, int value){
+      row.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+   }
+
+   /** One partition of one file. */
+   interface Part {
+      byte[] generate(int partition);
+   }//end Part
+
+   // ---- the files ------------------------------------------------------
+
+   byte[] usrPart(int p){
+      Random random = random(USER, p);
+      StringBuilder rows = new StringBuilder(PARTITION * 90);
+      for (int u = p * PARTITION, end = Math.min(users, u + PARTITION); u < end; u++){
+         rows.append(login(u)).append(';');
+         appendPhone(rows, u);
+         rows.append(';');
+         for (int i = 0; i < 36; i++)
+            rows.append(Character.forDigit(random.nextInt(16), 16));
+         rows.append(';');
+         appendWords(rows, random, 2, 4);
+         rows.append(';').append(2 * u).append(';').append(2 * u + 1).append('\n');
+      }
+      return rows.toString().getBytes(ASCII);
+   }
+
+   byte[] usrListPart(int p){
+      StringBuilder rows = new StringBuilder(PARTITION * 24);
+      for (int u = p * PARTITION, end = Math.min(users, u + PARTITION); u < end; u++)
+         rows.append(2 * u).append(";block\n").append(2 * u + 1).append(";contact\n");
+      return rows.toString().getBytes(ASCII);
+   }
+
+   byte[] usrListContainsPart(int p){
+      // independent of usrPart's Random, so either file can change alone
+      Random random = random(USER, -1 - p);
+      StringBuilder rows = new StringBuilder(PARTITION * 40);
+      int[] picked = new int[MAX_CONTACTS];
+      for (int u = p * PARTITION, end = Math.min(users, u + PARTITION); u < end; u++){
+         int contacts = Math.min(users - 1, (int) pareto(random, CONTACT_ALPHA, MAX_CONTACTS) - 1);
+         int blocked = random.nextInt(10) == 0 ? 1 + random.nextInt(3) : 0;
+         int n = 0;
+         while (n < Math.min(users - 1, Math.min(MAX_CONTACTS, contacts + blocked))){
+            int member = popularUser(random);
+            boolean seen = member == u;
+            for (int i = 0; i < n && !seen; i++)
+               seen = picked[i] == member;
+            if (seen)
+               continue;
+            picked[n] = member;
+            rows.append(n < contacts ? 2 * u + 1 : 2 * u).append(';').append(login(member)).append('\n');
+            n++;
+         }
+      }
+      return rows.toString().getBytes(ASCII);
+   }
+
+   byte[] chatPart(int p){
+      StringBuilder rows = new StringBuilder(PARTITION * 40);
+      for (int c = p * PARTITION, end = Math.min(chats, c + PARTITION); c < end; c++){
+         int[] members = chatMembers(c);
+         rows.append(c).append(members.length == 2 ? ";private;" : ";group;").append(login(members[0])).append('\n');
+      }
+      return rows.toString().getBytes(ASCII);
+   }
+
+   byte[] chatListPart(int p){
+      // fewer chats per partition, their members are many rows
+      int per = PARTITION / 8;
+      StringBuilder rows = new StringBuilder(per * 200);
+      for (int c = p * per, end = Math.min(chats, c + per); c < end; c++){
+         for (int member : chatMembers(c))
+            rows.append(c).append(';').append(login(member)).append('\n');
+      }
+      return rows.toString().getBytes(ASCII);
+   }
+
+   byte[] messagePart(int p){
+      Random random = random(MESSAGE, p);
+      long first = (long) p * PARTITION;
+      long end = Math.min(firstMessage[chats], first + PARTITION);
+      StringBuilder rows = new StringBuilder(PARTITION * 110);
+      // the chat holding the partition's first message
+      int lo = 0, hi = chats - 1;
+      while (lo < hi){
+         int mid = (lo + hi + 1) >>> 1;
+         if (firstMessage[mid] <= first) lo = mid; else hi = mid - 1;
+      }
+      int c = lo;
+      int[] members = null;
+      long span = (long) DAYS * 86400;
+      for (long id = first; id < end; id++){
+         while (id >= firstMessage[c + 1]){
+            c++;
+            members = null;
+         }
+         if (members == null)
+            members = chatMembers(c);
+         long count = firstMessage[c + 1] - firstMessage[c];
+         long j = id - firstMessage[c];
+         // evenly over the period, jittered within the step so they stay ordered
+         long step = span / count;
+         long second = j * step + (step > 1 ? (long) (random.nextDouble() * step) : 0);
+         // the first members of a chat do most of the talking
+         int sender = members[(int) (members.length * Math.pow(random.nextDouble(), 2.0))];
+         rows.append(id).append(';');
+         appendWords(rows, random, 3, 25);
+         rows.append(';').append(dayStrings[(int) (second / 86400)]).append(' ');
+         int inDay = (int) (second % 86400);
+         appendTwoDigits(rows, inDay / 3600);
+         rows.append(':');
+         appendTwoDigits(rows, inDay / 60 % 60);
+         rows.append(':');
+         appendTwoDigits(rows, inDay % 60);
+         rows.append(';').append(login(sender)).append(';').append(c).append('\n');
+      }
+      return rows.toString().getBytes(ASCII);
+   }
+
+   // ---- writing --------------------------------------------------------
+
+   /*
+    * Generates the partitions of one file on the pool and writes them in
+    * order, with at most 2 per thread waiting to be written
+    **/
+   static long write(ExecutorService pool, int threads, File file, int partitions, final Part part)
+      throws Exception {
+      ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+      FileOutputStream out = new FileOutputStream(file);
+      long bytes = 0;
+      try {
+         int next = 0;
+         while (next < partitions || !pending.isEmpty()){
+            while (next < partitions && pending.size() < 2 * threads){
+               final int p = next++;
+               pending.add(pool.submit(new Callable<byte[]>(){
+                  public byte[] call(){
+                     return part.generate(p);
+                  }
+               }));
+            }
+            byte[] chunk = pending.poll().get();
+            out.write(chunk);
+            bytes += chunk.length;
+         }
+      } finally {
+         out.close();
+      }
+      return bytes;
+   }
+
+   static int partitions(long rows, int per){
+      return (int) ((rows + per - 1) / per);
+   }
+
+   /**
+    * Writes all six files into dir.
+    *
+    * @return the number of bytes written
+    */
+   static long writeAll(ExecutorService pool, int threads, File dir, final DataGenerator data) throws Exception {
+      int userParts = partitions(data.users, PARTITION);
+      long bytes = 0;
+      bytes += write(pool, threads, new File(dir, "usr_list.csv"), userParts, new Part(){
+         public byte[] generate(int p){ return data.usrListPart(p); }
+      });
+      bytes += write(pool, threads, new File(dir, "usr.csv"), userParts, new Part(){
+         public byte[] generate(int p){ return data.usrPart(p); }
+      });
+      bytes += write(pool, threads, new File(dir, "usr_list_contains.csv"), userParts, new Part(){
+         public byte[] generate(int p){ return data.usrListContainsPart(p); }
+      });
+      bytes += write(pool, threads, new File(dir, "chat.csv"), partitions(data.chats, PARTITION), new Part(){
+         public byte[] generate(int p){ return data.chatPart(p); }
+      });
+      bytes += write(pool, threads, new File(dir, "chat_list.csv"), partitions(data.chats, PARTITION / 8), new Part(){
+         public byte[] generate(int p){ return data.chatListPart(p); }
+      });
+      bytes += write(pool, threads, new File(dir, "message.csv"), partitions(data.firstMessage[data.chats], PARTITION), new Part(){
+         public byte[] generate(int p){ return data.messagePart(p); }
+      });
+      return bytes;
+   }
+
+   public static void main(String[] args) {
+      if (args.length < 2 || args.length > 4) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + DataGenerator.class.getName () +
+            " <output dir> <scale> [seed] [threads]");
+         return;
+      }//end if
+
+      ExecutorService pool = null;
+      try{
+         File dir = new File(args[0]);
+         dir.mkdirs();
+         double scale = Double.parseDouble(args[1]);
+         long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+         int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+         pool = Executors.newFixedThreadPool(threads);
+
+         long start = System.nanoTime();
+         DataGenerator data = new DataGenerator(scale, seed);
+         long bytes = writeAll(pool, threads, dir, data);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format("wrote %d users, %d chats, %d messages (%d MB) to %s in %.2fs with %d threads: %.0f MB/sec",
+                            data.users, data.chats, data.firstMessage[data.chats], bytes >> 20, dir, seconds, threads,
+                            (bytes >> 20) / Math.max(seconds, 1e-9)));
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (pool != null)
+            pool.shutdown();
+      }
+   }//end main
+
+}//end DataGenerator
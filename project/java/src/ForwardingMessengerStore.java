@@ -0,0 +1,140 @@
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MessengerStore that passes every call to another store. Decorators such
+ * as RateLimitedStore extend it and override only the operations they
+ * change.
+ */
+public abstract class ForwardingMessengerStore implements MessengerStore {
+
+   protected final MessengerStore delegate;
+
+   protected ForwardingMessengerStore(MessengerStore delegate){
+      this.delegate = delegate;
+   }
+
+   public void createUser(String login, String password, String phoneNum) throws SQLException {
+      delegate.createUser(login, password, phoneNum);
+   }
+
+   public boolean authenticate(String login, String password) throws SQLException {
+      return delegate.authenticate(login, password);
+   }
+
+   public boolean userExists(String login) throws SQLException {
+      return delegate.userExists(login);
+   }
+
+   public void deleteUser(String login) throws SQLException {
+      delegate.deleteUser(login);
+   }
+
+   public List<User> listUsers() throws SQLException {
+      return delegate.listUsers();
+   }
+
+   public String getStatus(String login) throws SQLException {
+      return delegate.getStatus(login);
+   }
+
+   public void setStatus(String login, String status) throws SQLException {
+      delegate.setStatus(login, status);
+   }
+
+   public boolean addToList(String owner, ListType type, String member) throws SQLException {
+      return delegate.addToList(owner, type, member);
+   }
+
+   public boolean removeFromList(String owner, ListType type, String member) throws SQLException {
+      return delegate.removeFromList(owner, type, member);
+   }
+
+   public boolean listContains(String owner, ListType type, String member) throws SQLException {
+      return delegate.listContains(owner, type, member);
+   }
+
+   public List<User> listMembers(String owner, ListType type) throws SQLException {
+      return delegate.listMembers(owner, type);
+   }
+
+   public List<String> syncContacts(String owner, Collection<String> phoneNums) throws SQLException {
+      return delegate.syncContacts(owner, phoneNums);
+   }
+
+   public int createChat(String initSender, String chatType, Collection<String> members) throws SQLException {
+      return delegate.createChat(initSender, chatType, members);
+   }
+
+   public void deleteChat(int chatId) throws SQLException {
+      delegate.deleteChat(chatId);
+   }
+
+   public boolean isMember(int chatId, String login) throws SQLException {
+      return delegate.isMember(chatId, login);
+   }
+
+   public boolean isInitSender(int chatId, String login) throws SQLException {
+      return delegate.isInitSender(chatId, login);
+   }
+
+   public List<String> chatMembers(int chatId) throws SQLException {
+      return delegate.chatMembers(chatId);
+   }
+
+   public void addMember(int chatId, String login) throws SQLException {
+      delegate.addMember(chatId, login);
+   }
+
+   public void removeMember(int chatId, String login) throws SQLException {
+      delegate.removeMember(chatId, login);
+   }
+   public Map<String, String> validateRecipients(String requester, int chatId, Collection<String> logins) throws SQLException {
+      return delegate.validateRecipients(requester, chatId, logins);
+   }
+   public void addMembers(int chatId, Collection<String> logins) throws SQLException {
+      delegate.addMembers(chatId, logins);
+   }
+   public List<String> removeMembers(int chatId, Collection<String> logins) throws SQLException {
+      return delegate.removeMembers(chatId, logins);
+   }
+
+   public List<ChatSummary> listChats(String login) throws SQLException {
+      return delegate.listChats(login);
+   }
+
+   public int postMessage(int chatId, String sender, String text, String clientKey) throws SQLException {
+      return delegate.postMessage(chatId, sender, text, clientKey);
+   }
+
+   public void editMessage(int msgId, String text) throws SQLException {
+      delegate.editMessage(msgId, text);
+   }
+
+   public void deleteMessage(int msgId) throws SQLException {
+      delegate.deleteMessage(msgId);
+   }
+
+   public boolean isMessageSender(int chatId, int msgId, String login) throws SQLException {
+      return delegate.isMessageSender(chatId, msgId, login);
+   }
+
+   public Message getMessage(int msgId) throws SQLException {
+      return delegate.getMessage(msgId);
+   }
+
+   public List<Message> getMessages(int chatId, int limit, int offset) throws SQLException {
+      return delegate.getMessages(chatId, limit, offset);
+   }
+
+   public List<Message> getFeed(String login, int limit, int offset) throws SQLException {
+      return delegate.getFeed(login, limit, offset);
+   }
+
+   public SyncPage sync(String login, String watermark, int limit) throws SQLException {
+      return delegate.sync(login, watermark, limit);
+   }
+
+}//end ForwardingMessengerStore
@@ -0,0 +1,74 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Store decorator that serves recent pages of chat history from a
+ * MessageLog instead of the database, and appends every message it posts,
+ * edits or deletes to that log. Several of these, each over its own
+ * connection, may share one MessageLog.
+ */
+public class HotLogStore extends ForwardingMessengerStore {
+
+   private final MessageLog log;
+
+   public HotLogStore(MessengerStore delegate, MessageLog log){
+      super(delegate);
+      this.log = log;
+   }
+
+   /**
+    * @return delegate served from log, or delegate itself if log is null
+    */
+   public static MessengerStore wrap(MessengerStore delegate, MessageLog log){
+      return log == null ? delegate : new HotLogStore(delegate, log);
+   }
+
+   public int postMessage(int chatId, String sender, String text, String clientKey) throws SQLException {
+      int msgId = super.postMessage(chatId, sender, text, clientKey);
+      // a chat without an open segment is read from the database when it is
+      // opened; otherwise the stored row carries the database's msg_timestamp,
+      // and a send resolved to an earlier message by its client key is
+      // skipped by the log
+      if (!log.isOpen(chatId))
+         return msgId;
+      Message posted = delegate.getMessage(msgId);
+      if (posted != null)
+         log.append(MessageLog.POST, posted);
+      return msgId;
+   }
+
+   public void editMessage(int msgId, String text) throws SQLException {
+      super.editMessage(msgId, text);
+      if (log.chatOf(msgId) < 0)
+         return;
+      // edits are rare; read back the full row so the record stands alone
+      Message edited = delegate.getMessage(msgId);
+      if (edited != null)
+         log.append(MessageLog.EDIT, edited);
+   }
+
+   public void deleteMessage(int msgId) throws SQLException {
+      int chatId = log.chatOf(msgId);
+      super.deleteMessage(msgId);
+      // a DELETE record needs nothing but the id
+      if (chatId >= 0)
+         log.append(MessageLog.DELETE, new Message(msgId, chatId, null, null, 0L));
+   }
+
+   public void deleteChat(int chatId) throws SQLException {
+      super.deleteChat(chatId);
+      log.drop(chatId);
+   }
+
+   public void deleteUser(String login) throws SQLException {
+      super.deleteUser(login);
+      // the cascade removed their messages from chats we cannot name
+      log.dropAll();
+   }
+
+   public List<Message> getMessages(int chatId, int limit, int offset) throws SQLException {
+      List<Message> page = log.page(chatId, limit, offset, delegate);
+      return page != null ? page : super.getMessages(chatId, limit, offset);
+   }
+
+}//end HotLogStore
@@ -0,0 +1,72 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out ids from a Postgres sequence without a round trip per insert.
+ * Ids are reserved a block at a time with one query; taking one from the
+ * current block is a single atomic increment, so callers supply the id in
+ * their INSERT instead of reading it back with currval().
+ *
+ * Other writers can keep using the sequence's DEFAULT: every id taken from
+ * the sequence belongs to exactly one client. Ids are increasing per block,
+ * but a block can be used long after it was reserved, so with blocks of
+ * more than one id a quiet client's ids fall behind those of busier ones.
+ * Ids of a block not used before the process exits are skipped.
+ *
+ * Chat ids come in blocks of -Dmessenger.id.block (default 100). Message
+ * ids do not use it: the feed, the inbox and the hot log order messages by
+ * msg_id and must see them in send order across clients, so a message
+ * takes its id from the sequence DEFAULT and reads it back with RETURNING
+ * in the same round trip as the INSERT.
+ */
+public class IdAllocator {
+
+   static final int BLOCK = Integer.getInteger("messenger.id.block", 100);
+
+   private static final class Block {
+      final int[] ids;
+      final AtomicInteger next = new AtomicInteger();
+
+      Block(int[] ids){
+         this.ids = ids;
+      }
+   }//end Block
+
+   private final Messenger esql;
+   private final String sequence;
+   private final int size;
+   private volatile Block current = new Block(new int[0]);
+
+   public IdAllocator(Messenger esql, String sequence, int size){
+      this.esql = esql;
+      this.sequence = sequence;
+      this.size = size;
+   }
+
+   /** @return an id no one else has been or will be given */
+   public int next() throws SQLException {
+      while (true){
+         Block block = current;
+         int i = block.next.getAndIncrement();
+         if (i < block.ids.length)
+            return block.ids[i];
+         refill(block);
+      }
+   }
+
+   /*
+    * Reserves a new block unless another thread already replaced the exhausted one
+    **/
+   private synchronized void refill(Block exhausted) throws SQLException {
+      if (current != exhausted)
+         return;
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT nextval('%s') FROM generate_series(1, %d)", sequence, size));
+      int[] ids = new int[rows.size()];
+      for (int i = 0; i < ids.length; i++)
+         ids[i] = Integer.parseInt(rows.get(i).get(0));
+      current = new Block(ids);
+   }
+
+}//end IdAllocator
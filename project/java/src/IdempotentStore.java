@@ -0,0 +1,37 @@
+import java.sql.SQLException;
+
+/**
+ * Store decorator that answers retried message sends from memory. A send
+ * whose (sender, client key) pair is in the recent-key cache returns the
+ * msg_id stored the first time without touching the database or the rate
+ * limiter; anything else goes through, where the unique index on
+ * MESSAGE(sender_id, client_key) catches duplicates the cache missed.
+ *
+ * The cache holds -Dmessenger.dedup.cache keys (default 10000).
+ */
+public class IdempotentStore extends ForwardingMessengerStore {
+
+   private final RecentKeyCache recent;
+
+   public IdempotentStore(MessengerStore delegate, RecentKeyCache recent){
+      super(delegate);
+      this.recent = recent;
+   }
+
+   public static IdempotentStore fromSystemProperties(MessengerStore delegate){
+      return new IdempotentStore(delegate, new RecentKeyCache(Integer.getInteger("messenger.dedup.cache", 10000)));
+   }
+
+   public int postMessage(int chatId, String sender, String text, String clientKey) throws SQLException {
+      if (clientKey == null)
+         return super.postMessage(chatId, sender, text, null);
+      String key = sender + '\u0000' + clientKey;
+      Integer msgId = recent.get(key);
+      if (msgId != null)
+         return msgId;
+      int stored = super.postMessage(chatId, sender, text, clientKey);
+      recent.put(key, stored);
+      return stored;
+   }
+
+}//end IdempotentStore
@@ -0,0 +1,824 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * MessengerStore that keeps everything on the heap. It mirrors the
+ * constraints of the SQL schema (unique login and phone number, foreign keys,
+ * ON DELETE CASCADE) so menus behave the same as against Postgres, and is
+ * meant for tests and for benchmarking the application without a database.
+ *
+ * Logins are interned to int ids once, after which every list, membership
+ * and message lookup works on primitive keys. Each chat keeps its messages in
+ * append-only parallel arrays ordered by msg_id; edits replace the text in
+ * place and deletes leave a tombstone. Every post, edit and delete is also
+ * numbered in a per-chat change list, and every join and leave in a
+ * per-user one: the counterparts of CHANGE_LOG that sync() reads.
+ *
+ * A single read/write lock guards the store: lookups run concurrently,
+ * updates are serialized.
+ */
+public class InMemoryMessengerStore implements MessengerStore {
+
+   private static final String UNIQUE_VIOLATION = "23505";
+   private static final String FOREIGN_KEY_VIOLATION = "23503";
+
+   // kinds of message changes
+   private static final byte POSTED = 1;
+   private static final byte EDITED = 2;
+   private static final byte DELETED = 3;
+   // kinds of membership changes
+   private static final byte JOINED = 4;
+   private static final byte LEFT = 5;
+
+   private static final class UserRec {
+      final String login;
+      final String password;
+      final String phoneNum;
+      String status;
+      final IntHashSet contacts = new IntHashSet();
+      final IntHashSet blocks = new IntHashSet();
+      final IntHashSet chats = new IntHashSet();
+      // joins and leaves, oldest first: store-wide change number, chat_id, kind
+      long[] changeIds = new long[4];
+      int[] changeChats = new int[4];
+      byte[] changeOps = new byte[4];
+      int changes;
+
+      UserRec(String login, String password, String phoneNum){
+         this.login = login;
+         this.password = password;
+         this.phoneNum = phoneNum;
+      }
+
+      void logChange(long changeId, int chatId, byte op){
+         if (changes == changeIds.length){
+            int capacity = changes << 1;
+            changeIds = Arrays.copyOf(changeIds, capacity);
+            changeChats = Arrays.copyOf(changeChats, capacity);
+            changeOps = Arrays.copyOf(changeOps, capacity);
+         }
+         changeIds[changes] = changeId;
+         changeChats[changes] = chatId;
+         changeOps[changes] = op;
+         changes++;
+      }
+   }//end UserRec
+
+   private static final class ChatRec {
+      final String chatType;
+      final int initSender;
+      final IntHashSet members = new IntHashSet();
+      // append-only message log, ordered by msg_id
+      int[] ids = new int[8];
+      int[] senders = new int[8];
+      long[] stamps = new long[8];
+      String[] texts = new String[8];
+      // sender + client key of each message, null if sent without a key
+      String[] keys = new String[8];
+      int count;
+      int live;
+      // changes to messages, oldest first: store-wide change number, msg_id, kind
+      long[] changeIds = new long[8];
+      int[] changeMsgs = new int[8];
+      byte[] changeOps = new byte[8];
+      int changes;
+
+      ChatRec(String chatType, int initSender){
+         this.chatType = chatType;
+         this.initSender = initSender;
+      }
+
+      void append(int msgId, int sender, long stamp, String text, String key){
+         if (count == ids.length){
+            int capacity = count << 1;
+            ids = Arrays.copyOf(ids, capacity);
+            senders = Arrays.copyOf(senders, capacity);
+            stamps = Arrays.copyOf(stamps, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+         }
+         ids[count] = msgId;
+         senders[count] = sender;
+         stamps[count] = stamp;
+         texts[count] = text;
+         keys[count] = key;
+         count++;
+         live++;
+      }
+
+      void logChange(long changeId, int msgId, byte op){
+         if (changes == changeIds.length){
+            int capacity = changes << 1;
+            changeIds = Arrays.copyOf(changeIds, capacity);
+            changeMsgs = Arrays.copyOf(changeMsgs, capacity);
+            changeOps = Arrays.copyOf(changeOps, capacity);
+         }
+         changeIds[changes] = changeId;
+         changeMsgs[changes] = msgId;
+         changeOps[changes] = op;
+         changes++;
+      }
+
+      /** @return the slot of a live message, or -1 */
+      int slot(int msgId){
+         int i = Arrays.binarySearch(ids, 0, count, msgId);
+         return i >= 0 && texts[i] != null ? i : -1;
+      }
+   }//end ChatRec
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   // login and phone number -> interned user id
+   private final HashMap<String, Integer> userIds = new HashMap<String, Integer>();
+   private final HashMap<String, Integer> phoneIds = new HashMap<String, Integer>();
+   private UserRec[] users = new UserRec[64];
+   private int nextUserId;
+
+   private ChatRec[] chats = new ChatRec[64];
+   private int nextChatId;
+
+   // msg_id -> chat_id
+   private final IntIntHashMap messageChat = new IntIntHashMap(-1);
+
+   // sender + client key -> msg_id, the unique index on MESSAGE.client_key
+   private final HashMap<String, Integer> clientKeys = new HashMap<String, Integer>();
+   private int nextMsgId;
+   private long lastChange;
+
+   private static SQLException violation(String state, String message){
+      return new SQLException(message, state);
+   }
+
+   /*
+    * Lookups; callers hold the lock
+    **/
+   private int userId(String login){
+      Integer id = login == null ? null : userIds.get(login);
+      return id == null ? -1 : id;
+   }
+
+   private int requireUser(String login) throws SQLException {
+      int id = userId(login);
+      if (id < 0)
+         throw violation(FOREIGN_KEY_VIOLATION, "User " + login + " does not exist");
+      return id;
+   }
+
+   private ChatRec chat(int chatId){
+      return chatId >= 0 && chatId < nextChatId ? chats[chatId] : null;
+   }
+
+   private ChatRec requireChat(int chatId) throws SQLException {
+      ChatRec chat = chat(chatId);
+      if (chat == null)
+         throw violation(FOREIGN_KEY_VIOLATION, "Chat " + chatId + " does not exist");
+      return chat;
+   }
+
+   /*
+    * Deletes the message in a slot; callers hold the write lock
+    **/
+   private void join(int userId, int chatId){
+      users[userId].chats.add(chatId);
+      users[userId].logChange(++lastChange, chatId, JOINED);
+   }
+
+   private void leave(int userId, int chatId){
+      users[userId].chats.remove(chatId);
+      users[userId].logChange(++lastChange, chatId, LEFT);
+   }
+
+   private void tombstone(ChatRec chat, int slot){
+      chat.logChange(++lastChange, chat.ids[slot], DELETED);
+      chat.texts[slot] = null;
+      chat.live--;
+      messageChat.remove(chat.ids[slot]);
+      if (chat.keys[slot] != null)
+         clientKeys.remove(chat.keys[slot]);
+   }
+
+   private IntHashSet list(UserRec owner, ListType type){
+      return type == ListType.CONTACT ? owner.contacts : owner.blocks;
+   }
+
+   private User toUser(int id){
+      UserRec rec = users[id];
+      return new User(rec.login, rec.phoneNum, rec.status);
+   }
+
+   private Message toMessage(int chatId, ChatRec chat, int slot){
+      return new Message(chat.ids[slot], chatId, users[chat.senders[slot]] == null ? null : users[chat.senders[slot]].login,
+                         chat.texts[slot], chat.stamps[slot]);
+   }
+
+   // ---- users ----------------------------------------------------------
+
+   public void createUser(String login, String password, String phoneNum) throws SQLException {
+      if (login == null || password == null || phoneNum == null)
+         throw new SQLException("login, password and phone number are required");
+      lock.writeLock().lock();
+      try {
+         if (userIds.containsKey(login))
+            throw violation(UNIQUE_VIOLATION, "Login " + login + " already exists");
+         if (phoneIds.containsKey(phoneNum))
+            throw violation(UNIQUE_VIOLATION, "Phone number " + phoneNum + " already exists");
+         int id = nextUserId++;
+         if (id == users.length)
+            users = Arrays.copyOf(users, id << 1);
+         users[id] = new UserRec(login, password, phoneNum);
+         userIds.put(login, id);
+         phoneIds.put(phoneNum, id);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public boolean authenticate(String login, String password) throws SQLException {
+      lock.readLock().lock();
+      try {
+         int id = userId(login);
+         return id >= 0 && users[id].password.equals(password);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public boolean userExists(String login) throws SQLException {
+      lock.readLock().lock();
+      try {
+         return userId(login) >= 0;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public void deleteUser(String login) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         int id = userId(login);
+         if (id < 0)
+            return;
+         UserRec rec = users[id];
+         // ON DELETE CASCADE: chats started by the user, their memberships,
+         // their messages and their appearances on other users' lists
+         for (int chatId = 0; chatId < nextChatId; chatId++){
+            ChatRec chat = chats[chatId];
+            if (chat == null)
+               continue;
+            if (chat.initSender == id){
+               dropChat(chatId);
+               continue;
+            }
+            chat.members.remove(id);
+            for (int i = 0; i < chat.count; i++){
+               if (chat.senders[i] == id && chat.texts[i] != null)
+                  tombstone(chat, i);
+            }
+         }
+         for (int other = 0; other < nextUserId; other++){
+            if (users[other] != null){
+               users[other].contacts.remove(id);
+               users[other].blocks.remove(id);
+            }
+         }
+         userIds.remove(rec.login);
+         phoneIds.remove(rec.phoneNum);
+         users[id] = null;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public List<User> listUsers() throws SQLException {
+      lock.readLock().lock();
+      try {
+         List<User> result = new ArrayList<User>(userIds.size());
+         for (int id = 0; id < nextUserId; id++)
+            if (users[id] != null)
+               result.add(toUser(id));
+         return result;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public String getStatus(String login) throws SQLException {
+      lock.readLock().lock();
+      try {
+         int id = userId(login);
+         return id < 0 ? null : users[id].status;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public void setStatus(String login, String status) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         int id = userId(login);
+         if (id >= 0)
+            users[id].status = status;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // ---- contact / block lists -----------------------------------------
+
+   public boolean addToList(String owner, ListType type, String member) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         int memberId = userId(member);
+         if (memberId < 0)
+            return false;
+         if (!list(users[requireUser(owner)], type).add(memberId))
+            throw violation(UNIQUE_VIOLATION, member + " is already on the " + type.sqlName() + " list");
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public boolean removeFromList(String owner, ListType type, String member) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         int ownerId = userId(owner);
+         int memberId = userId(member);
+         return ownerId >= 0 && memberId >= 0 && list(users[ownerId], type).remove(memberId);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public boolean listContains(String owner, ListType type, String member) throws SQLException {
+      lock.readLock().lock();
+      try {
+         int ownerId = userId(owner);
+         int memberId = userId(member);
+         return ownerId >= 0 && memberId >= 0 && list(users[ownerId], type).contains(memberId);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public List<User> listMembers(String owner, ListType type) throws SQLException {
+      lock.readLock().lock();
+      try {
+         int ownerId = userId(owner);
+         if (ownerId < 0)
+            return Collections.emptyList();
+         int[] ids = list(users[ownerId], type).toArray();
+         List<User> members = new ArrayList<User>(ids.length);
+         for (int id : ids)
+            members.add(toUser(id));
+         return members;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // ---- chats and membership ------------------------------------------
+
+   public List<String> syncContacts(String owner, Collection<String> phoneNums) throws SQLException {
+      HashSet<String> book = new HashSet<String>();
+      for (String phone : phoneNums)
+         book.add(LoginIndex.normalizePhone(phone));
+      book.remove("");
+      lock.writeLock().lock();
+      try {
+         int ownerId = requireUser(owner);
+         IntHashSet contacts = users[ownerId].contacts;
+         List<String> added = new ArrayList<String>();
+         // a hash join of the address book with every user's phone
+         for (int id = 0; id < nextUserId; id++){
+            UserRec user = users[id];
+            if (user == null || id == ownerId || contacts.contains(id))
+               continue;
+            if (book.contains(LoginIndex.normalizePhone(user.phoneNum))){
+               contacts.add(id);
+               added.add(user.login);
+            }
+         }
+         return added;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public int createChat(String initSender, String chatType, Collection<String> members) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         int senderId = requireUser(initSender);
+         int[] memberIds = new int[members.size()];
+         int n = 0;
+         for (String member : members)
+            memberIds[n++] = requireUser(member);
+         int chatId = nextChatId++;
+         if (chatId == chats.length)
+            chats = Arrays.copyOf(chats, chatId << 1);
+         ChatRec chat = new ChatRec(chatType, senderId);
+         chats[chatId] = chat;
+         for (int id : memberIds){
+            chat.members.add(id);
+            join(id, chatId);
+         }
+         return chatId;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public void deleteChat(int chatId) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         if (chat(chatId) != null)
+            dropChat(chatId);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   private void dropChat(int chatId){
+      ChatRec chat = chats[chatId];
+      for (int member : chat.members.toArray())
+         leave(member, chatId);
+      for (int i = 0; i < chat.count; i++)
+         if (chat.texts[i] != null)
+            tombstone(chat, i);
+      chats[chatId] = null;
+   }
+
+   public boolean isMember(int chatId, String login) throws SQLException {
+      lock.readLock().lock();
+      try {
+         ChatRec chat = chat(chatId);
+         int id = userId(login);
+         return chat != null && id >= 0 && chat.members.contains(id);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public boolean isInitSender(int chatId, String login) throws SQLException {
+      lock.readLock().lock();
+      try {
+         ChatRec chat = chat(chatId);
+         return chat != null && chat.initSender == userId(login);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public List<String> chatMembers(int chatId) throws SQLException {
+      lock.readLock().lock();
+      try {
+         ChatRec chat = chat(chatId);
+         if (chat == null)
+            return Collections.emptyList();
+         int[] ids = chat.members.toArray();
+         List<String> members = new ArrayList<String>(ids.length);
+         for (int id : ids)
+            members.add(users[id].login);
+         return members;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public void addMember(int chatId, String login) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         ChatRec chat = requireChat(chatId);
+         int id = requireUser(login);
+         if (!chat.members.add(id))
+            throw violation(UNIQUE_VIOLATION, login + " is already a member of chat " + chatId);
+         join(id, chatId);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public void removeMember(int chatId, String login) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         ChatRec chat = chat(chatId);
+         int id = userId(login);
+         if (chat != null && id >= 0 && chat.members.remove(id))
+            leave(id, chatId);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public Map<String, String> validateRecipients(String requester, int chatId, Collection<String> logins) throws SQLException {
+      lock.readLock().lock();
+      try {
+         Map<String, String> rejected = new LinkedHashMap<String, String>();
+         int requesterId = userId(requester);
+         ChatRec chat = chat(chatId);
+         for (String login : logins){
+            int id = userId(login);
+            if (id < 0)
+               rejected.put(login, NO_SUCH_USER);
+            else if (requesterId >= 0 && users[id].blocks.contains(requesterId))
+               rejected.put(login, BLOCKED);
+            else if (chat != null && chat.members.contains(id))
+               rejected.put(login, ALREADY_MEMBER);
+         }
+         return rejected;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public void addMembers(int chatId, Collection<String> logins) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         ChatRec chat = requireChat(chatId);
+         // check everything before changing anything, like a rolled back transaction
+         LinkedHashSet<String> distinct = new LinkedHashSet<String>(logins);
+         int[] ids = new int[distinct.size()];
+         int n = 0;
+         for (String login : distinct){
+            int id = requireUser(login);
+            if (chat.members.contains(id))
+               throw violation(UNIQUE_VIOLATION, login + " is already a member of chat " + chatId);
+            ids[n++] = id;
+         }
+         for (int id : ids){
+            chat.members.add(id);
+            join(id, chatId);
+         }
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public List<String> removeMembers(int chatId, Collection<String> logins) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         List<String> removed = new ArrayList<String>();
+         ChatRec chat = chat(chatId);
+         if (chat == null)
+            return removed;
+         for (String login : logins){
+            int id = userId(login);
+            if (id >= 0 && chat.members.remove(id)){
+               leave(id, chatId);
+               removed.add(login);
+            }
+         }
+         return removed;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public List<ChatSummary> listChats(String login) throws SQLException {
+      lock.readLock().lock();
+      try {
+         int id = userId(login);
+         if (id < 0)
+            return Collections.emptyList();
+         List<ChatSummary> result = new ArrayList<ChatSummary>();
+         for (int chatId : users[id].chats.toArray()){
+            ChatRec chat = chats[chatId];
+            for (int i = chat.count - 1; i >= 0; i--){
+               if (chat.texts[i] != null){
+                  result.add(new ChatSummary(chatId, users[chat.senders[i]].login, chat.stamps[i]));
+                  break;
+               }
+            }
+         }
+         Collections.sort(result, new Comparator<ChatSummary>(){
+            public int compare(ChatSummary a, ChatSummary b){
+               return Long.compare(b.latestTimestamp, a.latestTimestamp);
+            }
+         });
+         return result;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // ---- messages -------------------------------------------------------
+
+   public int postMessage(int chatId, String sender, String text, String clientKey) throws SQLException {
+      if (text == null)
+         throw new SQLException("msg_text may not be null");
+      lock.writeLock().lock();
+      try {
+         ChatRec chat = requireChat(chatId);
+         int senderId = requireUser(sender);
+         String key = clientKey == null ? null : senderId + ":" + clientKey;
+         if (key != null){
+            Integer existing = clientKeys.get(key);
+            if (existing != null)
+               return existing;
+         }
+         int msgId = nextMsgId++;
+         chat.append(msgId, senderId, System.currentTimeMillis(), text, key);
+         chat.logChange(++lastChange, msgId, POSTED);
+         messageChat.put(msgId, chatId);
+         if (key != null)
+            clientKeys.put(key, msgId);
+         return msgId;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public void editMessage(int msgId, String text) throws SQLException {
+      if (text == null)
+         throw new SQLException("msg_text may not be null");
+      lock.writeLock().lock();
+      try {
+         int chatId = messageChat.get(msgId);
+         if (chatId < 0)
+            return;
+         ChatRec chat = chats[chatId];
+         chat.texts[chat.slot(msgId)] = text;
+         chat.logChange(++lastChange, msgId, EDITED);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public void deleteMessage(int msgId) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         int chatId = messageChat.get(msgId);
+         if (chatId < 0)
+            return;
+         ChatRec chat = chats[chatId];
+         tombstone(chat, chat.slot(msgId));
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public boolean isMessageSender(int chatId, int msgId, String login) throws SQLException {
+      lock.readLock().lock();
+      try {
+         if (messageChat.get(msgId) != chatId)
+            return false;
+         ChatRec chat = chats[chatId];
+         return chat.senders[chat.slot(msgId)] == userId(login);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public Message getMessage(int msgId) throws SQLException {
+      lock.readLock().lock();
+      try {
+         int chatId = messageChat.get(msgId);
+         if (chatId < 0)
+            return null;
+         ChatRec chat = chats[chatId];
+         return toMessage(chatId, chat, chat.slot(msgId));
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public List<Message> getFeed(String login, int limit, int offset) throws SQLException {
+      lock.readLock().lock();
+      try {
+         int id = userId(login);
+         if (id < 0)
+            return Collections.emptyList();
+         // fan-out-on-read: the newest limit + offset messages of every chat
+         List<Message> window = new ArrayList<Message>();
+         for (int chatId : users[id].chats.toArray()){
+            ChatRec chat = chats[chatId];
+            int taken = 0;
+            for (int i = chat.count - 1; i >= 0 && taken < limit + offset; i--){
+               if (chat.texts[i] != null){
+                  window.add(toMessage(chatId, chat, i));
+                  taken++;
+               }
+            }
+         }
+         Collections.sort(window, new Comparator<Message>(){
+            public int compare(Message a, Message b){
+               return Integer.compare(b.msgId, a.msgId);
+            }
+         });
+         return offset >= window.size() ? Collections.<Message>emptyList()
+                : new ArrayList<Message>(window.subList(offset, Math.min(window.size(), offset + limit)));
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public SyncPage sync(String login, String watermark, int limit) throws SQLException {
+      lock.readLock().lock();
+      try {
+         List<Message> posted = new ArrayList<Message>();
+         List<Message> edited = new ArrayList<Message>();
+         List<Integer> deleted = new ArrayList<Integer>();
+         List<Integer> joined = new ArrayList<Integer>();
+         List<Integer> left = new ArrayList<Integer>();
+         // the same "txid:change_id" form as the SQL store, with no transactions
+         long from = watermark == null ? lastChange : SqlMessengerStore.parseWatermark(watermark)[1];
+         int id = userId(login);
+         if (id < 0 || watermark == null)
+            return new SyncPage(posted, edited, deleted, joined, left, "0:" + from, false, false);
+         // the changes after from in each of the user's chats, as {change, chat, index},
+         // and the user's joins and leaves, as {change, -1, index}
+         List<long[]> window = new ArrayList<long[]>();
+         UserRec user = users[id];
+         int j = Arrays.binarySearch(user.changeIds, 0, user.changes, from);
+         for (j = j >= 0 ? j + 1 : -j - 1; j < user.changes; j++)
+            window.add(new long[] { user.changeIds[j], -1, j });
+         for (int chatId : user.chats.toArray()){
+            ChatRec chat = chats[chatId];
+            int i = Arrays.binarySearch(chat.changeIds, 0, chat.changes, from);
+            for (i = i >= 0 ? i + 1 : -i - 1; i < chat.changes; i++)
+               window.add(new long[] { chat.changeIds[i], chatId, i });
+         }
+         Collections.sort(window, new Comparator<long[]>(){
+            public int compare(long[] a, long[] b){
+               return Long.compare(a[0], b[0]);
+            }
+         });
+         boolean more = window.size() > limit;
+         if (more)
+            window = window.subList(0, limit);
+         Map<Integer, Message> posts = new LinkedHashMap<Integer, Message>();
+         Map<Integer, Message> edits = new LinkedHashMap<Integer, Message>();
+         LinkedHashSet<Integer> deletes = new LinkedHashSet<Integer>();
+         LinkedHashSet<Integer> joins = new LinkedHashSet<Integer>();
+         LinkedHashSet<Integer> leaves = new LinkedHashSet<Integer>();
+         for (long[] change : window){
+            if (change[1] < 0){
+               Integer chatId = user.changeChats[(int) change[2]];
+               if (user.changeOps[(int) change[2]] == JOINED){
+                  leaves.remove(chatId);
+                  joins.add(chatId);
+               } else {
+                  joins.remove(chatId);
+                  leaves.add(chatId);
+               }
+               continue;
+            }
+            ChatRec chat = chats[(int) change[1]];
+            int msgId = chat.changeMsgs[(int) change[2]];
+            int slot = chat.slot(msgId);
+            if (slot < 0){
+               posts.remove(msgId);
+               edits.remove(msgId);
+               deletes.add(msgId);
+            } else if (chat.changeOps[(int) change[2]] == POSTED){
+               posts.put(msgId, toMessage((int) change[1], chat, slot));
+            } else if (!posts.containsKey(msgId)){
+               edits.put(msgId, toMessage((int) change[1], chat, slot));
+            }
+         }
+         posted.addAll(posts.values());
+         edited.addAll(edits.values());
+         deleted.addAll(deletes);
+         joined.addAll(joins);
+         left.addAll(leaves);
+         String next = "0:" + (more ? window.get(window.size() - 1)[0] : lastChange);
+         return new SyncPage(posted, edited, deleted, joined, left, next, more, false);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public List<Message> getMessages(int chatId, int limit, int offset) throws SQLException {
+      lock.readLock().lock();
+      try {
+         ChatRec chat = chat(chatId);
+         if (chat == null || offset >= chat.live)
+            return Collections.emptyList();
+         List<Message> page = new ArrayList<Message>(Math.min(limit, chat.live - offset));
+         int skipped = 0;
+         for (int i = chat.count - 1; i >= 0 && page.size() < limit; i--){
+            if (chat.texts[i] == null)
+               continue;
+            if (skipped < offset)
+               skipped++;
+            else
+               page.add(toMessage(chatId, chat, i));
+         }
+         return page;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+}//end InMemoryMessengerStore
@@ -0,0 +1,57 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a chat delivers messages by fan-out-on-write (one INBOX row
+ * per member, so a member's feed is a single range scan) or fan-out-on-read
+ * (the feed reads MESSAGE for the chat directly), and keeps count of the
+ * write amplification that causes.
+ *
+ * A chat is created in write mode when it has at most
+ * -Dmessenger.inbox.threshold members (default 0, i.e. the inbox is off), and
+ * falls back to read mode for good once it grows past the threshold. The
+ * mode is stored per chat in CHAT.inbox_mode, so it can also be set by hand.
+ * A member added to a write mode chat sees messages from the time they joined.
+ */
+public class InboxPolicy {
+
+   public static final String WRITE = "write";
+   public static final String READ = "read";
+
+   private final int threshold;
+   private final AtomicLong messages = new AtomicLong();
+   private final AtomicLong inboxRows = new AtomicLong();
+
+   public InboxPolicy(int threshold){
+      this.threshold = threshold;
+   }
+
+   public static InboxPolicy fromSystemProperties(){
+      return new InboxPolicy(Integer.getInteger("messenger.inbox.threshold", 0));
+   }
+
+   public int threshold(){
+      return threshold;
+   }
+
+   /** @return the mode a chat with this many members should use */
+   public String modeFor(int members){
+      return members <= threshold ? WRITE : READ;
+   }
+
+   /** Records one posted message and the inbox rows written for it. */
+   public void recordPost(int rowsWritten){
+      messages.incrementAndGet();
+      inboxRows.addAndGet(rowsWritten);
+   }
+
+   /** @return rows written per message posted: 1 for the message plus its inbox rows */
+   public double writeAmplification(){
+      long posted = messages.get();
+      return posted == 0 ? 1.0 : 1.0 + (double) inboxRows.get() / posted;
+   }
+
+   public long messagesPosted(){
+      return messages.get();
+   }
+
+}//end InboxPolicy
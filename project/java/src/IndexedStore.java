@@ -0,0 +1,62 @@
+import java.sql.SQLException;
+
+/**
+ * Store decorator that keeps a LoginIndex in step with the users it
+ * creates and deletes. The index is filled from listUsers() the first time
+ * it is asked for, so a session that never autocompletes never pays for the
+ * full read of USR; with a CacheSnapshot it comes from local disk instead,
+ * plus the users changed since the snapshot was taken.
+ */
+public class IndexedStore extends ForwardingMessengerStore {
+
+   private final LoginIndex index = new LoginIndex();
+   private volatile boolean loaded = false;
+   // where the index is loaded from and kept, or null to read listUsers()
+   private final CacheSnapshot snapshot;
+
+   public IndexedStore(MessengerStore delegate){
+      this(delegate, null);
+   }
+
+   public IndexedStore(MessengerStore delegate, CacheSnapshot snapshot){
+      super(delegate);
+      this.snapshot = snapshot;
+   }
+
+   /**
+    * @return the login index, loading it on first use
+    */
+   public LoginIndex loginIndex() throws SQLException {
+      if (!loaded){
+         synchronized (this){
+            if (!loaded){
+               if (snapshot == null){
+                  index.load(delegate.listUsers());
+               } else {
+                  snapshot.load(index);
+                  snapshot.start();
+               }
+               loaded = true;
+            }
+         }
+      }
+      return index;
+   }
+
+   public void createUser(String login, String password, String phoneNum) throws SQLException {
+      super.createUser(login, password, phoneNum);
+      synchronized (this){
+         if (loaded)
+            index.add(login, phoneNum);
+      }
+   }
+
+   public void deleteUser(String login) throws SQLException {
+      super.deleteUser(login);
+      synchronized (this){
+         if (loaded)
+            index.remove(login);
+      }
+   }
+
+}//end IndexedStore
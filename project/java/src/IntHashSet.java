@@ -0,0 +1,103 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing set of non-negative ints. Used by the in-memory store so
+ * membership and list lookups do not box every id. Not thread safe; callers
+ * guard it with their own lock.
+ */
+public class IntHashSet {
+
+   private static final int FREE = -1;
+
+   private int[] keys;
+   private int size;
+
+   public IntHashSet(){
+      this(8);
+   }
+
+   public IntHashSet(int expected){
+      int capacity = 8;
+      while (capacity < expected * 2)
+         capacity <<= 1;
+      keys = new int[capacity];
+      Arrays.fill(keys, FREE);
+   }
+
+   static int mix(int key){
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   public int size(){
+      return size;
+   }
+
+   public boolean contains(int key){
+      int mask = keys.length - 1;
+      for (int i = mix(key) & mask; ; i = (i + 1) & mask){
+         if (keys[i] == key) return true;
+         if (keys[i] == FREE) return false;
+      }
+   }
+
+   /** @return true if the key was not already present */
+   public boolean add(int key){
+      if (key < 0)
+         throw new IllegalArgumentException("negative key " + key);
+      int mask = keys.length - 1;
+      int i = mix(key) & mask;
+      for ( ; keys[i] != FREE; i = (i + 1) & mask){
+         if (keys[i] == key) return false;
+      }
+      keys[i] = key;
+      if (++size * 2 > keys.length)
+         rehash(keys.length << 1);
+      return true;
+   }
+
+   /** @return true if the key was present */
+   public boolean remove(int key){
+      int mask = keys.length - 1;
+      int i = mix(key) & mask;
+      for ( ; keys[i] != key; i = (i + 1) & mask){
+         if (keys[i] == FREE) return false;
+      }
+      // backward shift deletion keeps probe chains intact without tombstones
+      int gap = i;
+      for (int j = (gap + 1) & mask; keys[j] != FREE; j = (j + 1) & mask){
+         int home = mix(keys[j]) & mask;
+         if (((j - home) & mask) >= ((j - gap) & mask)){
+            keys[gap] = keys[j];
+            gap = j;
+         }
+      }
+      keys[gap] = FREE;
+      size--;
+      return true;
+   }
+
+   /** @return the keys in no particular order */
+   public int[] toArray(){
+      int[] out = new int[size];
+      int n = 0;
+      for (int key : keys)
+         if (key != FREE) out[n++] = key;
+      return out;
+   }
+
+   private void rehash(int capacity){
+      int[] old = keys;
+      keys = new int[capacity];
+      Arrays.fill(keys, FREE);
+      int mask = capacity - 1;
+      for (int key : old){
+         if (key == FREE) continue;
+         int i = mix(key) & mask;
+         while (keys[i] != FREE)
+            i = (i + 1) & mask;
+         keys[i] = key;
+      }
+   }
+
+}//end IntHashSet
@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing map from non-negative int keys to int values. Companion of
+ * IntHashSet; not thread safe.
+ */
+public class IntIntHashMap {
+
+   private static final int FREE = -1;
+
+   private int[] keys;
+   private int[] values;
+   private int size;
+   private final int missing;
+
+   /**
+    * @param missing the value returned by get for absent keys
+    */
+   public IntIntHashMap(int missing){
+      this.missing = missing;
+      keys = new int[16];
+      values = new int[16];
+      Arrays.fill(keys, FREE);
+   }
+
+   public int size(){
+      return size;
+   }
+
+   public int get(int key){
+      int mask = keys.length - 1;
+      for (int i = IntHashSet.mix(key) & mask; ; i = (i + 1) & mask){
+         if (keys[i] == key) return values[i];
+         if (keys[i] == FREE) return missing;
+      }
+   }
+
+   public void put(int key, int value){
+      if (key < 0)
+         throw new IllegalArgumentException("negative key " + key);
+      int mask = keys.length - 1;
+      int i = IntHashSet.mix(key) & mask;
+      for ( ; keys[i] != FREE; i = (i + 1) & mask){
+         if (keys[i] == key){
+            values[i] = value;
+            return;
+         }
+      }
+      keys[i] = key;
+      values[i] = value;
+      if (++size * 2 > keys.length)
+         rehash(keys.length << 1);
+   }
+
+   /**
+    * Adds delta to the value of key, treating an absent key as 0.
+    *
+    * @return the new value
+    */
+   public int increment(int key, int delta){
+      int value = get(key);
+      value = (value == missing ? 0 : value) + delta;
+      put(key, value);
+      return value;
+   }
+
+   /** @return the removed value, or the missing value */
+   public int remove(int key){
+      int mask = keys.length - 1;
+      int i = IntHashSet.mix(key) & mask;
+      for ( ; keys[i] != key; i = (i + 1) & mask){
+         if (keys[i] == FREE) return missing;
+      }
+      int removed = values[i];
+      int gap = i;
+      for (int j = (gap + 1) & mask; keys[j] != FREE; j = (j + 1) & mask){
+         int home = IntHashSet.mix(keys[j]) & mask;
+         if (((j - home) & mask) >= ((j - gap) & mask)){
+            keys[gap] = keys[j];
+            values[gap] = values[j];
+            gap = j;
+         }
+      }
+      keys[gap] = FREE;
+      size--;
+      return removed;
+   }
+
+   /** @return the keys in no particular order */
+   public int[] keys(){
+      int[] out = new int[size];
+      int n = 0;
+      for (int key : keys)
+         if (key != FREE) out[n++] = key;
+      return out;
+   }
+
+   private void rehash(int capacity){
+      int[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new int[capacity];
+      values = new int[capacity];
+      Arrays.fill(keys, FREE);
+      int mask = capacity - 1;
+      for (int k = 0; k < oldKeys.length; k++){
+         if (oldKeys[k] == FREE) continue;
+         int i = IntHashSet.mix(oldKeys[k]) & mask;
+         while (keys[i] != FREE)
+            i = (i + 1) & mask;
+         keys[i] = oldKeys[k];
+         values[i] = oldValues[k];
+      }
+   }
+
+}//end IntIntHashMap
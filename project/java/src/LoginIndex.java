@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory prefix index over usr.login and usr.phoneNum for autocompleting
+ * recipients. Logins and digit-only phone numbers are kept in two sorted
+ * arrays; a lookup is a binary search for the first entry with the prefix
+ * followed by a short scan, so it never touches the database.
+ *
+ * Readers work on an immutable snapshot and take no lock. Writers (user
+ * created or deleted) copy the arrays, which is cheap at the size of the
+ * user table and rare compared to lookups.
+ */
+public class LoginIndex {
+
+   private static final class Snapshot {
+      final String[] logins;
+      // the normalized phone number of each login, so remove can find it
+      final String[] loginPhones;
+      // normalized phone numbers, sorted, with the login each belongs to
+      final String[] phones;
+      final String[] phoneLogins;
+
+      Snapshot(String[] logins, String[] loginPhones, String[] phones, String[] phoneLogins){
+         this.logins = logins;
+         this.loginPhones = loginPhones;
+         this.phones = phones;
+         this.phoneLogins = phoneLogins;
+      }
+   }//end Snapshot
+
+   // matches looked at per lookup when ranking contacts first
+   private static final int MAX_SCAN = 4096;
+
+   private volatile Snapshot snapshot = new Snapshot(new String[0], new String[0], new String[0], new String[0]);
+
+   /** @return the digits of a phone number, e.g. 11803931512 for +1(180)393-1512 */
+   public static String normalizePhone(String phoneNum){
+      StringBuilder digits = new StringBuilder(phoneNum.length());
+      for (int i = 0; i < phoneNum.length(); i++){
+         char c = phoneNum.charAt(i);
+         if (c >= '0' && c <= '9')
+            digits.append(c);
+      }
+      return digits.toString();
+   }
+
+   /*
+    * Input that looks like a phone number is matched against phones
+    **/
+   static boolean isPhoneQuery(String prefix){
+      if (prefix.isEmpty())
+         return false;
+      for (int i = 0; i < prefix.length(); i++){
+         if ("0123456789+()- ".indexOf(prefix.charAt(i)) < 0)
+            return false;
+      }
+      return true;
+   }
+
+   /** Replaces the index with the given users. */
+   public synchronized void load(Collection<MessengerStore.User> users){
+      String[] logins = new String[users.size()];
+      String[][] phones = new String[users.size()][];
+      int n = 0;
+      for (MessengerStore.User user : users){
+         logins[n] = user.login;
+         phones[n] = new String[] { normalizePhone(user.phoneNum), user.login };
+         n++;
+      }
+      Arrays.sort(logins);
+      Arrays.sort(phones, new Comparator<String[]>(){
+         public int compare(String[] a, String[] b){
+            return a[0].compareTo(b[0]);
+         }
+      });
+      String[] phoneKeys = new String[n];
+      String[] phoneLogins = new String[n];
+      String[] loginPhones = new String[n];
+      for (int i = 0; i < n; i++){
+         phoneKeys[i] = phones[i][0];
+         phoneLogins[i] = phones[i][1];
+         loginPhones[Arrays.binarySearch(logins, phones[i][1])] = phones[i][0];
+      }
+      snapshot = new Snapshot(logins, loginPhones, phoneKeys, phoneLogins);
+   }
+
+   public synchronized void add(String login, String phoneNum){
+      Snapshot s = snapshot;
+      int at = Arrays.binarySearch(s.logins, login);
+      if (at >= 0)
+         return;
+      String phone = normalizePhone(phoneNum);
+      String[] logins = insert(s.logins, -at - 1, login);
+      String[] loginPhones = insert(s.loginPhones, -at - 1, phone);
+      int p = lowerBound(s.phones, phone);
+      snapshot = new Snapshot(logins, loginPhones, insert(s.phones, p, phone), insert(s.phoneLogins, p, login));
+   }
+
+   public synchronized void remove(String login){
+      Snapshot s = snapshot;
+      int at = Arrays.binarySearch(s.logins, login);
+      if (at < 0)
+         return;
+      // users sharing a phone number sit next to each other
+      String phone = s.loginPhones[at];
+      int p = lowerBound(s.phones, phone);
+      while (p < s.phones.length && s.phones[p].equals(phone) && !s.phoneLogins[p].equals(login))
+         p++;
+      boolean found = p < s.phones.length && s.phones[p].equals(phone);
+      snapshot = new Snapshot(delete(s.logins, at), delete(s.loginPhones, at),
+                              found ? delete(s.phones, p) : s.phones,
+                              found ? delete(s.phoneLogins, p) : s.phoneLogins);
+   }
+
+   public int size(){
+      return snapshot.logins.length;
+   }
+
+   /** @return the indexed users, with their normalized phone numbers */
+   public List<MessengerStore.User> users(){
+      Snapshot s = snapshot;
+      List<MessengerStore.User> users = new ArrayList<MessengerStore.User>(s.phones.length);
+      for (int i = 0; i < s.phones.length; i++)
+         users.add(new MessengerStore.User(s.phoneLogins[i], s.phones[i], null));
+      return users;
+   }
+
+   /**
+    * Finds logins starting with prefix, or whose phone number starts with
+    * the digits of prefix if it looks like a phone number. Logins in
+    * contacts are returned before all others.
+    *
+    * @param contacts logins to rank first, may be empty
+    * @param limit the maximum number of logins returned
+    */
+   public List<String> complete(String prefix, Set<String> contacts, int limit){
+      Snapshot s = snapshot;
+      String[] keys = s.logins;
+      String[] values = s.logins;
+      if (isPhoneQuery(prefix)){
+         prefix = normalizePhone(prefix);
+         keys = s.phones;
+         values = s.phoneLogins;
+      }
+      List<String> first = new ArrayList<String>(limit);
+      List<String> rest = new ArrayList<String>(limit);
+      int start = lowerBound(keys, prefix);
+      int end = Math.min(keys.length, start + MAX_SCAN);
+      for (int i = start; i < end && keys[i].startsWith(prefix); i++){
+         String login = values[i];
+         if (contacts.contains(login)){
+            first.add(login);
+            if (first.size() == limit)
+               break;
+         } else if (rest.size() < limit){
+            rest.add(login);
+         } else if (contacts.isEmpty()){
+            break;
+         }
+      }
+      for (int i = 0; first.size() < limit && i < rest.size(); i++)
+         first.add(rest.get(i));
+      return first;
+   }
+
+   private static int lowerBound(String[] sorted, String key){
+      int low = 0, high = sorted.length;
+      while (low < high){
+         int mid = (low + high) >>> 1;
+         if (sorted[mid].compareTo(key) < 0)
+            low = mid + 1;
+         else
+            high = mid;
+      }
+      return low;
+   }
+
+   private static String[] insert(String[] array, int at, String value){
+      String[] out = new String[array.length + 1];
+      System.arraycopy(array, 0, out, 0, at);
+      out[at] = value;
+      System.arraycopy(array, at, out, at + 1, array.length - at);
+      return out;
+   }
+
+   private static String[] delete(String[] array, int at){
+      String[] out = new String[array.length - 1];
+      System.arraycopy(array, 0, out, 0, at);
+      System.arraycopy(array, at + 1, out, at, array.length - at - 1);
+      return out;
+   }
+
+}//end LoginIndex
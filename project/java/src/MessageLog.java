@@ -0,0 +1,327 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hot tier for recent chat history: one append-only segment file per chat,
+ * memory-mapped for reading. A segment is a sequence of records
+ *
+ *    int length, byte type, int msg_id, long timestamp,
+ *    short sender length, sender, int text length, text      (UTF-8)
+ *
+ * where type is POST, EDIT (the full new state of an older message) or
+ * DELETE. A later record for a msg_id replaces earlier ones. A POST of a
+ * msg_id the segment already holds, or older than all it holds (a retried
+ * send resolved to an earlier message), is not appended, nor is an EDIT or
+ * DELETE of a message it does not hold. The offset of
+ * every SPARSE-th record is kept in memory, so a page of recent messages
+ * is read by scanning forward from a point near the end of the file, and
+ * ordered like MessengerStore.getMessages: newest msg_timestamp first, then
+ * highest msg_id.
+ *
+ * Postgres stays the source of truth. A segment is rebuilt from MESSAGE
+ * the first time its chat is read and again once it is older than
+ * -Dmessenger.hotlog.ttl milliseconds (default 30000), which bounds how long
+ * messages sent by other processes can be missing. A rebuild copies only
+ * as many of the newest messages as the page being read reaches; a later
+ * page that reaches further rebuilds it with at least twice as many, up to
+ * -Dmessenger.hotlog.rebuild (default 1000). Pages older than that are
+ * answered by the database. At most -Dmessenger.hotlog.open segments
+ * (default 64) are kept open.
+ *
+ * Enabled by setting -Dmessenger.hotlog.dir to the directory for the files.
+ */
+public class MessageLog {
+
+   static final byte POST = 1;
+   static final byte EDIT = 2;
+   static final byte DELETE = 3;
+
+   // a sparse index entry every SPARSE records
+   static final int SPARSE = 32;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final class Segment {
+      final FileChannel channel;
+      MappedByteBuffer map;
+      long size;
+      long[] sparse = new long[16];
+      int records;
+      long builtAt;
+      // false if MESSAGE held more than the rebuild copied
+      boolean complete;
+      // msg_ids with a POST record, and the lowest of them
+      final IntHashSet posted = new IntHashSet();
+      int oldest = Integer.MAX_VALUE;
+
+      Segment(FileChannel channel){
+         this.channel = channel;
+      }
+   }//end Segment
+
+   private final File dir;
+   private final long ttlMillis;
+   private final int rebuildLimit;
+   private final Map<Integer, Segment> segments;
+
+   public MessageLog(File dir, long ttlMillis, int rebuildLimit, final int maxOpen){
+      this.dir = dir;
+      this.ttlMillis = ttlMillis;
+      this.rebuildLimit = rebuildLimit;
+      this.segments = new LinkedHashMap<Integer, Segment>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<Integer, Segment> eldest){
+            if (size() <= maxOpen)
+               return false;
+            close(eldest.getValue());
+            return true;
+         }
+      };
+      dir.mkdirs();
+   }
+
+   /** @return the log configured by system properties, or null if it is off */
+   public static MessageLog fromSystemProperties(){
+      String dir = System.getProperty("messenger.hotlog.dir");
+      if (dir == null)
+         return null;
+      return new MessageLog(new File(dir), Long.getLong("messenger.hotlog.ttl", 30000L),
+                            Integer.getInteger("messenger.hotlog.rebuild", 1000),
+                            Integer.getInteger("messenger.hotlog.open", 64));
+   }
+
+   private File file(int chatId){
+      return new File(dir, "chat-" + chatId + ".seg");
+   }
+
+   private static void close(Segment segment){
+      try {
+         segment.channel.close();
+      } catch (IOException e){
+         // ignored.
+      }
+   }
+
+   private static SQLException failure(IOException e){
+      return new SQLException("Message log: " + e.getMessage(), e);
+   }
+
+   /**
+    * Rewrites a chat's segment from the newest messages in source.
+    *
+    * @param want the number of messages to copy, at most the rebuild limit
+    */
+   public void rebuild(int chatId, MessengerStore source, int want) throws SQLException {
+      want = Math.min(want, rebuildLimit);
+      List<MessengerStore.Message> newest = source.getMessages(chatId, want + 1, 0);
+      synchronized (this){
+         Segment old = segments.remove(chatId);
+         if (old != null)
+            close(old);
+         try {
+            Segment segment = new Segment(FileChannel.open(file(chatId).toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                          StandardOpenOption.TRUNCATE_EXISTING));
+            segment.complete = newest.size() <= want;
+            // oldest first, as if they had been posted through the log
+            for (int i = Math.min(newest.size(), want) - 1; i >= 0; i--)
+               write(segment, POST, newest.get(i));
+            segment.builtAt = System.currentTimeMillis();
+            segments.put(chatId, segment);
+         } catch (IOException e){
+            throw failure(e);
+         }
+      }
+   }
+
+   /**
+    * Appends a record to a chat's segment if it is open; a chat that is not
+    * open is rebuilt from the database when it is next read.
+    */
+   public synchronized void append(byte type, MessengerStore.Message message) throws SQLException {
+      Segment segment = segments.get(message.chatId);
+      if (segment == null)
+         return;
+      boolean held = segment.posted.contains(message.msgId);
+      if (type == POST ? held || (segment.oldest != Integer.MAX_VALUE && message.msgId < segment.oldest) : !held)
+         return;
+      try {
+         write(segment, type, message);
+      } catch (IOException e){
+         segments.remove(message.chatId);
+         close(segment);
+         throw failure(e);
+      }
+   }
+
+   /** @return true if the chat's segment is open, so posts to it are appended */
+   public synchronized boolean isOpen(int chatId){
+      return segments.containsKey(chatId);
+   }
+
+   /** @return the chat whose open segment holds msgId, or -1 */
+   public synchronized int chatOf(int msgId){
+      for (Map.Entry<Integer, Segment> entry : segments.entrySet()){
+         if (entry.getValue().posted.contains(msgId))
+            return entry.getKey();
+      }
+      return -1;
+   }
+
+   /** Forgets a chat, e.g. because it was deleted. */
+   public synchronized void drop(int chatId){
+      Segment segment = segments.remove(chatId);
+      if (segment != null)
+         close(segment);
+      file(chatId).delete();
+   }
+
+   /** Forgets every chat, e.g. after a cascade deleted messages of many. */
+   public synchronized void dropAll(){
+      for (Integer chatId : new ArrayList<Integer>(segments.keySet()))
+         drop(chatId);
+   }
+
+   /** Closes the open segments; their files are rebuilt on next use. */
+   public synchronized void close(){
+      for (Segment segment : segments.values())
+         close(segment);
+      segments.clear();
+   }
+
+   private static void write(Segment segment, byte type, MessengerStore.Message message) throws IOException {
+      byte[] sender = message.sender == null ? new byte[0] : message.sender.getBytes(UTF8);
+      byte[] text = message.text == null ? new byte[0] : message.text.getBytes(UTF8);
+      int length = 1 + 4 + 8 + 2 + sender.length + 4 + text.length;
+      ByteBuffer record = ByteBuffer.allocate(4 + length);
+      record.putInt(length).put(type).putInt(message.msgId).putLong(message.timestamp);
+      record.putShort((short) sender.length).put(sender).putInt(text.length).put(text);
+      record.flip();
+      long at = segment.size;
+      while (record.hasRemaining())
+         at += segment.channel.write(record, at);
+      if (segment.records % SPARSE == 0){
+         int entry = segment.records / SPARSE;
+         if (entry == segment.sparse.length)
+            segment.sparse = Arrays.copyOf(segment.sparse, entry << 1);
+         segment.sparse[entry] = segment.size;
+      }
+      segment.records++;
+      segment.size = at;
+      if (type == POST){
+         segment.posted.add(message.msgId);
+         segment.oldest = Math.min(segment.oldest, message.msgId);
+      }
+   }
+
+   /*
+    * Maps the whole file, again if it grew since the last read
+    **/
+   private static MappedByteBuffer mapped(Segment segment) throws IOException {
+      if (segment.map == null || segment.map.capacity() < segment.size)
+         segment.map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+      return segment.map;
+   }
+
+   /**
+    * Returns one page of a chat's messages, newest first, rebuilding the
+    * segment from source first if it is missing, stale or too short.
+    *
+    * @return the page, or null if it reaches past the rebuild limit
+    */
+   public List<MessengerStore.Message> page(int chatId, int limit, int offset, MessengerStore source) throws SQLException {
+      int need = limit + offset;
+      Segment segment;
+      synchronized (this){
+         segment = segments.get(chatId);
+      }
+      if (segment == null || System.currentTimeMillis() - segment.builtAt > ttlMillis)
+         rebuild(chatId, source, need);
+      for (int attempt = 0; ; attempt++){
+         int held;
+         synchronized (this){
+            segment = segments.get(chatId);
+            if (segment == null)
+               return null;
+            try {
+               List<MessengerStore.Message> page = page(segment, chatId, limit, offset);
+               if (page != null)
+                  return page;
+            } catch (IOException e){
+               throw failure(e);
+            }
+            held = segment.posted.size();
+         }
+         // the segment ends before the page; grow it once if the limit allows
+         if (attempt > 0 || held >= rebuildLimit)
+            return null;
+         rebuild(chatId, source, Math.max(need, 2 * held));
+      }
+   }
+
+   private static List<MessengerStore.Message> page(Segment segment, int chatId, int limit, int offset) throws IOException {
+      int need = limit + offset;
+      int entries = (segment.records + SPARSE - 1) / SPARSE;
+      ByteBuffer map = mapped(segment);
+      List<MessengerStore.Message> live = new ArrayList<MessengerStore.Message>();
+      for (int step = 1, entry = entries - 1; entry >= 0; step <<= 1){
+         // the newest state of every message touched since this record
+         HashMap<Integer, MessengerStore.Message> latest = new HashMap<Integer, MessengerStore.Message>();
+         int firstPost = Integer.MAX_VALUE;
+         ByteBuffer in = map.duplicate();
+         in.position((int) segment.sparse[entry]);
+         in.limit((int) segment.size);
+         while (in.hasRemaining()){
+            in.getInt();
+            byte type = in.get();
+            int msgId = in.getInt();
+            long stamp = in.getLong();
+            byte[] sender = new byte[in.getShort()];
+            in.get(sender);
+            byte[] text = new byte[in.getInt()];
+            in.get(text);
+            if (type == DELETE){
+               latest.put(msgId, null);
+               continue;
+            }
+            if (type == POST)
+               firstPost = Math.min(firstPost, msgId);
+            latest.put(msgId, new MessengerStore.Message(msgId, chatId, new String(sender, UTF8),
+                                                         new String(text, UTF8), stamp));
+         }
+         // older messages may have posts before this record, except at the start of the file
+         live.clear();
+         for (MessengerStore.Message message : latest.values()){
+            if (message != null && (entry == 0 || message.msgId >= firstPost))
+               live.add(message);
+         }
+         if (live.size() >= need || entry == 0)
+            break;
+         entry = Math.max(0, entry - step);
+      }
+      if (live.size() < need && !segment.complete)
+         return null;
+      Collections.sort(live, new Comparator<MessengerStore.Message>(){
+         public int compare(MessengerStore.Message a, MessengerStore.Message b){
+            if (a.timestamp != b.timestamp)
+               return a.timestamp < b.timestamp ? 1 : -1;
+            return a.msgId < b.msgId ? 1 : a.msgId == b.msgId ? 0 : -1;
+         }
+      });
+      return new ArrayList<MessengerStore.Message>(live.subList(Math.min(offset, live.size()), Math.min(need, live.size())));
+   }
+
+}//end MessageLog
@@ -0,0 +1,592 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
+
+/**
+ * Offline reports over the whole message history, for questions that would
+ * otherwise need ad hoc SQL against the primary:
+ *
+ *    chat_days.tsv.gz    chat_id, day, messages       (sorted by chat, day)
+ *    top_senders.tsv     rank, login, messages        (the top -Dmessenger.report.top, default 100)
+ *    chat_sizes.tsv      members, chats
+ *
+ * MESSAGE and CHAT_LIST are streamed once each through COPY ... TO STDOUT
+ * inside one read-only REPEATABLE READ transaction, so the reports agree
+ * with each other and Postgres does no sorting or grouping; point the
+ * report at a standby to keep even the scans off the primary. Only the
+ * needed columns are copied, and rows are parsed straight into ints.
+ *
+ * Rows are handed in batches to one worker per thread, chosen by chat_id,
+ * so every chat is counted by exactly one worker in primitive hash maps and
+ * only the per-sender counts need merging. Memory does not grow with the
+ * number of messages: the queues between the reader and the workers are
+ * bounded, and a worker holding more than its share of
+ * -Dmessenger.report.pairs (chat, day) counts (default 4194304) writes
+ * them to a sorted run file that is merged into chat_days at the end.
+ *
+ * Usage:
+ *    java MessageReport <hostname> <dbname> <port> <user> <password> <report dir> [threads]
+ */
+public class MessageReport {
+
+   // rows per batch handed to a worker
+   static final int BATCH = 4096;
+   // batches queued per worker before the reader waits
+   static final int QUEUED = 4;
+
+   static final int TOP = Integer.getInteger("messenger.report.top", 100);
+   static final int PAIRS = Integer.getInteger("messenger.report.pairs", 1 << 22);
+
+   // NULL in a COPY text row
+   static final int NULL = -1;
+
+   static final int MESSAGES = 0;
+   static final int MEMBERS = 1;
+
+   // the int columns of each kind of row
+   static final int[] WIDTH = { 3, 1 };
+
+   private static final class Batch {
+      final int kind;
+      final int[] values;
+      int rows;
+
+      Batch(int kind){
+         this.kind = kind;
+         this.values = new int[BATCH * WIDTH[kind]];
+      }
+   }//end Batch
+
+   // tells a worker that no more batches follow
+   private static final Batch DONE = new Batch(MEMBERS);
+
+   /**
+    * Open addressing counts keyed by a long other than -1, here a chat_id in
+    * the high and a day in the low half. Not thread safe.
+    */
+   static final class LongCounts {
+
+      private static final long FREE = -1L;
+
+      private long[] keys = new long[16];
+      private int[] counts = new int[16];
+      private int size;
+
+      LongCounts(){
+         Arrays.fill(keys, FREE);
+      }
+
+      int size(){
+         return size;
+      }
+
+      private static int slot(long key, int mask){
+         return IntHashSet.mix((int) (key ^ (key >>> 32))) & mask;
+      }
+
+      void add(long key, int delta){
+         int mask = keys.length - 1;
+         int i = slot(key, mask);
+         for ( ; keys[i] != FREE; i = (i + 1) & mask){
+            if (keys[i] == key){
+               counts[i] += delta;
+               return;
+            }
+         }
+         keys[i] = key;
+         counts[i] = delta;
+         if (++size * 2 > keys.length)
+            rehash(keys.length << 1);
+      }
+
+      int get(long key){
+         int mask = keys.length - 1;
+         for (int i = slot(key, mask); keys[i] != FREE; i = (i + 1) & mask){
+            if (keys[i] == key)
+               return counts[i];
+         }
+         return 0;
+      }
+
+      /** @return the keys in ascending order */
+      long[] sortedKeys(){
+         long[] out = new long[size];
+         int n = 0;
+         for (long key : keys)
+            if (key != FREE) out[n++] = key;
+         Arrays.sort(out);
+         return out;
+      }
+
+      void clear(){
+         keys = new long[16];
+         counts = new int[16];
+         Arrays.fill(keys, FREE);
+         size = 0;
+      }
+
+      private void rehash(int capacity){
+         long[] oldKeys = keys;
+         int[] oldCounts = counts;
+         keys = new long[capacity];
+         counts = new int[capacity];
+         Arrays.fill(keys, FREE);
+         int mask = capacity - 1;
+         for (int k = 0; k < oldKeys.length; k++){
+            if (oldKeys[k] == FREE) continue;
+            int i = slot(oldKeys[k], mask);
+            while (keys[i] != FREE)
+               i = (i + 1) & mask;
+            keys[i] = oldKeys[k];
+            counts[i] = oldCounts[k];
+         }
+      }
+
+   }//end LongCounts
+
+   /**
+    * Aggregates the rows of the chats routed to it.
+    */
+   private static final class Worker implements Runnable {
+      final int number;
+      final File dir;
+      final int maxPairs;
+      final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUED);
+      final LongCounts chatDays = new LongCounts();
+      final IntIntHashMap senders = new IntIntHashMap(0);
+      // chat_id -> members; IntIntHashMap takes no negative chat ids
+      final LongCounts members = new LongCounts();
+      final List<File> runs = new ArrayList<File>();
+      Exception failure;
+
+      Worker(int number, File dir, int maxPairs){
+         this.number = number;
+         this.dir = dir;
+         this.maxPairs = maxPairs;
+      }
+
+      public void run(){
+         try {
+            Batch batch;
+            while ((batch = queue.take()) != DONE){
+               int[] v = batch.values;
+               if (batch.kind == MESSAGES){
+                  for (int r = 0, i = 0; r < batch.rows; r++, i += 3){
+                     if (v[i] != NULL)
+                        chatDays.add(((long) v[i] << 32) | (v[i + 2] & 0xFFFFFFFFL), 1);
+                     if (v[i + 1] != NULL)
+                        senders.increment(v[i + 1], 1);
+                  }
+                  if (chatDays.size() > maxPairs)
+                     spill();
+               } else {
+                  for (int r = 0; r < batch.rows; r++){
+                     if (v[r] != NULL)
+                        members.add(v[r], 1);
+                  }
+               }
+            }
+         } catch (Exception e){
+            failure = e;
+            // keep taking batches so the reader never blocks on this worker
+            try {
+               while (queue.take() != DONE);
+            } catch (InterruptedException ignored){
+               // exiting anyway.
+            }
+         }
+      }
+
+      /*
+       * Writes the (chat, day) counts out sorted and starts over
+       **/
+      void spill() throws IOException {
+         File run = new File(dir, ".chat_days." + number + "." + runs.size() + ".run");
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+         try {
+            for (long key : chatDays.sortedKeys()){
+               out.writeLong(key);
+               out.writeInt(chatDays.get(key));
+            }
+         } finally {
+            out.close();
+         }
+         runs.add(run);
+         chatDays.clear();
+      }
+   }//end Worker
+
+   /**
+    * A sorted stream of (chat, day) counts: a spilled run or what a worker
+    * still holds in memory.
+    */
+   private static final class Run {
+      final DataInputStream in;
+      final long[] keys;
+      final LongCounts counts;
+      int next;
+      long key;
+      int count;
+
+      Run(File file) throws IOException {
+         this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+         this.keys = null;
+         this.counts = null;
+      }
+
+      Run(LongCounts counts){
+         this.in = null;
+         this.keys = counts.sortedKeys();
+         this.counts = counts;
+      }
+
+      boolean advance() throws IOException {
+         if (in == null){
+            if (next == keys.length)
+               return false;
+            key = keys[next++];
+            count = counts.get(key);
+            return true;
+         }
+         try {
+            key = in.readLong();
+            count = in.readInt();
+            return true;
+         } catch (EOFException e){
+            in.close();
+            return false;
+         }
+      }
+   }//end Run
+
+   /** The rows of a COPY text stream, one line at a time. */
+   interface Lines {
+      /** @return the next row, or null at the end */
+      byte[] next() throws SQLException;
+   }//end Lines
+
+   private final CopyManager copy;
+   private final Worker[] workers;
+   private long rows;
+
+   public MessageReport(Connection connection, File dir, int threads) throws SQLException {
+      this(((PGConnection) connection).getCopyAPI(), dir, threads, PAIRS);
+   }
+
+   /*
+    * copy may be null if rows only come through route
+    **/
+   MessageReport(CopyManager copy, File dir, int threads, int pairs){
+      this.copy = copy;
+      this.workers = new Worker[threads];
+      for (int w = 0; w < threads; w++)
+         workers[w] = new Worker(w, dir, Math.max(1, pairs / threads));
+   }
+
+   /*
+    * Streams one COPY into the workers
+    **/
+   private void stream(String query, int kind) throws SQLException, InterruptedException {
+      final CopyOut out = copy.copyOut("COPY (" + query + ") TO STDOUT");
+      route(new Lines(){
+         public byte[] next() throws SQLException {
+            return out.readFromCopy();
+         }
+      }, kind);
+   }
+
+   /*
+    * Hands rows to the workers in batches, routing each by its first column
+    **/
+   void route(Lines lines, int kind) throws SQLException, InterruptedException {
+      int width = WIDTH[kind];
+      Batch[] pending = new Batch[workers.length];
+      for (int w = 0; w < workers.length; w++)
+         pending[w] = new Batch(kind);
+      int[] row = new int[width];
+      byte[] line;
+      while ((line = lines.next()) != null){
+         parse(line, row);
+         // chat ids may be negative
+         int w = Math.floorMod(row[0] == NULL ? 0 : row[0], workers.length);
+         Batch batch = pending[w];
+         System.arraycopy(row, 0, batch.values, batch.rows * width, width);
+         if (++batch.rows == BATCH){
+            workers[w].queue.put(batch);
+            pending[w] = new Batch(kind);
+         }
+         rows++;
+      }
+      for (int w = 0; w < workers.length; w++){
+         if (pending[w].rows > 0)
+            workers[w].queue.put(pending[w]);
+      }
+   }
+
+   /*
+    * Reads the tab separated integer columns of a COPY text row, \N as NULL
+    **/
+   static void parse(byte[] line, int[] row){
+      int column = 0;
+      int value = 0;
+      boolean isNull = false;
+      boolean negative = false;
+      for (int i = 0; i <= line.length && column < row.length; i++){
+         byte b = i < line.length ? line[i] : (byte) '\n';
+         if (b == '\t' || b == '\n'){
+            row[column++] = isNull ? NULL : negative ? -value : value;
+            value = 0;
+            isNull = false;
+            negative = false;
+         } else if (b == '\\'){
+            isNull = true;
+         } else if (b == '-'){
+            negative = true;
+         } else if (b != 'N'){
+            value = value * 10 + (b - '0');
+         }
+      }
+   }
+
+   /**
+    * Runs every report into dir.
+    *
+    * @return the number of rows read
+    */
+   public long run(Connection connection, File dir) throws Exception {
+      Thread[] threads = start();
+      boolean autoCommit = connection.getAutoCommit();
+      int isolation = connection.getTransactionIsolation();
+      connection.setAutoCommit(false);
+      IntIntHashMap senders = new IntIntHashMap(0);
+      try {
+         connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         connection.setReadOnly(true);
+         try {
+            stream("SELECT chat_id, sender_id, msg_timestamp::date - DATE '1970-01-01' FROM message", MESSAGES);
+            stream("SELECT chat_id FROM chat_list", MEMBERS);
+         } finally {
+            finish(threads);
+         }
+
+         // senders are the only counts split across workers
+         for (Worker worker : workers){
+            for (int sender : worker.senders.keys())
+               senders.increment(sender, worker.senders.get(sender));
+         }
+         writeTopSenders(new File(dir, "top_senders.tsv"), senders);
+         writeChatSizes(new File(dir, "chat_sizes.tsv"));
+         connection.commit();
+      } catch (Exception e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setReadOnly(false);
+         connection.setTransactionIsolation(isolation);
+         connection.setAutoCommit(autoCommit);
+      }
+      writeChatDays(new File(dir, "chat_days.tsv.gz"));
+      return rows;
+   }
+
+   /*
+    * Starts a thread per worker
+    **/
+   Thread[] start(){
+      Thread[] threads = new Thread[workers.length];
+      for (int w = 0; w < workers.length; w++){
+         threads[w] = new Thread(workers[w], "messenger-report-" + w);
+         threads[w].setDaemon(true);
+         threads[w].start();
+      }
+      return threads;
+   }
+
+   /*
+    * Tells the workers no more rows follow, waits for them and rethrows the
+    * first failure
+    **/
+   void finish(Thread[] threads) throws Exception {
+      for (Worker worker : workers)
+         worker.queue.put(DONE);
+      for (Thread thread : threads)
+         thread.join();
+      for (Worker worker : workers){
+         if (worker.failure != null)
+            throw worker.failure;
+      }
+   }
+
+   /** @return the run files the workers spilled */
+   int spilled(){
+      int runs = 0;
+      for (Worker worker : workers)
+         runs += worker.runs.size();
+      return runs;
+   }
+
+   private void writeTopSenders(File file, IntIntHashMap senders) throws SQLException, IOException {
+      // the TOP largest counts, selected without sorting every sender
+      PriorityQueue<int[]> top = new PriorityQueue<int[]>(TOP + 1, new Comparator<int[]>(){
+         public int compare(int[] a, int[] b){
+            return a[1] != b[1] ? (a[1] < b[1] ? -1 : 1) : (a[0] < b[0] ? 1 : a[0] == b[0] ? 0 : -1);
+         }
+      });
+      for (int sender : senders.keys()){
+         top.add(new int[] { sender, senders.get(sender) });
+         if (top.size() > TOP)
+            top.poll();
+      }
+      int[][] ranked = new int[top.size()][];
+      for (int i = ranked.length - 1; i >= 0; i--)
+         ranked[i] = top.poll();
+      String[] logins = new String[ranked.length];
+      if (ranked.length > 0){
+         StringBuilder ids = new StringBuilder();
+         for (int[] sender : ranked)
+            ids.append(ids.length() == 0 ? "" : ",").append(sender[0]);
+         CopyOut out = copy.copyOut("COPY (SELECT user_id, login FROM usr WHERE user_id IN (" + ids + ")) TO STDOUT");
+         byte[] line;
+         while ((line = out.readFromCopy()) != null){
+            String[] columns = new String(line, "UTF-8").split("\t");
+            int id = Integer.parseInt(columns[0]);
+            for (int i = 0; i < ranked.length; i++){
+               if (ranked[i][0] == id)
+                  logins[i] = columns[1].trim();
+            }
+         }
+      }
+      PrintWriter out = new PrintWriter(file, "UTF-8");
+      try {
+         out.println("rank\tlogin\tmessages");
+         for (int i = 0; i < ranked.length; i++)
+            out.println((i + 1) + "\t" + logins[i] + "\t" + ranked[i][1]);
+      } finally {
+         out.close();
+      }
+   }
+
+   void writeChatSizes(File file) throws IOException {
+      IntIntHashMap chatsBySize = new IntIntHashMap(0);
+      for (Worker worker : workers){
+         for (long chat : worker.members.sortedKeys())
+            chatsBySize.increment(worker.members.get(chat), 1);
+      }
+      int[] sizes = chatsBySize.keys();
+      Arrays.sort(sizes);
+      PrintWriter out = new PrintWriter(file, "UTF-8");
+      try {
+         out.println("members\tchats");
+         for (int size : sizes)
+            out.println(size + "\t" + chatsBySize.get(size));
+      } finally {
+         out.close();
+      }
+   }
+
+   /*
+    * Merges every worker's runs and remaining counts in key order
+    **/
+   void writeChatDays(File file) throws IOException {
+      PriorityQueue<Run> runs = new PriorityQueue<Run>(16, new Comparator<Run>(){
+         public int compare(Run a, Run b){
+            return a.key < b.key ? -1 : a.key == b.key ? 0 : 1;
+         }
+      });
+      for (Worker worker : workers){
+         for (File spilled : worker.runs){
+            Run run = new Run(spilled);
+            if (run.advance())
+               runs.add(run);
+         }
+         Run held = new Run(worker.chatDays);
+         if (held.advance())
+            runs.add(held);
+      }
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(
+         new GZIPOutputStream(new FileOutputStream(file), 1 << 16), "UTF-8"));
+      try {
+         out.println("chat_id\tday\tmessages");
+         while (!runs.isEmpty()){
+            Run run = runs.poll();
+            long key = run.key;
+            int count = run.count;
+            if (run.advance())
+               runs.add(run);
+            // the same chat and day can be in several runs of one worker
+            while (!runs.isEmpty() && runs.peek().key == key){
+               Run same = runs.poll();
+               count += same.count;
+               if (same.advance())
+                  runs.add(same);
+            }
+            out.println((int) (key >> 32) + "\t" + java.time.LocalDate.ofEpochDay((int) key) + "\t" + count);
+         }
+      } finally {
+         out.close();
+         for (Worker worker : workers){
+            for (File spilled : worker.runs)
+               spilled.delete();
+         }
+      }
+   }
+
+   public static void main(String[] args) {
+      if (args.length < 6 || args.length > 7) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + MessageReport.class.getName () +
+            " <hostname> <dbname> <port> <user> <password> <report dir> [threads]");
+         return;
+      }//end if
+
+      Connection connection = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         connection = DriverManager.getConnection(
+            Messenger.connectionUrl(args[0], args[1], args[2], args[3], args[4]));
+         File dir = new File(args[5]);
+         dir.mkdirs();
+         int threads = args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors();
+         MessageReport report = new MessageReport(connection, dir, threads);
+
+         long start = System.nanoTime();
+         long rows = report.run(connection, dir);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format("reported %d rows into %s in %.2fs with %d threads: %.0f rows/sec, %d spilled runs",
+                            rows, dir, seconds, threads, rows / Math.max(seconds, 1e-9), report.spilled()));
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         try{
+            if (connection != null)
+               connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+   }//end main
+
+}//end MessageReport
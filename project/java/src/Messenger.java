@@ -17,13 +17,22 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -35,6 +44,87 @@ public class Messenger {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // storage operations used by the menus
+   private MessengerStore _store = null;
+
+   // the outermost store, which keeps the login autocomplete index current
+   private IndexedStore _indexed = null;
+
+   // fan-out policy of the per-member inbox, null without a database
+   private InboxPolicy _inbox = null;
+
+   // hot tier of recent chat history, shared with the async workers; null if off
+   private MessageLog _hotlog = null;
+
+   // on-disk copy of the login index, null if off
+   private CacheSnapshot _snapshot = null;
+
+   // scheduled prune_change_log, null if off
+   private ChangeLogPruner _pruner = null;
+
+   // authorization checks of the logged-in user
+   private AuthorizationCache _session = null;
+
+   // JDBC URL, for opening the extra connections of the async store
+   private String _url = null;
+
+   // concurrent read access, opened on first use
+   private AsyncMessengerStore _async = null;
+
+   // the per-thread connections of the async store
+   private final List<Messenger> _workers = new ArrayList<Messenger>();
+
+   // the statement last started by the execute methods, for cancel()
+   private volatile Statement _running = null;
+
+   // statements sent to the server through the execute methods
+   private final AtomicLong _roundTrips = new AtomicLong();
+
+   // in fast-start mode, the connection being opened in the background
+   private FutureTask<Connection> _pendingConnection = null;
+
+   /*
+    * The store of one async worker thread, which can stop the worker's
+    * query and replace its connection
+    **/
+   private static final class WorkerStore extends ForwardingMessengerStore implements AsyncMessengerStore.Connected {
+      private final Messenger worker;
+
+      WorkerStore(MessengerStore delegate, Messenger worker){
+         super(delegate);
+         this.worker = worker;
+      }
+
+      public void cancelQuery(){
+         worker.cancel();
+      }
+
+      public boolean reconnect(){
+         return worker.reconnect();
+      }
+   }//end WorkerStore
+
+   // fast-start mode: show the menu at once and connect in the background
+   static final boolean FAST_START = Boolean.getBoolean("messenger.faststart");
+
+   // report time-to-first-prompt and time-to-first-query on stderr
+   static final boolean TIMING = Boolean.getBoolean("messenger.timing");
+
+   // when the launcher started the JVM, or when main started if not given
+   static long launchMillis = Long.getLong("messenger.launch.millis", 0L);
+   static boolean promptReported = false;
+   static boolean queryReported = false;
+
+   // tables read by the menus, touched once in the background to warm up
+   // the driver and the server's relation and plan caches
+   static final String[] WARMUP_QUERIES = {
+      "SELECT user_id, login, phoneNum, password, status, block_list, contact_list FROM usr LIMIT 0",
+      "SELECT list_id, member_id FROM user_list_contains LIMIT 0",
+      "SELECT chat_id, chat_type, init_sender_id FROM chat LIMIT 0",
+      "SELECT chat_id, member_id FROM chat_list LIMIT 0",
+      "SELECT msg_id, msg_text, msg_timestamp, sender_id, chat_id FROM message LIMIT 0"
+   };
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -51,15 +141,42 @@ public class Messenger {
     */
    public Messenger (String hostname, String dbname, String dbport, String user, String passwd) throws SQLException {
 
+      final String url = connectionUrl(hostname, dbname, dbport, user, passwd);
+      this._url = url;
+      this._inbox = InboxPolicy.fromSystemProperties();
+      this._hotlog = MessageLog.fromSystemProperties();
+      this._snapshot = CacheSnapshot.fromSystemProperties(url);
+      this._indexed = new IndexedStore(IdempotentStore.fromSystemProperties(
+                         RateLimitedStore.fromSystemProperties(
+                            HotLogStore.wrap(new SqlMessengerStore(this, this._inbox), this._hotlog))),
+                         this._snapshot);
+      this._store = this._indexed;
+      this._pruner = ChangeLogPruner.fromSystemProperties(url);
+      if (this._pruner != null)
+         this._pruner.start();
+
+      if (FAST_START){
+         // connect and warm up while the user reads the menu; the first
+         // database operation waits for this to finish
+         this._pendingConnection = new FutureTask<Connection>(new Callable<Connection>(){
+            public Connection call() throws Exception {
+               Class.forName ("org.postgresql.Driver");
+               Connection connection = DriverManager.getConnection(url);
+               Statement stmt = connection.createStatement ();
+               for (String query : WARMUP_QUERIES)
+                  stmt.executeQuery (query).close ();
+               stmt.close ();
+               return connection;
+            }
+         });
+         Thread connector = new Thread(this._pendingConnection, "messenger-connect");
+         connector.setDaemon(true);
+         connector.start();
+         return;
+      }
+
       System.out.print("Connecting to database...");
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://" + hostname + ":" + dbport + "/" + dbname
-                    + "?user=" + user;
-         
-         if(passwd!="") {
-        	url += "&password=" + passwd + "&ssl=false";
-         }
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
@@ -73,22 +190,215 @@ public class Messenger {
       }//end catch
    }//end Messenger
 
+   /**
+    * Constructs the JDBC connection URL from the command line arguments
+    *
+    * @return the connection URL
+    */
+   public static String connectionUrl (String hostname, String dbname, String dbport, String user, String passwd) {
+      return "jdbc:postgresql://" + hostname + ":" + dbport + "/" + dbname
+           + "?user=" + user
+           + (passwd.equals("") ? "" : "&password=" + passwd + "&ssl=false");
+   }//end connectionUrl
+
+   /**
+    * Creates a new instance of Messenger on top of an existing store, without
+    * a physical database connection. Used to drive the menus from tests and
+    * benchmarks with an InMemoryMessengerStore.
+    *
+    * @param store the storage the menus operate on
+    */
+   public Messenger (MessengerStore store) {
+      this._indexed = new IndexedStore(store);
+      this._store = this._indexed;
+   }//end Messenger
+
+   /*
+    * A bare connection used by one worker thread of the async store or of
+    * MessengerBatch; url is kept so the connection can be replaced
+    **/
+   Messenger (Connection connection, String url) {
+      this._connection = connection;
+      this._url = url;
+   }//end Messenger
+
+   /**
+    * @return the storage the menus operate on
+    */
+   public MessengerStore store () {
+      return this._store;
+   }//end store
+
+   /**
+    * Returns the physical connection, waiting for the background connect
+    * in fast-start mode.
+    *
+    * @return the physical database connection
+    */
+   Connection connection () {
+      if (this._connection == null && this._pendingConnection != null){
+         try{
+            this._connection = this._pendingConnection.get();
+         }catch (Exception e){
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            System.err.println("Error - Unable to Connect to Database: " + cause.getMessage() );
+            System.out.println("Make sure you started postgres on this machine");
+            System.exit(-1);
+         }//end catch
+      }//end if
+      if (TIMING && !queryReported){
+         queryReported = true;
+         reportTiming("time-to-first-query");
+      }
+      return this._connection;
+   }//end connection
+
+   /**
+    * Replaces a physical connection that failed with a new one to the same
+    * database.
+    *
+    * @return false if there is no database or it cannot be reached
+    */
+   synchronized boolean reconnect () {
+      if (this._url == null)
+         return false;
+      try{
+         connection().close();
+      }catch (Exception e){
+         // already broken.
+      }//end try
+      try{
+         this._connection = DriverManager.getConnection(this._url);
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end reconnect
+
+   /**
+    * Stops the statement this Messenger's connection is running, if any.
+    * Interrupting the thread is not enough: the driver does not give up a
+    * blocked socket read, and the server would finish the query anyway.
+    */
+   public void cancel () {
+      Statement stmt = this._running;
+      if (stmt == null)
+         return;
+      try{
+         stmt.cancel ();
+      }catch (SQLException e){
+         // finished or closed meanwhile.
+      }//end try
+   }//end cancel
+
+   /**
+    * Returns the non-blocking read API. With a database every worker thread
+    * opens its own connection on its first call (-Dmessenger.async.threads,
+    * default 2); without one the workers share the store.
+    *
+    * @return the async store, started on first use
+    */
+   public synchronized AsyncMessengerStore async () {
+      if (this._async == null){
+         final String url = this._url;
+         final MessengerStore shared = this._store;
+         final InboxPolicy inbox = this._inbox;
+         final MessageLog hotlog = this._hotlog;
+         this._async = AsyncMessengerStore.fromSystemProperties(new Callable<MessengerStore>(){
+            public MessengerStore call() throws Exception {
+               if (url == null)
+                  return shared;
+               Messenger worker = new Messenger(DriverManager.getConnection(url), url);
+               synchronized (_workers){
+                  _workers.add(worker);
+               }
+               return new WorkerStore(HotLogStore.wrap(new SqlMessengerStore(worker, inbox), hotlog), worker);
+            }
+         });
+      }//end if
+      return this._async;
+   }//end async
+
+   /**
+    * Returns the authorization cache of login's session, starting a new
+    * session if another user was logged in. With a database the cache
+    * follows membership changes made by other clients.
+    *
+    * @param login the logged-in user
+    * @return the session's cache
+    */
+   public synchronized AuthorizationCache session (String login) {
+      if (this._session == null || !this._session.login().equals(login)){
+         AuthorizationCache previous = this._session;
+         this._session = new AuthorizationCache(login);
+         // listening first keeps the shared listener's connection open
+         if (this._url != null)
+            this._session.listen(this._url);
+         if (previous != null)
+            previous.stop();
+      }//end if
+      return this._session;
+   }//end session
+
+   /**
+    * @return the number of statements sent through the execute methods
+    */
+   public long roundTrips () {
+      return this._roundTrips.get();
+   }//end roundTrips
+
+   /**
+    * @return the prefix index over logins and phone numbers
+    * @throws java.sql.SQLException when the index could not be loaded
+    */
+   public LoginIndex loginIndex () throws SQLException {
+      return this._indexed.loginIndex();
+   }//end loginIndex
+
+   /**
+    * @return the attachment storage, or null when running without a database
+    */
+   public AttachmentStore attachments () {
+      if (this._connection == null && this._pendingConnection == null)
+         return null;
+      return new AttachmentStore(connection());
+   }//end attachments
+
+   /*
+    * Prints the time since launch on stderr
+    **/
+   static void reportTiming(String what){
+      System.err.println(what + ": " + (System.currentTimeMillis() - launchMillis) + " ms");
+   }//end reportTiming
+
+   /*
+    * Creates a statement on the connection and remembers it for cancel()
+    **/
+   private Statement statement () throws SQLException {
+      Statement stmt = connection().createStatement ();
+      this._running = stmt;
+      return stmt;
+   }//end statement
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
+      this._roundTrips.incrementAndGet();
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = statement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      int rowCount = stmt.executeUpdate (sql);
 
       // close the instruction
       stmt.close ();
+      return rowCount;
    }//end executeUpdate
 
    /**
@@ -101,8 +411,9 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      this._roundTrips.incrementAndGet();
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = statement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -134,6 +445,28 @@ public class Messenger {
       return rowCount;
    }//end executeQuery
 
+   /**
+    * Prints rows in the same layout as executeQueryAndPrintResult: a tab
+    * separated header followed by one tab separated line per row.
+    *
+    * @param header the column names
+    * @param rows the rows to print
+    * @return the number of rows printed
+    */
+   public static int printResult (String[] header, List<String[]> rows) {
+      if (!rows.isEmpty()){
+         for (String column : header)
+            System.out.print(column + "\t");
+         System.out.println();
+      }
+      for (String[] row : rows){
+         for (String value : row)
+            System.out.print (value + "\t");
+         System.out.println ();
+      }
+      return rows.size();
+   }//end printResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
@@ -144,8 +477,9 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+      this._roundTrips.incrementAndGet();
       // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+      Statement stmt = statement (); 
  
       // issues the query instruction 
       ResultSet rs = stmt.executeQuery (query); 
@@ -180,8 +514,9 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+      this._roundTrips.incrementAndGet();
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      Statement stmt = statement ();
 
        // issues the query instruction
        ResultSet rs = stmt.executeQuery (query);
@@ -206,7 +541,8 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
   public int getCurrSeqVal(String sequence) throws SQLException {
-	  Statement stmt = this._connection.createStatement ();
+	  this._roundTrips.incrementAndGet();
+	  Statement stmt = statement ();
 	  ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 	  if (rs.next())
 		  return rs.getInt(1);
@@ -217,11 +553,33 @@ public class Messenger {
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._async != null){
+         this._async.shutdown();
+         synchronized (this._workers){
+            for (Messenger worker : this._workers)
+               worker.cleanup();
+         }
+      }//end if
+      if (this._hotlog != null){
+         this._hotlog.close();
+      }//end if
+      if (this._session != null){
+         this._session.stop();
+      }//end if
+      if (this._snapshot != null){
+         this._snapshot.close();
+      }//end if
+      if (this._pruner != null){
+         this._pruner.close();
+      }//end if
       try{
+         if (this._connection == null && this._pendingConnection != null && this._pendingConnection.isDone()){
+            this._connection = this._pendingConnection.get();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
-      }catch (SQLException e){
+      }catch (Exception e){
          // ignored.
       }//end try
    }//end cleanup
@@ -233,6 +591,7 @@ public class Messenger {
         ListChats(esql, authorisedUser);  
       	System.out.println("\t1. Open Chat for viewing, replying, and editing members");
       	System.out.println("\t2. Delete chat");
+      	System.out.println("\t3. View new messages from all chats");
       	System.out.println("\t9. return to main menu");
       	System.out.flush();
         switch (readChoice()){
@@ -242,6 +601,9 @@ public class Messenger {
           case 2:
                   DeleteChat(esql, authorisedUser);
                   break;
+          case 3:
+                  ViewFeed(esql, authorisedUser);
+                  break;
           case 9:
           	      picking = false;
           	      break;
@@ -261,12 +623,15 @@ public class Messenger {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-     
+      if (launchMillis == 0L)
+         launchMillis = System.currentTimeMillis();
 
- System.out.print ("ARGS= ");
- for (String arg: args)
-     System.out.print (arg + " ");
- System.out.println();
+      if (!FAST_START){
+         System.out.print ("ARGS= ");
+         for (String arg: args)
+            System.out.print (arg + " ");
+         System.out.println();
+      }
 
 
       if (args.length != 5 && args.length != 4) {
@@ -281,27 +646,25 @@ public class Messenger {
       Greeting();
       Messenger esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
          // instantiate the Messenger object and creates a physical
          // connection.
          String hostname = args[0];
-         System.out.println("hostname is " + hostname);
-        
          String dbname = args[1];
-         System.out.println("dbname is " + dbname);
-        
          String dbport = args[2];
-         System.out.println("dbport is " + dbport);
-        
          String user = args[3];
-         System.out.println("user is " + user);
-        
          String password = "";
          if(args.length == 5 ){
            password = args[4];
          }
-         System.out.println("password is " + password);
+         if (!FAST_START){
+            // use postgres JDBC driver.
+            Class.forName ("org.postgresql.Driver");
+            System.out.println("hostname is " + hostname);
+            System.out.println("dbname is " + dbname);
+            System.out.println("dbport is " + dbport);
+            System.out.println("user is " + user);
+            System.out.println("password is " + password);
+         }
         
          esql = new Messenger (hostname, dbname, dbport, user, password);
 
@@ -339,6 +702,7 @@ public class Messenger {
                 System.out.println("8. Create a chat");
 		System.out.println("9. Change status");
                 System.out.println("10. Delete account");
+                System.out.println("12. Add contacts from your address book");
                 System.out.println(".........................");
                 System.out.println("11. Log out");
                 System.out.flush();
@@ -376,6 +740,9 @@ public class Messenger {
 						   }break;
                   
                    case 11: usermenu = false; break;
+
+                   case 12: SyncContacts(esql, authorisedUser);
+                           WaitForKey(); break;
                   
                    default : System.out.println("Unrecognized choice!");  
                            WaitForKey(); break;
@@ -411,6 +778,10 @@ public class Messenger {
     * @int
     **/
    public static int readChoice() {
+      if (TIMING && !promptReported){
+         promptReported = true;
+         reportTiming("time-to-first-prompt");
+      }
       int input;
       // returns only if a correct value is given.
       do {
@@ -473,17 +844,8 @@ public class Messenger {
          String password = in.readLine();
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
-         //Creating empty contact\block lists for a user
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-         int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-         int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         String query = String.format("INSERT INTO USR (phoneNum, " +
-                                      "login, password, block_list, " + 
-                                      "contact_list) VALUES ('%s','%s','%s',%s,%s)"
-                                      , phone, login, password, block_id, contact_id);
-
-         esql.executeUpdate(query);
+         //Creating the user along with empty contact\block lists
+         esql.store().createUser(login, password, phone);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -501,11 +863,7 @@ public class Messenger {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'"
-                                      , login, password);
-
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
+         if (esql.store().authenticate(login, password))
             return login;
          return null;
       }catch(Exception e){
@@ -520,23 +878,10 @@ public class Messenger {
       String login;
       System.out.print("Enter the user name: ");
       login = in.readLine();
-      String query1 = String.format("SELECT COUNT(*) FROM Usr WHERE login = '%s'", login);
-      int rowCount = esql.executeQuery(query1);
     
-      if (rowCount == 1) //requested user exists
+      //Second, insert the user into the list if they exist
+      if (esql.store().addToList(authorisedUser, MessengerStore.ListType.CONTACT, login))
       {   
-        //Second, get contat list ID
-        String query2 = String.format("SELECT contact_list FROM Usr WHERE login = '%s'", authorisedUser);
-    
-        List<List<String>> result;
-        result = esql.executeQueryAndReturnResult(query2);
-        int list_id = Integer.parseInt(result.get(0).get(0)); 
-    
-        //Third, insert contact to contact list
-        String query3 = String.format("INSERT INTO USER_LIST_CONTAINS (list_id, list_member) " +
-                        "VALUES(%d, '%s');", list_id, login);
-    
-        esql.executeUpdate(query3);
         System.out.println ("Successfully added to contacts!");
       }   
       else //requested user does not exist
@@ -548,29 +893,45 @@ public class Messenger {
       }   
    }//end
 
+   /*
+    * Adds everyone in an address book file, one phone number per line (or
+    * typed in separated by commas), who has an account
+    **/
+   public static void SyncContacts(Messenger esql, String authorisedUser){
+      try{
+      System.out.print("Enter the address book file, or phone numbers separated by commas: ");
+      String input = in.readLine().trim();
+      List<String> phones = new ArrayList<String>();
+      File book = new File(input);
+      if (book.isFile()){
+        BufferedReader reader = new BufferedReader(new FileReader(book));
+        String line;
+        while ((line = reader.readLine()) != null)
+          phones.add(line);
+        reader.close();
+      }
+      else
+        phones.addAll(java.util.Arrays.asList(input.split(",")));
+
+      List<String> added = esql.store().syncContacts(authorisedUser, phones);
+      for (String login : added)
+        System.out.println("\t" + login);
+      System.out.println ("Added " + added.size() + " of " + phones.size() + " numbers to contacts.");
+      }catch(Exception e){ 
+        System.err.println (e.getMessage ());
+      }   
+   }//end
+
   public static void AddToBlock(Messenger esql, String authorisedUser){
       try{
       //First, ask user for other user's login and check if they exist
       String login;
       System.out.print("Enter the user name: ");
       login = in.readLine();
-      String query1 = String.format("SELECT COUNT(*) FROM Usr WHERE login = '%s'", login);
-      int rowCount = esql.executeQuery(query1);
     
-      if (rowCount == 1) //requested user exists
+      //Second, insert the user into the list if they exist
+      if (esql.store().addToList(authorisedUser, MessengerStore.ListType.BLOCK, login))
       {   
-        //Second, get contat list ID
-        String query2 = String.format("SELECT block_list FROM Usr WHERE login = '%s'", authorisedUser);
-    
-        List<List<String>> result;
-        result = esql.executeQueryAndReturnResult(query2);
-        int list_id = Integer.parseInt(result.get(0).get(0)); 
-    
-        //Third, insert contact to contact list
-        String query3 = String.format("INSERT INTO USER_LIST_CONTAINS (list_id, list_member) " +
-                        "VALUES(%d, '%s');", list_id, login);
-    
-        esql.executeUpdate(query3);
         System.out.println ("Successfully added to blocked list");
       }   
       else //requested user does not exist
@@ -585,12 +946,10 @@ public class Messenger {
    public static void ListContacts(Messenger esql, String authorisedUser){
       try{
         // Browsing current user's contact list
-	 String query = String.format("SELECT US.login, US.phoneNum, US.status From USR US WHERE login = Any (SELECT ulc.list_member from usr u, user_list ul, user_list_contains ulc where u.login = '%s' and ul.list_id = u.contact_list and ulc.list_id = ul.list_id);", authorisedUser);
-        //String query = String.format("Select US.login, US.phoneNum, US.status FROM USR US WHERE login = ANY (SELECT ULC.list_member, U.status, U.phoneNum " + 
-          //             "FROM USR U, USER_LIST UL, USER_LIST_CONTAINS ULC " +
-            //           "WHERE U.login = '%s' AND UL.list_id = U.contact_list AND ULC.list_id = UL.list_id) ", authorisedUser);
-
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         List<String[]> rows = new ArrayList<String[]>();
+         for (MessengerStore.User contact : esql.store().listMembers(authorisedUser, MessengerStore.ListType.CONTACT))
+            rows.add(new String[] { contact.login, contact.phoneNum, contact.status });
+         int rowCount = printResult(new String[] { "login", "phonenum", "status" }, rows);
          System.out.println ("total contacts: " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
@@ -600,11 +959,10 @@ public class Messenger {
     public static void ListBlocked(Messenger esql, String authorisedUser){
       try{
         // Browsing current user's block list
-        String query = String.format("SELECT ULC.list_member " +
-                       "FROM USR U, USER_LIST UL, USER_LIST_CONTAINS ULC " +
-                       "WHERE U.login = '%s' AND UL.list_id = U.block_list AND ULC.list_id = UL.list_id ", authorisedUser);
-
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         List<String[]> rows = new ArrayList<String[]>();
+         for (MessengerStore.User blocked : esql.store().listMembers(authorisedUser, MessengerStore.ListType.BLOCK))
+            rows.add(new String[] { blocked.login });
+         int rowCount = printResult(new String[] { "list_member" }, rows);
          System.out.println ("total blocked: " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
@@ -613,79 +971,73 @@ public class Messenger {
 
    public static void ListChats(Messenger esql, String authorisedUser){
       try{
-        //select chats where user is a member of that chat
-        //String query = String.format("SELECT CL.chat_id, CL.member " + 
-        //               "FROM CHAT_LIST CL " + 
-          //             "WHERE CL.chat_id = ANY (SELECT chat_id " +
-            //                    "FROM CHAT_LIST " +
-              //                  "WHERE member = '%s' )", authorisedUser);
-		//String query = String.format("SELECT m.chat_id as chat_id, m.sender_login as Sent_Latest_Message, m.msg_timestamp as Timestamp from message M where chat_id = ANY(select cl.chat_id from chat_list cl where member='%s') AND m.msg_timestamp = ANY (Select max (a.msg_timestamp) from message a where chat_id = any (select cl.chat_id from chat_list cl where member = '%s') Group by chat_id) order by m.msg_timestamp desc", authorisedUser, authorisedUser);
-	String query = String.format(
-		"SELECT " +
-  		"  M.chat_id as Chat_ID, "+
-  		"  M.sender_login as Sent_Latest_Message, "+
-  		"  M.msg_timestamp as Timestamp " +
-		"FROM " +
-  		"  message M " +
-		"WHERE " +
-  		"  chat_id= ANY ( " +
-      		"    SELECT " +
-      		"      CL.chat_id " +
-      		"    FROM " +
-        	"      chat_list CL " +
-      		"    WHERE member='%s') " +
-  		"  AND " +
-  		"    M.msg_timestamp = ANY ( " +
-    		"      SELECT MAX(A.msg_timestamp) " +
-    		"      FROM " +
-       		"        Message A " +
-    		" WHERE chat_id = ANY ( " +
-      		"   SELECT CL.chat_id " +
-      		"   FROM " +
-        	"     chat_list CL " +
-      		"   WHERE member='%s') " +
-                " GROUP BY chat_id) " +
-                " ORDER BY " +
-	 	" M.msg_timestamp desc;"
-	 	, authorisedUser, authorisedUser);
-         int rowCount = esql.executeQueryAndPrintResult(query);
+        //select the latest message of every chat the user is a member of
+         List<String[]> rows = new ArrayList<String[]>();
+         for (MessengerStore.ChatSummary chat : esql.store().listChats(authorisedUser))
+            rows.add(new String[] { String.valueOf(chat.chatId), chat.latestSender,
+                                    new Timestamp(chat.latestTimestamp).toString() });
+         int rowCount = printResult(new String[] { "chat_id", "sent_latest_message", "timestamp" }, rows);
          System.out.println ("total chats: " + rowCount);
       }catch(Exception e){ 
          System.err.println (e.getMessage());
       }   
    }//end
   
-  private static boolean ValidUser(Messenger esql, String authorisedUser, String checkingUser){
-    String query = "";
+  /*
+   * Prints the logins matching what was typed before the '?', contacts first
+   **/
+  private static void SuggestRecipients(Messenger esql, String authorisedUser, String typed){
     try{
-      //Check if user exists
-      query = String.format("SELECT login FROM usr WHERE login='%s'", checkingUser);
-      if(esql.executeQuery(query)>0){
-        
+      String prefix = typed.substring(0, typed.length() - 1).trim();
+      HashSet<String> contacts = new HashSet<String>();
+      for (MessengerStore.User contact : esql.store().listMembers(authorisedUser, MessengerStore.ListType.CONTACT))
+        contacts.add(contact.login);
+      List<String> matches = esql.loginIndex().complete(prefix, contacts, SUGGESTIONS);
+      if (matches.isEmpty()){
+        System.out.println("No users start with " + prefix);
+      }
+      for (String login : matches){
+        System.out.println("\t" + login + (contacts.contains(login) ? " (contact)" : ""));
+      }
+    } catch(Exception e){
+      System.out.println("Query Error: " + e.getMessage());
+    }
+  }
 
-        //Check if users blocklist contains authorisedUser
-        query = String.format(
-          "SELECT list_member FROM user_list_contains WHERE "
-          + "list_member='%s' AND list_id = (SELECT block_list " 
-          + "FROM usr where login ='%s');", authorisedUser, checkingUser);
-        
-        
-        if(esql.executeQuery(query) > 0){
-          //System.out.println("FALSE: " + query);
-          return false;
-        }  else {
-          //System.out.println("TRUE: " + query);
-          return true;
-        }
-        
+  // how many logins SuggestRecipients lists
+  static final int SUGGESTIONS = 10;
+
+  /*
+   * Splits a line of recipients, separated by commas or spaces, into names
+   **/
+  private static List<String> ReadNames(String line){
+    List<String> names = new ArrayList<String>();
+    for (String name : line.split("[,\\s]+")){
+      if (!name.isEmpty())
+        names.add(name);
+    }
+    return names;
+  }
+
+  /*
+   * Validates all names with one query, prints the rejected ones with the
+   * reason and returns the others. chatID is -1 for a chat not created yet.
+   **/
+  private static List<String> AcceptRecipients(Messenger esql, String authorisedUser, int chatID, Collection<String> names){
+    List<String> accepted = new ArrayList<String>();
+    try{
+      Map<String, String> rejected = esql.store().validateRecipients(authorisedUser, chatID, names);
+      for (Map.Entry<String, String> reject : rejected.entrySet()){
+        System.out.println("\tNot adding " + reject.getKey() + ": " + reject.getValue());
       }
-      return false;
-     } catch(Exception e){
-      System.out.println("QUERY ERROR: " + query);
-      System.out.println("Message: " + e.getMessage());
-      return false;
-     } 
-    
+      for (String name : names){
+        if (!rejected.containsKey(name) && !accepted.contains(name))
+          accepted.add(name);
+      }
+    } catch(Exception e){
+      System.out.println("Query Error: " + e.getMessage());
+    }
+    return accepted;
   }
 
   public static void NewChat(Messenger esql, String authorisedUser){
@@ -694,15 +1046,19 @@ public class Messenger {
       boolean picking = true;
       HashSet<String> users = new HashSet<String>();
       users.add(authorisedUser);
+      List<String> pending = new ArrayList<String>();
       try {
         while(picking){
-          System.out.println("Type in the new reciepients name or hit [enter] to continue");
+          System.out.println("Type in the new reciepients names (separate several with commas) or hit [enter] to continue");
+          System.out.println("(end with ? to look up names or phone numbers starting with what you typed)");
           String contact = in.readLine();
           
-          if(ValidUser(esql, authorisedUser, contact)){
-            System.out.println("Adding " + contact + " to the recipients list");
-            users.add(contact);
-          } else if (contact.equals("")){
+          if(contact.endsWith("?")){
+            SuggestRecipients(esql, authorisedUser, contact);
+          } else if (contact.trim().equals("")){
+            // everyone typed so far is checked in one go
+            users.addAll(AcceptRecipients(esql, authorisedUser, -1, pending));
+            pending.clear();
             if(users.size() < 2){
               System.out.println("You must add atleast one other member into the chat!");
             } else {
@@ -713,7 +1069,10 @@ public class Messenger {
               picking = false;
             }
           } else {
-            System.out.println("Not a valid Username try again!");
+            for (String name : ReadNames(contact)){
+              System.out.println("Adding " + name + " to the recipients list");
+              pending.add(name);
+            }
           }
         }
       } catch(Exception e){
@@ -725,32 +1084,21 @@ public class Messenger {
         chat_type = "private";  
       }
       
-      String query_insert_chat = "";
       try {
-        query_insert_chat = String.format(
-                                     "INSERT INTO chat (chat_type, init_sender) VALUES ('%s','%s');"
-                                     , chat_type, authorisedUser);
-        //List< List < String > > result = esql.executeQueryAndReturnResult(query_insert_chat);
-       
-        //System.out.println("Result is: " + result.toString());
-        //int seq_val = Integer.parseInt(result.get(0).get(0));
-        esql.executeUpdate(query_insert_chat);
-        int seq_val = esql.getCurrSeqVal("chat_chat_id_seq");
+        int seq_val = esql.store().createChat(authorisedUser, chat_type, users);
+        AuthorizationCache session = esql.session(authorisedUser);
+        session.putMember(seq_val, true);
+        session.putOwner(seq_val, true);
         System.out.println("chat_id is " + seq_val);
         
-      
-        
-        for(String member : users){
-          String query_insert_chat_list = String.format("INSERT INTO chat_list (chat_id, member) VALUES ('%d','%s');"
-                                                        , seq_val, member);
-          esql.executeUpdate(query_insert_chat_list);
-        }
      	if (chat_type == "group"){ 
         	System.out.println("Finished creating a group chat!");
 	}
 	else{
 		System.out.println("Finished creating a private chat!");
 	}
+      } catch(SlowDownException e){
+		System.out.println(e.getMessage());
       } catch(Exception e){
 		System.out.println("Query Error: " + e.getMessage());
       }
@@ -758,12 +1106,7 @@ public class Messenger {
 
   private static boolean ValidChat(Messenger esql, String authorisedUser, int chatID){
     try {
-       String check_valid_query = String.format(
-                                  "SELECT chat_id from chat_list WHERE chat_list.chat_id = %d " +
-                                  "AND chat_list.member='%s';", chatID, authorisedUser);
-      
-      List<List< String> > result = esql.executeQueryAndReturnResult(check_valid_query);
-      if(result.size() > 0){
+      if(esql.session(authorisedUser).isMember(esql.store(), chatID)){
         return true; 
       }
       else
@@ -778,10 +1121,7 @@ public class Messenger {
 
   private static boolean IsInitialSender(Messenger esql, String authorisedUser, int chatID){
 	try {
-		String check_initial_sender = String.format("SELECT init_sender FROM CHAT " +
-										"WHERE chat_id = %d AND init_sender = '%s'", chatID, authorisedUser);
-		List<List< String> > result = esql.executeQueryAndReturnResult(check_initial_sender);
-      	if(result.size() > 0){
+      	if(esql.session(authorisedUser).isInitSender(esql.store(), chatID)){
 			return true; 
       	}
 	}
@@ -797,17 +1137,36 @@ public class Messenger {
     try{
       System.out.println("Select a chat to view messages in.");
       int chat = Integer.parseInt(in.readLine());
-      if (ValidChat(esql, authorisedUser, chat))
+      int limit = 10;
+      // membership, ownership and the first page are fetched at the same
+      // time, unless the session already knows the first two; the page is
+      // only shown once membership is confirmed
+      AuthorizationCache session = esql.session(authorisedUser);
+      AsyncMessengerStore async = esql.async();
+      long version = session.version(chat);
+      Boolean knownMember = session.member(chat);
+      Boolean knownOwner = session.owner(chat);
+      CompletableFuture<Boolean> member = knownMember != null ? CompletableFuture.completedFuture(knownMember)
+                                                              : async.isMember(chat, authorisedUser);
+      CompletableFuture<Boolean> owner = knownOwner != null ? CompletableFuture.completedFuture(knownOwner)
+                                                            : async.isInitSender(chat, authorisedUser);
+      CompletableFuture<List<MessengerStore.Message>> page = async.getMessages(chat, limit, offset);
+      if (AsyncMessengerStore.join(member))
       {
+        session.putMember(chat, true, version);
+        boolean initialSender = AsyncMessengerStore.join(owner);
+        session.putOwner(chat, initialSender, version);
         while(picking){
+          if (page == null){
+            page = async.getMessages(chat, limit, offset);
+          }
           System.out.print("\033[H\033[2J");
           System.out.println("Showing messages " + offset + " to " + (offset + 10));
-          int limit = 10;
-          String get_chat_query = String.format(
-                  "SELECT msg_id, msg_timestamp, msg_text FROM message WHERE chat_id= %d ORDER BY msg_timestamp desc LIMIT %d OFFSET %d"
-                  , chat, limit, offset);
-
-          esql.executeQueryAndPrintResult(get_chat_query);
+          List<String[]> rows = new ArrayList<String[]>();
+          for (MessengerStore.Message message : AsyncMessengerStore.join(page))
+            rows.add(new String[] { String.valueOf(message.msgId), new Timestamp(message.timestamp).toString(), message.text });
+          page = null;
+          printResult(new String[] { "msg_id", "msg_timestamp", "msg_text" }, rows);
           //ask if user wants to view more. increment limit by 10. clear screen and reexecute query. loop until user says no    
           System.out.println("\t1. Reply to chat");
           System.out.println("\t2. See next 10 messages");
@@ -815,12 +1174,14 @@ public class Messenger {
 		  System.out.println("\t4. Edit message");
 		  System.out.println("\t5. Delete message");	
           //these options are given only if the user is the initial sender for these chats
-          if (IsInitialSender(esql, authorisedUser, chat))
+          if (initialSender)
           {
 			System.out.println("\t6. Add members to chat");
 			System.out.println("\t7. Remove members from chat");
           }
           System.out.println("\t8. return to main menu");
+          System.out.println("\t9. Attach a file to a message");
+          System.out.println("\t10. Save an attachment");
           switch(readChoice()){  
             case 1: 
                     ReplyChat(esql, authorisedUser, chat);
@@ -840,19 +1201,25 @@ public class Messenger {
 					DeleteMessage(esql, authorisedUser, chat);
 					break;
             case 6: 
-					if (IsInitialSender(esql, authorisedUser, chat)){
+					if (initialSender){
 						AddMember(esql, authorisedUser, chat);
 					}
 					break;
 			
 			case 7: 
-					if (IsInitialSender(esql, authorisedUser, chat)){
+					if (initialSender){
 						DeleteMember(esql, authorisedUser, chat);
 					}
 					break;
             case 8:
                     picking = false;
                     break;
+            case 9:
+                    AttachFile(esql, authorisedUser, chat);
+                    break;
+            case 10:
+                    SaveAttachment(esql, chat);
+                    break;
             default:
                     break;
           }
@@ -860,6 +1227,9 @@ public class Messenger {
       }
       else
       {
+      	session.putMember(chat, false, version);
+      	owner.cancel(true);
+      	page.cancel(true);
       	System.out.println("Invalid chat");
       }
       
@@ -869,6 +1239,48 @@ public class Messenger {
     
   }
   
+  public static void ViewFeed(Messenger esql, String authorisedUser){
+    boolean picking = true;
+    int offset = 0;
+    try{
+      while(picking){
+        System.out.print("\033[H\033[2J");
+        System.out.println("Showing messages " + offset + " to " + (offset + 10) + " from all of your chats");
+        List<String[]> rows = new ArrayList<String[]>();
+        for (MessengerStore.Message message : esql.store().getFeed(authorisedUser, 10, offset))
+          rows.add(new String[] { String.valueOf(message.chatId), message.sender,
+                                  new Timestamp(message.timestamp).toString(), message.text });
+        printResult(new String[] { "chat_id", "sender_login", "msg_timestamp", "msg_text" }, rows);
+        if (esql._inbox != null && esql._inbox.messagesPosted() > 0)
+          System.out.println(String.format("inbox write amplification: %.2f rows per message",
+                                           esql._inbox.writeAmplification()));
+        System.out.println("\t1. See next 10 messages");
+        System.out.println("\t2. See previous 10 messages");
+        System.out.println("\t8. return to chat menu");
+        switch(readChoice()){
+          case 1:
+                  offset += 10;
+                  break;
+          case 2:
+                  if(offset > 0){
+                    offset -= 10;
+                  }
+                  break;
+          case 8:
+                  picking = false;
+                  break;
+          default:
+                  break;
+        }
+      }
+    } catch(Exception e){
+      System.out.println("Query Error: " + e.getMessage());
+    }
+  }
+
+  // how many times ReplyChat tries to send before giving up
+  static final int SEND_ATTEMPTS = 3;
+
   public static void ReplyChat(Messenger esql, String authorisedUser, int chatID){
     try {
       
@@ -887,14 +1299,29 @@ public class Messenger {
       String message = in.readLine();
       
       
-      // Send message
-      String insert_chat_query = String.format(
-                                 "INSERT INTO message (msg_text, sender_login,chat_id) VALUES ('%s','%s','%d')"
-                                 , message, authorisedUser, chatID);
-      
-      esql.executeUpdate(insert_chat_query);
+      // Send message; the key makes retrying after a lost reply safe
+      String clientKey = UUID.randomUUID().toString();
+      for (int attempt = 1; ; attempt++){
+        try {
+          int msgId = esql.store().postMessage(chatID, authorisedUser, message, clientKey);
+          esql.session(authorisedUser).putSent(chatID, msgId);
+          break;
+        } catch(SQLException e) {
+          // connection exceptions (class 08), on a new connection, and
+          // transaction rollbacks (class 40)
+          String state = e.getSQLState();
+          if (attempt == SEND_ATTEMPTS || state == null || !(state.startsWith("08") || state.startsWith("40")))
+            throw e;
+          if (state.startsWith("08") && !esql.reconnect())
+            throw e;
+          System.out.println("Send failed, retrying...");
+        }
+      }
       
       System.out.println("Message sent!");
+    } catch(SlowDownException e) {
+      System.out.println(e.getMessage());
+      WaitForKey();
     } catch(Exception e) {
       System.out.println("Query Error: " + e.getMessage());
     }
@@ -903,26 +1330,14 @@ public class Messenger {
   
   public static void RemoveFromContact(Messenger esql, String authorisedUser){
 	try{	
-    //Get contat list ID
-    String query1 = String.format("SELECT contact_list FROM Usr WHERE login = '%s'", authorisedUser);
-
-    List<List<String>> result;
-    result = esql.executeQueryAndReturnResult(query1);
-    int list_id = Integer.parseInt(result.get(0).get(0)); 
-	
-	//Ask user for other user's login and check if they exist
+	//Ask user for other user's login
 	String login;
 	System.out.print("Enter the user name: ");
 	login = in.readLine();
-	String query2 = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id = %d and list_member= '%s'", list_id, login);
-	int rowCount = esql.executeQuery(query2);
       
-      if (rowCount > 0) //requested user exists
+      //Delete contact from contact list if they are on it
+      if (esql.store().removeFromList(authorisedUser, MessengerStore.ListType.CONTACT, login))
       {   
-        //Delete contact from contact list
-        String query3 = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id = %d and list_member = '%s'", list_id, login);
-    
-        esql.executeUpdate(query3);
         System.out.println ("Successfully removed from contacts");
       }   
       else //requested user does not exist
@@ -935,26 +1350,14 @@ public class Messenger {
 
   public static void RemoveFromBlock(Messenger esql, String authorisedUser){
     try{	
-    //Get block list ID
-    String query1 = String.format("SELECT block_list FROM Usr WHERE login = '%s'", authorisedUser);
-
-    List<List<String>> result;
-    result = esql.executeQueryAndReturnResult(query1);
-    int list_id = Integer.parseInt(result.get(0).get(0)); 
-	
-	//Ask user for other user's login and check if they exist
+	//Ask user for other user's login
 	String login;
 	System.out.print("Enter the user name: ");
 	login = in.readLine();
-	String query2 = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id = %d and list_member= '%s'", list_id, login);
-	int rowCount = esql.executeQuery(query2);
       
-      if (rowCount > 0) //requested user exists
+      //Delete contact from block list if they are on it
+      if (esql.store().removeFromList(authorisedUser, MessengerStore.ListType.BLOCK, login))
       {   
-        //Delete contact from block list
-        String query3 = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id = %d and list_member = '%s'", list_id, login);
-    
-        esql.executeUpdate(query3);
         System.out.println ("Successfully removed from blocked");
       }   
       else //requested user does not exist
@@ -973,8 +1376,8 @@ public class Messenger {
 		if(IsInitialSender(esql, authorisedUser, chat))
 		{
 			System.out.println("Deleting chat...");
-			String delete_chat = String.format("DELETE FROM Chat where chat_id = %d", chat);
-			esql.executeUpdate(delete_chat);
+			esql.store().deleteChat(chat);
+			esql.session(authorisedUser).invalidate(chat);
 			
 			System.out.println("Successfully deleted chat");
 			WaitForKey();
@@ -993,27 +1396,38 @@ public class Messenger {
   public static void DeleteMember(Messenger esql, String authorisedUser, int chatID){
   	  try{
   	  System.out.println("Here is a list of the recipients: ");
-      String query = String.format("SELECT member FROM chat_list WHERE chat_id = %d", chatID);
-      int number_of_recipients = esql.executeQueryAndPrintResult(query);
+      List<String[]> rows = new ArrayList<String[]>();
+      for (String member : esql.store().chatMembers(chatID))
+        rows.add(new String[] { member });
+      int number_of_recipients = printResult(new String[] { "member" }, rows);
       boolean picking = true;
+      List<String> pending = new ArrayList<String>();
       	if (number_of_recipients >= 3)
       	{
         	while(picking){
-          	  System.out.println("Type in the recipient to remove or hit [enter] to continue");
+          	  System.out.println("Type in the recipients to remove (separate several with commas) or hit [enter] to continue");
           	  String contact = in.readLine();
           	  
-          	  if(ValidUser(esql, authorisedUser, contact)){
-            	System.out.println("Removing " + contact + " from the recipients list");
-				String query_insert_chat_list = String.format("DELETE FROM chat_list WHERE chat_id = %d AND member = '%s'" , chatID, contact);
-				esql.executeUpdate(query_insert_chat_list);
-          	  } 
-          	  else if (contact.equals("")){
+          	  if (contact.trim().equals("")){
               	  picking = false;
             	}
           	  else {
-            	System.out.println("Not a valid Username try again!");
+          	    pending.addAll(ReadNames(contact));
           	  }
         	}
+        	if (number_of_recipients - pending.size() < 2){
+        	  System.out.println("A chat needs atleast 2 members. You can only delete entire chat");
+        	  return;
+        	}
+        	// removed in one transaction
+        	List<String> removed = esql.store().removeMembers(chatID, pending);
+        	esql.session(authorisedUser).invalidate(chatID);
+        	for (String name : pending){
+        	  if (removed.contains(name))
+        	    System.out.println("Removing " + name + " from the recipients list");
+        	  else
+        	    System.out.println("\tNot removing " + name + ": not in the chat");
+        	}
         }
 		else{
 			System.out.println("Only 2 members in chat. You can only delete entire chat");
@@ -1028,23 +1442,30 @@ public class Messenger {
 	System.out.println("Here are a list of your contacts, you can also add other users with their username: ");
       ListContacts(esql, authorisedUser);
       boolean picking = true;
+      List<String> pending = new ArrayList<String>();
       try {
         while(picking){
-          System.out.println("Type in the new recipient name or hit [enter] to continue");
+          System.out.println("Type in the new recipients names (separate several with commas) or hit [enter] to continue");
+          System.out.println("(end with ? to look up names or phone numbers starting with what you typed)");
           String contact = in.readLine();
           
-          if(ValidUser(esql, authorisedUser, contact)){
-            System.out.println("Adding " + contact + " to the recipients list");
-			String query_insert_chat_list = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d,'%s')" , chatID, contact);
-			esql.executeUpdate(query_insert_chat_list);
-          } 
-          else if (contact.equals("")){
+          if(contact.endsWith("?")){
+            SuggestRecipients(esql, authorisedUser, contact);
+          }
+          else if (contact.trim().equals("")){
               picking = false;
             }
           else {
-            System.out.println("Not a valid Username try again!");
+            pending.addAll(ReadNames(contact));
           }
         }
+        // checked with one query and added in one transaction
+        List<String> accepted = AcceptRecipients(esql, authorisedUser, chatID, pending);
+        esql.store().addMembers(chatID, accepted);
+        esql.session(authorisedUser).invalidate(chatID);
+        for (String name : accepted){
+          System.out.println("Adding " + name + " to the recipients list");
+        }
       } catch(Exception e){
 		System.out.println("Query Error: " + e.getMessage());       
       }    
@@ -1053,11 +1474,7 @@ public class Messenger {
 
   private static boolean IsMessageSender(Messenger esql, String authorisedUser, int chatID, int message){
 	try{
-		String query = String.format("SELECT * FROM message " +
-						"WHERE msg_id = %d and chat_id = %d and sender_login = '%s'",
-						message, chatID, authorisedUser);
-		List<List< String> > result = esql.executeQueryAndReturnResult(query);
-      	if(result.size() > 0){
+      	if(esql.session(authorisedUser).isMessageSender(esql.store(), chatID, message)){
 			return true; 
       	}
 	}
@@ -1074,8 +1491,7 @@ public class Messenger {
 		if(IsMessageSender(esql, authorisedUser, chatID, message))
 		{
 			System.out.println("Deleting message...");
-			String delete_message = String.format("DELETE FROM message where msg_id = %d", message);
-			esql.executeUpdate(delete_message);
+			esql.store().deleteMessage(message);
 			
 			System.out.println("Successfully deleted message");
 			WaitForKey();
@@ -1091,6 +1507,82 @@ public class Messenger {
 	}
   }
 	
+  public static void AttachFile(Messenger esql, String authorisedUser, int chatID){
+	try{
+		AttachmentStore attachments = esql.attachments();
+		if (attachments == null){
+			System.out.println("Attachments need a database connection");
+			WaitForKey();
+			return;
+		}
+		System.out.println("Select a message to attach a file to.");
+		int message = Integer.parseInt(in.readLine());
+		if(IsMessageSender(esql, authorisedUser, chatID, message))
+		{
+			System.out.println("Enter the path of the file to attach:");
+			File file = new File(in.readLine());
+			if (!file.isFile()){
+				System.out.println("No such file");
+			}
+			else{
+				int att_id = attachments.upload(message, file);
+				System.out.println("Successfully attached " + file.getName() + " as attachment " + att_id);
+			}
+			WaitForKey();
+		}
+		else
+		{
+			System.out.println("You are not authorized to attach files to this message");
+			WaitForKey();
+		}
+	}
+	catch(Exception e){
+		System.out.println("Query Error: " + e.getMessage());
+	}
+  }
+
+  public static void SaveAttachment(Messenger esql, int chatID){
+	try{
+		AttachmentStore attachments = esql.attachments();
+		if (attachments == null){
+			System.out.println("Attachments need a database connection");
+			WaitForKey();
+			return;
+		}
+		System.out.println("Select a message to list its attachments.");
+		int message = Integer.parseInt(in.readLine());
+		MessengerStore.Message msg = esql.store().getMessage(message);
+		if (msg == null || msg.chatId != chatID){
+			System.out.println("This message is not in this chat");
+			WaitForKey();
+			return;
+		}
+		List<String[]> rows = new ArrayList<String[]>();
+		for (AttachmentStore.Attachment attachment : attachments.list(message))
+			rows.add(new String[] { String.valueOf(attachment.attId), attachment.fileName, String.valueOf(attachment.fileSize) });
+		if (printResult(new String[] { "att_id", "file_name", "file_size" }, rows) == 0){
+			System.out.println("This message has no attachments");
+			WaitForKey();
+			return;
+		}
+		System.out.println("Select an attachment to save.");
+		int att_id = Integer.parseInt(in.readLine());
+		if (attachments.messageOf(att_id) != message){
+			System.out.println("Invalid attachment");
+		}
+		else{
+			System.out.println("Enter the path to save it to:");
+			File file = new File(in.readLine());
+			long bytes = attachments.download(att_id, file);
+			System.out.println("Saved " + bytes + " bytes to " + file.getPath());
+		}
+		WaitForKey();
+	}
+	catch(Exception e){
+		System.out.println("Query Error: " + e.getMessage());
+	}
+  }
+
   public static void EditMessage(Messenger esql, String authorisedUser, int chatID){
 	try{
 		System.out.println("Select a message to edit.");
@@ -1098,13 +1590,11 @@ public class Messenger {
 		if(IsMessageSender(esql, authorisedUser, chatID, message))
 		{
 			System.out.println("This message said: ");
-			String prev_message = String.format("SELECT msg_text FROM message WHERE msg_id = %d", message);
-			esql.executeQueryAndPrintResult(prev_message);
+			System.out.println(esql.store().getMessage(message).text);
 
       	  	System.out.println("Enter the edited message:");
       	  	String message_text = in.readLine();
-      	  	String edit_message = String.format("UPDATE message SET msg_text = '%s' WHERE msg_id = %d" ,message_text, message);
-      	  	esql.executeUpdate(edit_message);
+      	  	esql.store().editMessage(message, message_text);
 
 			System.out.println("Successfully edited message");
 			WaitForKey(); 
@@ -1127,8 +1617,7 @@ public class Messenger {
 		switch (readChoice()){
           case 1: 
                   System.out.println("Deleting account...");
-                  String terminate = String.format("DELETE FROM usr WHERE login = '%s'", authorisedUser);
-                  esql.executeUpdate(terminate);
+                  esql.store().deleteUser(authorisedUser);
                   
                   System.out.println("Account successfully deleted");
                   WaitForKey();
@@ -1146,16 +1635,14 @@ public class Messenger {
   public static void UpdateStatus(Messenger esql, String authorisedUser){
 	try{
 		System.out.println("Your current status is: ");
-		String status = String.format("Select status from usr where login = '%s'", authorisedUser);
-		esql.executeQueryAndPrintResult(status);
+		System.out.println(esql.store().getStatus(authorisedUser));
 		System.out.println("Would you like to edit your status?");
 		System.out.println("1 = Yes. 2 = No");
 		switch (readChoice()){
           	case 1:
 			System.out.println("Enter your new status: ");
 			String new_status = in.readLine();	
-			String edit_status = String.format("UPDATE usr SET status = '%s' WHERE login = '%s'", new_status, authorisedUser);
-			esql.executeUpdate(edit_status);
+			esql.store().setStatus(authorisedUser, new_status);
 
 			System.out.println("Successfully updated your status");
 		case 2:
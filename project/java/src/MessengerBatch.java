@@ -0,0 +1,563 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Non-interactive front end for scripts, bulk admin tasks and replay tests.
+ * Reads one command per line from a file or stdin,
+ *
+ *    user TAB operation [TAB argument]*
+ *
+ * with tabs, newlines and backslashes in arguments escaped as \t, \n and
+ * \\ (as in COPY text). Lines starting with # are ignored. For every
+ * command one JSON object is written to stdout, in input order:
+ *
+ *    {"line":3,"user":"alice","op":"post","ok":true,"result":1042}
+ *    {"line":4,"user":"bob","op":"post","ok":false,"error":"not a member of chat 7"}
+ *
+ * and a throughput summary goes to stderr at the end.
+ *
+ * Commands are run by -Dmessenger.batch.threads workers (default 4), each
+ * with its own connection, and up to -Dmessenger.batch.window commands
+ * (default 1000) are in flight at once. All commands of one user go to the
+ * same worker and run in input order; commands of different users may
+ * overlap. A line with the single word sync waits until everything before
+ * it has finished, for scripts where one user depends on another.
+ *
+ * Users are trusted as given, with no password check, and are not rate
+ * limited; membership, ownership and authorship are checked as in the menus.
+ * The checks of the last -Dmessenger.batch.sessions users (default 10000)
+ * are cached; a change to a chat's members only reaches the users who have
+ * something cached about that chat.
+ *
+ * Operations and their arguments:
+ *
+ *    create_user password phone      delete_user
+ *    status                          set_status text
+ *    contacts                        blocked
+ *    add_contact login               remove_contact login
+ *    block login                     unblock login
+ *    sync_contacts phone,phone,...   chats
+ *    new_chat login,login,...        delete_chat chat_id
+ *    add_members chat_id login,...   remove_members chat_id login,...
+ *    post chat_id text [client_key]  messages chat_id [limit [offset]]
+ *    edit msg_id text                delete_message msg_id
+ *    feed [limit [offset]]           sync_messages [watermark [limit]]
+ *
+ * sync_messages without a watermark, or with -, starts from now.
+ *
+ * Usage:
+ *    java MessengerBatch <hostname> <dbname> <port> <user> <password> [file]
+ *    java MessengerBatch memory [file]
+ */
+public class MessengerBatch {
+
+   static final int THREADS = Integer.getInteger("messenger.batch.threads", 4);
+   static final int WINDOW = Integer.getInteger("messenger.batch.window", 1000);
+   static final int SESSIONS = Integer.getInteger("messenger.batch.sessions", 10000);
+
+   // page size of messages and feed when none is given
+   static final int PAGE = 10;
+
+   // changes returned by sync_messages when no limit is given
+   static final int SYNC_PAGE = 100;
+
+   private static final class Command {
+      final long seq;
+      final int line;
+      final String user;
+      final String op;
+      final String[] args;
+
+      Command(long seq, int line, String user, String op, String[] args){
+         this.seq = seq;
+         this.line = line;
+         this.user = user;
+         this.op = op;
+         this.args = args;
+      }
+   }//end Command
+
+   // tells a worker that no more commands follow
+   private static final Command DONE = new Command(-1, 0, null, null, null);
+
+   /** A command that failed in a way the caller can act on. */
+   private static final class Refused extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      Refused(String message){
+         super(message);
+      }
+   }//end Refused
+
+   private final MessengerStore[] stores;
+   private final List<BlockingQueue<Command>> queues = new ArrayList<BlockingQueue<Command>>();
+   // chat_id -> users whose checks may hold something about the chat
+   private final ConcurrentHashMap<Integer, Set<String>> watchers = new ConcurrentHashMap<Integer, Set<String>>();
+   // authorization checks per user, shared by the workers, least recently used first
+   private final Map<String, AuthorizationCache> sessions = Collections.synchronizedMap(
+      new LinkedHashMap<String, AuthorizationCache>(16, 0.75f, true){
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry<String, AuthorizationCache> eldest){
+            if (size() <= SESSIONS)
+               return false;
+            for (Integer chatId : eldest.getValue().chats())
+               unwatch(chatId, eldest.getKey());
+            return true;
+         }
+      });
+   private final PrintWriter out;
+
+   // results waiting for the ones before them, indexed by seq % WINDOW
+   private final String[] finished = new String[WINDOW];
+   private final Semaphore window = new Semaphore(WINDOW);
+   private long written = 0;
+   private long failed = 0;
+
+   public MessengerBatch(MessengerStore[] stores, PrintWriter out){
+      this.stores = stores;
+      this.out = out;
+      for (int w = 0; w < stores.length; w++)
+         queues.add(new LinkedBlockingQueue<Command>());
+   }
+
+   /**
+    * Runs every command read from in.
+    *
+    * @return the number of commands run
+    */
+   public long run(BufferedReader in) throws Exception {
+      Thread[] threads = new Thread[stores.length];
+      for (int w = 0; w < stores.length; w++){
+         final MessengerStore store = stores[w];
+         final BlockingQueue<Command> queue = queues.get(w);
+         threads[w] = new Thread(new Runnable(){
+            public void run(){
+               try {
+                  Command command;
+                  while ((command = queue.take()) != DONE)
+                     finish(command, execute(store, command));
+               } catch (InterruptedException e){
+                  // stopped.
+               }
+            }
+         }, "messenger-batch-" + w);
+         threads[w].setDaemon(true);
+         threads[w].start();
+      }
+
+      long seq = 0;
+      int line = 0;
+      String text;
+      try {
+         while ((text = in.readLine()) != null){
+            line++;
+            if (text.trim().isEmpty() || text.startsWith("#"))
+               continue;
+            if (text.trim().equals("sync")){
+               window.acquire(WINDOW);
+               window.release(WINDOW);
+               continue;
+            }
+            String[] fields = text.split("\t", -1);
+            window.acquire();
+            if (fields.length < 2){
+               Command malformed = new Command(seq++, line, fields[0], "", new String[0]);
+               finish(malformed, failure(malformed, "expected user TAB operation"));
+               continue;
+            }
+            String[] args = new String[fields.length - 2];
+            for (int i = 0; i < args.length; i++)
+               args[i] = unescape(fields[i + 2]);
+            Command command = new Command(seq++, line, fields[0], fields[1], args);
+            queues.get((command.user.hashCode() & 0x7FFFFFFF) % queues.size()).put(command);
+         }
+      } finally {
+         for (BlockingQueue<Command> queue : queues)
+            queue.put(DONE);
+         for (Thread thread : threads)
+            thread.join();
+         out.flush();
+      }
+      return seq;
+   }
+
+   /*
+    * Records a result and writes out every result that is now in order
+    **/
+   private void finish(Command command, String json){
+      synchronized (finished){
+         finished[(int) (command.seq % WINDOW)] = json;
+         int next;
+         while (finished[next = (int) (written % WINDOW)] != null){
+            out.println(finished[next]);
+            finished[next] = null;
+            written++;
+            window.release();
+         }
+      }
+   }
+
+   private AuthorizationCache session(String user){
+      synchronized (sessions){
+         AuthorizationCache session = sessions.get(user);
+         if (session == null){
+            session = new AuthorizationCache(user);
+            sessions.put(user, session);
+         }
+         return session;
+      }
+   }
+
+   /*
+    * Notes that user's checks are about to cache something about chatId;
+    * called before the check, so an invalidate that misses the new entry
+    * happened before the check read the database
+    **/
+   private void watch(int chatId, String user){
+      Set<String> users = watchers.get(chatId);
+      if (users == null){
+         watchers.putIfAbsent(chatId, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+         users = watchers.get(chatId);
+      }
+      users.add(user);
+   }
+
+   private void unwatch(int chatId, String user){
+      Set<String> users = watchers.get(chatId);
+      if (users != null)
+         users.remove(user);
+   }
+
+   /*
+    * Forgets chatId in the checks of the users watching it after its members
+    * changed
+    **/
+   private void invalidate(int chatId){
+      Set<String> users = watchers.remove(chatId);
+      if (users == null)
+         return;
+      for (String user : users){
+         AuthorizationCache session = sessions.get(user);
+         if (session != null)
+            session.invalidate(chatId);
+      }
+   }
+
+   private String execute(MessengerStore store, Command command){
+      try {
+         return "{" + head(command) + ",\"ok\":true,\"result\":" + result(store, command) + "}";
+      } catch (Refused e){
+         return failure(command, e.getMessage());
+      } catch (SQLException e){
+         return failure(command, e.getMessage());
+      } catch (Throwable e){
+         // anything else still yields a result, or the reader would wait
+         // for this command's slot in the window forever
+         return failure(command, e.toString());
+      }
+   }
+
+   private String failure(Command command, String message){
+      synchronized (finished){
+         failed++;
+      }
+      return "{" + head(command) + ",\"ok\":false,\"error\":" + quote(message) + "}";
+   }
+
+   private static String head(Command command){
+      return "\"line\":" + command.line + ",\"user\":" + quote(command.user) + ",\"op\":" + quote(command.op);
+   }
+
+   private static String arg(Command command, int i) throws Refused {
+      if (i >= command.args.length)
+         throw new Refused(command.op + " needs " + (i + 1) + " argument" + (i == 0 ? "" : "s"));
+      return command.args[i];
+   }
+
+   private static int intArg(Command command, int i, int otherwise) throws Refused {
+      if (i >= command.args.length && otherwise >= 0)
+         return otherwise;
+      try {
+         return Integer.parseInt(arg(command, i).trim());
+      } catch (NumberFormatException e){
+         throw new Refused("not a number: " + command.args[i]);
+      }
+   }
+
+   private static List<String> names(String list){
+      List<String> names = new ArrayList<String>();
+      for (String name : list.split("[,\\s]+")){
+         if (!name.isEmpty())
+            names.add(name);
+      }
+      return names;
+   }
+
+   /*
+    * Runs one command, returning its result as JSON
+    **/
+   private String result(MessengerStore store, Command c) throws SQLException, Refused {
+      String user = c.user;
+      AuthorizationCache session = session(user);
+      String op = c.op;
+      if (op.equals("create_user")){
+         store.createUser(user, arg(c, 0), arg(c, 1));
+         return "null";
+      } else if (op.equals("delete_user")){
+         store.deleteUser(user);
+         synchronized (sessions){
+            for (AuthorizationCache other : sessions.values())
+               other.clear();
+         }
+         return "null";
+      } else if (op.equals("status")){
+         return quote(store.getStatus(user));
+      } else if (op.equals("set_status")){
+         store.setStatus(user, arg(c, 0));
+         return "null";
+      } else if (op.equals("contacts") || op.equals("blocked")){
+         MessengerStore.ListType type = op.equals("contacts") ? MessengerStore.ListType.CONTACT : MessengerStore.ListType.BLOCK;
+         List<String> logins = new ArrayList<String>();
+         for (MessengerStore.User member : store.listMembers(user, type))
+            logins.add(member.login);
+         return quote(logins);
+      } else if (op.equals("add_contact") || op.equals("block")){
+         MessengerStore.ListType type = op.equals("add_contact") ? MessengerStore.ListType.CONTACT : MessengerStore.ListType.BLOCK;
+         if (!store.addToList(user, type, arg(c, 0)))
+            throw new Refused(MessengerStore.NO_SUCH_USER + ": " + arg(c, 0));
+         return "null";
+      } else if (op.equals("remove_contact") || op.equals("unblock")){
+         MessengerStore.ListType type = op.equals("remove_contact") ? MessengerStore.ListType.CONTACT : MessengerStore.ListType.BLOCK;
+         return String.valueOf(store.removeFromList(user, type, arg(c, 0)));
+      } else if (op.equals("sync_contacts")){
+         return quote(store.syncContacts(user, Arrays.asList(arg(c, 0).split(","))));
+      } else if (op.equals("chats")){
+         StringBuilder chats = new StringBuilder("[");
+         for (MessengerStore.ChatSummary chat : store.listChats(user))
+            chats.append(chats.length() == 1 ? "" : ",").append(chat.chatId);
+         return chats.append("]").toString();
+      } else if (op.equals("new_chat")){
+         List<String> members = names(arg(c, 0));
+         refuseRejected(store.validateRecipients(user, -1, members));
+         if (!members.contains(user))
+            members.add(0, user);
+         if (members.size() < 2)
+            throw new Refused("a chat needs at least 2 members");
+         int chatId = store.createChat(user, members.size() == 2 ? "private" : "group", members);
+         watch(chatId, user);
+         session.putMember(chatId, true);
+         session.putOwner(chatId, true);
+         return String.valueOf(chatId);
+      } else if (op.equals("delete_chat")){
+         int chatId = owned(store, session, c);
+         store.deleteChat(chatId);
+         invalidate(chatId);
+         return "null";
+      } else if (op.equals("add_members")){
+         int chatId = owned(store, session, c);
+         List<String> members = names(arg(c, 1));
+         refuseRejected(store.validateRecipients(user, chatId, members));
+         store.addMembers(chatId, members);
+         invalidate(chatId);
+         return "null";
+      } else if (op.equals("remove_members")){
+         int chatId = owned(store, session, c);
+         List<String> members = names(arg(c, 1));
+         if (store.chatMembers(chatId).size() - members.size() < 2)
+            throw new Refused("a chat needs at least 2 members");
+         List<String> removed = store.removeMembers(chatId, members);
+         invalidate(chatId);
+         return quote(removed);
+      } else if (op.equals("post")){
+         int chatId = member(store, session, c);
+         int msgId = store.postMessage(chatId, user, arg(c, 1), c.args.length > 2 ? c.args[2] : null);
+         session.putSent(chatId, msgId);
+         return String.valueOf(msgId);
+      } else if (op.equals("messages")){
+         int chatId = member(store, session, c);
+         return messages(store.getMessages(chatId, intArg(c, 1, PAGE), intArg(c, 2, 0)));
+      } else if (op.equals("feed")){
+         return messages(store.getFeed(user, intArg(c, 0, PAGE), intArg(c, 1, 0)));
+      } else if (op.equals("sync_messages")){
+         String watermark = c.args.length == 0 || c.args[0].equals("-") ? null : c.args[0];
+         MessengerStore.SyncPage page = store.sync(user, watermark, intArg(c, 1, SYNC_PAGE));
+         return "{\"posted\":" + messages(page.posted) + ",\"edited\":" + messages(page.edited)
+              + ",\"deleted\":" + ids(page.deleted) + ",\"joined\":" + ids(page.joined)
+              + ",\"left\":" + ids(page.left) + ",\"watermark\":" + quote(page.watermark)
+              + ",\"more\":" + page.more + ",\"expired\":" + page.expired + "}";
+      } else if (op.equals("edit") || op.equals("delete_message")){
+         int msgId = intArg(c, 0, -1);
+         MessengerStore.Message message = store.getMessage(msgId);
+         if (message == null || message.sender == null || !message.sender.trim().equals(user))
+            throw new Refused("not your message: " + msgId);
+         if (op.equals("edit"))
+            store.editMessage(msgId, arg(c, 1));
+         else
+            store.deleteMessage(msgId);
+         return "null";
+      }
+      throw new Refused("unknown operation " + op);
+   }
+
+   private int member(MessengerStore store, AuthorizationCache session, Command c) throws SQLException, Refused {
+      int chatId = intArg(c, 0, -1);
+      watch(chatId, c.user);
+      if (!session.isMember(store, chatId))
+         throw new Refused("not a member of chat " + chatId);
+      return chatId;
+   }
+
+   private int owned(MessengerStore store, AuthorizationCache session, Command c) throws SQLException, Refused {
+      int chatId = intArg(c, 0, -1);
+      watch(chatId, c.user);
+      if (!session.isInitSender(store, chatId))
+         throw new Refused("not the owner of chat " + chatId);
+      return chatId;
+   }
+
+   private static void refuseRejected(Map<String, String> rejected) throws Refused {
+      if (rejected.isEmpty())
+         return;
+      StringBuilder reasons = new StringBuilder();
+      for (Map.Entry<String, String> reject : rejected.entrySet())
+         reasons.append(reasons.length() == 0 ? "" : ", ").append(reject.getKey()).append(": ").append(reject.getValue());
+      throw new Refused(reasons.toString());
+   }
+
+   private static String messages(List<MessengerStore.Message> messages){
+      StringBuilder json = new StringBuilder("[");
+      for (MessengerStore.Message message : messages){
+         json.append(json.length() == 1 ? "" : ",")
+             .append("{\"msg_id\":").append(message.msgId)
+             .append(",\"chat_id\":").append(message.chatId)
+             .append(",\"sender\":").append(quote(message.sender))
+             .append(",\"timestamp\":").append(message.timestamp)
+             .append(",\"text\":").append(quote(message.text)).append("}");
+      }
+      return json.append("]").toString();
+   }
+
+   private static String ids(List<Integer> ids){
+      StringBuilder json = new StringBuilder("[");
+      for (Integer id : ids)
+         json.append(json.length() == 1 ? "" : ",").append(id);
+      return json.append("]").toString();
+   }
+
+   static String quote(List<String> values){
+      StringBuilder json = new StringBuilder("[");
+      for (String value : values)
+         json.append(json.length() == 1 ? "" : ",").append(quote(value));
+      return json.append("]").toString();
+   }
+
+   static String quote(String value){
+      if (value == null)
+         return "null";
+      // char(n) columns come back padded
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         end--;
+      value = value.substring(0, end);
+      StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); i++){
+         char ch = value.charAt(i);
+         switch (ch){
+            case '"':  json.append("\\\""); break;
+            case '\\': json.append("\\\\"); break;
+            case '\n': json.append("\\n"); break;
+            case '\r': json.append("\\r"); break;
+            case '\t': json.append("\\t"); break;
+            default:
+               if (ch < 0x20)
+                  json.append(String.format("\\u%04x", (int) ch));
+               else
+                  json.append(ch);
+         }
+      }
+      return json.append('"').toString();
+   }
+
+   static String unescape(String field){
+      if (field.indexOf('\\') < 0)
+         return field;
+      StringBuilder out = new StringBuilder(field.length());
+      for (int i = 0; i < field.length(); i++){
+         char ch = field.charAt(i);
+         if (ch == '\\' && i + 1 < field.length()){
+            char next = field.charAt(++i);
+            out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+         } else {
+            out.append(ch);
+         }
+      }
+      return out.toString();
+   }
+
+   public static void main(String[] args) {
+      boolean memory = args.length >= 1 && args.length <= 2 && args[0].equals("memory");
+      if (!memory && args.length != 5 && args.length != 6) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + MessengerBatch.class.getName () +
+            " <hostname> <dbname> <port> <user> <password> [file]\n" +
+            "       java [-classpath <classpath>] " + MessengerBatch.class.getName () + " memory [file]");
+         return;
+      }//end if
+
+      List<Messenger> connections = new ArrayList<Messenger>();
+      try{
+         MessengerStore[] stores = new MessengerStore[THREADS];
+         if (memory){
+            Arrays.fill(stores, new InMemoryMessengerStore());
+         } else {
+            Class.forName ("org.postgresql.Driver");
+            String url = Messenger.connectionUrl(args[0], args[1], args[2], args[3], args[4]);
+            InboxPolicy inbox = InboxPolicy.fromSystemProperties();
+            for (int w = 0; w < THREADS; w++){
+               Messenger worker = new Messenger(DriverManager.getConnection(url), url);
+               connections.add(worker);
+               stores[w] = new SqlMessengerStore(worker, inbox);
+            }
+         }
+         String file = memory ? (args.length > 1 ? args[1] : null) : (args.length > 5 ? args[5] : null);
+         BufferedReader in = new BufferedReader(new InputStreamReader(
+            file == null ? System.in : new FileInputStream(file), "UTF-8"), 1 << 16);
+         PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 1 << 16));
+         MessengerBatch batch = new MessengerBatch(stores, out);
+
+         long start = System.nanoTime();
+         long commands = batch.run(in);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         long trips = 0;
+         for (Messenger worker : connections)
+            trips += worker.roundTrips();
+         System.err.println(String.format("batch: %d commands (%d failed) in %.2fs with %d threads: %.0f commands/sec, %d round trips",
+                            commands, batch.failed, seconds, THREADS, commands / Math.max(seconds, 1e-9), trips));
+         in.close();
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         for (Messenger worker : connections)
+            worker.cleanup();
+      }
+   }//end main
+
+}//end MessengerBatch
@@ -0,0 +1,267 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmark driving a MessengerStore with the same operations the menus
+ * issue. By default it runs against an InMemoryMessengerStore, which measures
+ * the application's own overhead without a database round trip.
+ *
+ * Usage: java MessengerBenchmark [threads] [ops per thread]
+ *        java MessengerBenchmark autocomplete [lookups]
+ *        java MessengerBenchmark screen [latency ms]
+ *        java MessengerBenchmark users <hostname> <dbname> <port> <user> <password> [users]
+ */
+public class MessengerBenchmark {
+
+   static final int USERS = 10000;
+   static final int CHATS = 2000;
+   static final int MEMBERS_PER_CHAT = 10;
+
+   // logins are built once so the measured loop does not allocate them
+   static final String[] LOGINS = new String[USERS];
+   static {
+      for (int u = 0; u < USERS; u++)
+         LOGINS[u] = "user" + u;
+   }
+
+   /*
+    * Loads a deterministic dataset shaped like the seeded CSVs
+    **/
+   static void populate(MessengerStore store) throws Exception {
+      Random random = new Random(42);
+      for (int u = 0; u < USERS; u++)
+         store.createUser(LOGINS[u], "pw" + u, "+1(000)" + u);
+      for (int c = 0; c < CHATS; c++){
+         List<String> members = new ArrayList<String>();
+         String owner = LOGINS[random.nextInt(USERS)];
+         members.add(owner);
+         while (members.size() < MEMBERS_PER_CHAT){
+            String member = LOGINS[random.nextInt(USERS)];
+            if (!members.contains(member))
+               members.add(member);
+         }
+         store.createChat(owner, "group", members);
+      }
+   }
+
+   /*
+    * One chat interaction: membership check, reply, page of history
+    **/
+   static long run(MessengerStore store, int ops, long seed) throws Exception {
+      Random random = new Random(seed);
+      long checksum = 0;
+      for (int i = 0; i < ops; i++){
+         int chat = random.nextInt(CHATS);
+         String user = LOGINS[random.nextInt(USERS)];
+         switch (random.nextInt(4)){
+            case 0:  checksum += store.postMessage(chat, user, "hello", null); break;
+            case 1:  checksum += store.isMember(chat, user) ? 1 : 0; break;
+            case 2:  checksum += store.isInitSender(chat, user) ? 1 : 0; break;
+            default: checksum += store.getMessages(chat, 10, 0).size(); break;
+         }
+      }
+      return checksum;
+   }
+
+   /*
+    * Times LoginIndex lookups for short prefixes, as typed while picking
+    * recipients, with a user's contacts ranked first
+    **/
+   static void autocomplete(int lookups) throws Exception {
+      IndexedStore store = new IndexedStore(new InMemoryMessengerStore());
+      populate(store);
+      java.util.Set<String> contacts = new java.util.HashSet<String>();
+      Random random = new Random(3);
+      for (int i = 0; i < 50; i++)
+         contacts.add(LOGINS[random.nextInt(USERS)]);
+      LoginIndex index = store.loginIndex();
+      String[] prefixes = new String[1024];
+      for (int i = 0; i < prefixes.length; i++){
+         String login = LOGINS[random.nextInt(USERS)];
+         prefixes[i] = login.substring(0, 5 + random.nextInt(login.length() - 4));
+      }
+      long checksum = 0;
+      for (int i = 0; i < lookups / 10; i++)
+         checksum += index.complete(prefixes[i & 1023], contacts, 10).size();
+      long start = System.nanoTime();
+      for (int i = 0; i < lookups; i++)
+         checksum += index.complete(prefixes[i & 1023], contacts, 10).size();
+      double nanos = (System.nanoTime() - start) / (double) lookups;
+      System.out.println(String.format("users=%d lookups=%d %.2f us/lookup checksum=%d",
+                                       index.size(), lookups, nanos / 1000, checksum));
+   }
+
+   /*
+    * Opens the chat screen 20 times with a fixed round-trip latency added to
+    * every query, once with the three queries one after another and once
+    * through AsyncMessengerStore
+    **/
+   static void screen(final long latency) throws Exception {
+      InMemoryMessengerStore memory = new InMemoryMessengerStore();
+      populate(memory);
+      final MessengerStore store = new ForwardingMessengerStore(memory){
+         private void roundTrip(){
+            try {
+               Thread.sleep(latency);
+            } catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+            }
+         }
+         public boolean isMember(int chatId, String login) throws java.sql.SQLException {
+            roundTrip();
+            return super.isMember(chatId, login);
+         }
+         public boolean isInitSender(int chatId, String login) throws java.sql.SQLException {
+            roundTrip();
+            return super.isInitSender(chatId, login);
+         }
+         public List<MessengerStore.Message> getMessages(int chatId, int limit, int offset) throws java.sql.SQLException {
+            roundTrip();
+            return super.getMessages(chatId, limit, offset);
+         }
+      };
+      AsyncMessengerStore async = new AsyncMessengerStore(new java.util.concurrent.Callable<MessengerStore>(){
+         public MessengerStore call(){
+            return store;
+         }
+      }, 4, 0);
+      int screens = 20;
+      long checksum = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < screens; i++){
+         if (store.isMember(i, LOGINS[i]))
+            checksum++;
+         if (store.isInitSender(i, LOGINS[i]))
+            checksum++;
+         checksum += store.getMessages(i, 10, 0).size();
+      }
+      double sequential = (System.nanoTime() - start) / 1e6 / screens;
+      start = System.nanoTime();
+      for (int i = 0; i < screens; i++){
+         java.util.concurrent.CompletableFuture<Boolean> member = async.isMember(i, LOGINS[i]);
+         java.util.concurrent.CompletableFuture<Boolean> owner = async.isInitSender(i, LOGINS[i]);
+         java.util.concurrent.CompletableFuture<List<MessengerStore.Message>> page = async.getMessages(i, 10, 0);
+         if (AsyncMessengerStore.join(member))
+            checksum++;
+         if (AsyncMessengerStore.join(owner))
+            checksum++;
+         checksum += AsyncMessengerStore.join(page).size();
+      }
+      double concurrent = (System.nanoTime() - start) / 1e6 / screens;
+      async.shutdown();
+      System.out.println(String.format("latency=%d ms sequential=%.1f ms/screen async=%.1f ms/screen checksum=%d",
+                                       latency, sequential, concurrent, checksum));
+   }
+
+   /*
+    * Creates users against Postgres and adds each to the previous one's
+    * contact and block lists and removes them again, reporting statements
+    * sent per operation. The users are deleted afterwards.
+    **/
+   static void users(String[] args) throws Exception {
+      Messenger esql = new Messenger(args[1], args[2], args[3], args[4], args[5]);
+      int users = args.length > 6 ? Integer.parseInt(args[6]) : 1000;
+      MessengerStore store = esql.store();
+      String prefix = "bench" + (System.currentTimeMillis() % 100000) + "_";
+      try {
+         long trips = esql.roundTrips();
+         long start = System.nanoTime();
+         for (int u = 0; u < users; u++)
+            store.createUser(prefix + u, "pw", prefix + u);
+         report("createUser", users, start, esql.roundTrips() - trips);
+
+         trips = esql.roundTrips();
+         start = System.nanoTime();
+         for (int u = 1; u < users; u++){
+            store.addToList(prefix + u, MessengerStore.ListType.CONTACT, prefix + (u - 1));
+            store.addToList(prefix + u, MessengerStore.ListType.BLOCK, prefix + (u - 1));
+         }
+         report("addToList", 2 * (users - 1), start, esql.roundTrips() - trips);
+
+         trips = esql.roundTrips();
+         start = System.nanoTime();
+         for (int u = 1; u < users; u++){
+            store.removeFromList(prefix + u, MessengerStore.ListType.CONTACT, prefix + (u - 1));
+            store.removeFromList(prefix + u, MessengerStore.ListType.BLOCK, prefix + (u - 1));
+         }
+         report("removeFromList", 2 * (users - 1), start, esql.roundTrips() - trips);
+
+         // an address book with every benchmark user, formatted differently
+         List<String> book = new ArrayList<String>();
+         for (int u = 1; u < users; u++)
+            book.add(" " + prefix + u + " ");
+         trips = esql.roundTrips();
+         start = System.nanoTime();
+         int added = store.syncContacts(prefix + 0, book).size();
+         report("syncContacts (" + added + " of " + book.size() + " numbers)", 1, start, esql.roundTrips() - trips);
+
+         // chat ids come from IdAllocator, message ids back from INSERT ... RETURNING,
+         // so neither costs a currval() per insert
+         trips = esql.roundTrips();
+         start = System.nanoTime();
+         int chat = store.createChat(prefix + 0, "private", java.util.Arrays.asList(prefix + 0, prefix + 1));
+         for (int u = 0; u < users; u++)
+            store.postMessage(chat, prefix + (u & 1), "hello", null);
+         report("postMessage", users, start, esql.roundTrips() - trips);
+      } finally {
+         for (int u = 0; u < users; u++)
+            store.deleteUser(prefix + u);
+         esql.cleanup();
+      }
+   }
+
+   private static void report(String operation, int ops, long start, long trips){
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%s: ops=%d %.0f ops/sec %.2f round trips/op",
+                                       operation, ops, ops / seconds, trips / (double) ops));
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length >= 6 && args[0].equals("users")){
+         users(args);
+         return;
+      }
+      if (args.length > 0 && args[0].equals("autocomplete")){
+         autocomplete(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+         return;
+      }
+      if (args.length > 0 && args[0].equals("screen")){
+         screen(args.length > 1 ? Long.parseLong(args[1]) : 5);
+         return;
+      }
+      final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+      final int ops = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+      final MessengerStore store = new InMemoryMessengerStore();
+      populate(store);
+      // warm up the JIT before measuring
+      run(store, ops / 10, 7);
+
+      Thread[] workers = new Thread[threads];
+      final long[] checksums = new long[threads];
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++){
+         final int id = t;
+         workers[t] = new Thread(){
+            public void run(){
+               try {
+                  checksums[id] = MessengerBenchmark.run(store, ops, id);
+               } catch (Exception e){
+                  throw new RuntimeException(e);
+               }
+            }
+         };
+         workers[t].start();
+      }
+      for (Thread worker : workers)
+         worker.join();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      long total = (long) threads * ops;
+      System.out.println(String.format("threads=%d ops=%d time=%.3fs throughput=%.0f ops/sec checksum=%d",
+                                       threads, total, seconds, total / seconds, Arrays.hashCode(checksums)));
+   }//end main
+
+}//end MessengerBenchmark
@@ -0,0 +1,254 @@
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage operations used by the Messenger menus. The menus only talk to
+ * this interface, so the same business logic can run against Postgres
+ * (SqlMessengerStore) or entirely in memory (InMemoryMessengerStore) for
+ * tests and benchmarks.
+ *
+ * Implementations must be safe for use from several threads.
+ */
+public interface MessengerStore {
+
+   /** The two kinds of per-user lists kept in USER_LIST. */
+   enum ListType {
+      CONTACT("contact"), BLOCK("block");
+
+      private final String sqlName;
+
+      ListType(String sqlName){
+         this.sqlName = sqlName;
+      }
+
+      /** @return the value stored in USER_LIST.list_type */
+      public String sqlName(){
+         return sqlName;
+      }
+   }//end ListType
+
+   /** A row of USR as shown to other users. */
+   final class User {
+      public final String login;
+      public final String phoneNum;
+      public final String status;
+
+      public User(String login, String phoneNum, String status){
+         this.login = login;
+         this.phoneNum = phoneNum;
+         this.status = status;
+      }
+   }//end User
+
+   /** A row of MESSAGE. */
+   final class Message {
+      public final int msgId;
+      public final int chatId;
+      public final String sender;
+      public final String text;
+      public final long timestamp;
+
+      public Message(int msgId, int chatId, String sender, String text, long timestamp){
+         this.msgId = msgId;
+         this.chatId = chatId;
+         this.sender = sender;
+         this.text = text;
+         this.timestamp = timestamp;
+      }
+   }//end Message
+
+   /** The latest message of a chat, as shown by ListChats. */
+   final class ChatSummary {
+      public final int chatId;
+      public final String latestSender;
+      public final long latestTimestamp;
+
+      public ChatSummary(int chatId, String latestSender, long latestTimestamp){
+         this.chatId = chatId;
+         this.latestSender = latestSender;
+         this.latestTimestamp = latestTimestamp;
+      }
+   }//end ChatSummary
+
+   /**
+    * The messages changed in a user's chats since a watermark, as returned
+    * by sync(). A message posted and then edited in the same page is only
+    * in posted, one deleted is only in deleted. Chats the user was added to
+    * are in joined; chats the user was removed from, or that were deleted,
+    * are in left, and their messages are not reported after that.
+    */
+   final class SyncPage {
+      public final List<Message> posted;
+      public final List<Message> edited;
+      public final List<Integer> deleted;
+      public final List<Integer> joined;
+      public final List<Integer> left;
+      /** where the next sync continues */
+      public final String watermark;
+      /** true if more changes are waiting, so the next sync should follow at once */
+      public final boolean more;
+      /** true if the changes since the watermark are no longer known; reload the chats instead */
+      public final boolean expired;
+
+      public SyncPage(List<Message> posted, List<Message> edited, List<Integer> deleted,
+                      List<Integer> joined, List<Integer> left,
+                      String watermark, boolean more, boolean expired){
+         this.posted = posted;
+         this.edited = edited;
+         this.deleted = deleted;
+         this.joined = joined;
+         this.left = left;
+         this.watermark = watermark;
+         this.more = more;
+         this.expired = expired;
+      }
+   }//end SyncPage
+
+   // ---- users ----------------------------------------------------------
+
+   /**
+    * Creates a user together with an empty block and contact list.
+    *
+    * @throws java.sql.SQLException when the login or phone number is taken
+    */
+   void createUser(String login, String password, String phoneNum) throws SQLException;
+
+   /** @return true if a user with this login and password exists */
+   boolean authenticate(String login, String password) throws SQLException;
+
+   /** @return true if a user with this login exists */
+   boolean userExists(String login) throws SQLException;
+
+   /** Deletes a user and everything that references it. */
+   void deleteUser(String login) throws SQLException;
+
+   /** @return every user, in no particular order */
+   List<User> listUsers() throws SQLException;
+
+   /** @return the status of a user, or null if the user does not exist */
+   String getStatus(String login) throws SQLException;
+
+   void setStatus(String login, String status) throws SQLException;
+
+   // ---- contact / block lists -----------------------------------------
+
+   /**
+    * Adds member to one of owner's lists.
+    *
+    * @return false if member is not an existing user
+    */
+   boolean addToList(String owner, ListType type, String member) throws SQLException;
+
+   /**
+    * Removes member from one of owner's lists.
+    *
+    * @return false if member was not on the list
+    */
+   boolean removeFromList(String owner, ListType type, String member) throws SQLException;
+
+   /** @return true if member is on one of owner's lists */
+   boolean listContains(String owner, ListType type, String member) throws SQLException;
+
+   /** @return the users on one of owner's lists */
+   List<User> listMembers(String owner, ListType type) throws SQLException;
+
+   /**
+    * Adds every user whose phone number is in an address book to owner's
+    * contacts in one batch. Numbers are compared by their digits only, so
+    * +1(180)393-1512 matches 1 180 393 1512.
+    *
+    * @return the logins added; users already on the list are left out
+    */
+   List<String> syncContacts(String owner, Collection<String> phoneNums) throws SQLException;
+
+   // ---- chats and membership ------------------------------------------
+
+   /**
+    * Creates a chat started by initSender with the given members.
+    *
+    * @return the new chat_id
+    */
+   int createChat(String initSender, String chatType, Collection<String> members) throws SQLException;
+
+   void deleteChat(int chatId) throws SQLException;
+
+   /** @return true if login is a member of the chat */
+   boolean isMember(int chatId, String login) throws SQLException;
+
+   /** @return true if login started the chat */
+   boolean isInitSender(int chatId, String login) throws SQLException;
+
+   /** @return the logins of all members of the chat */
+   List<String> chatMembers(int chatId) throws SQLException;
+
+   void addMember(int chatId, String login) throws SQLException;
+
+   void removeMember(int chatId, String login) throws SQLException;
+
+   // reasons validateRecipients gives for rejecting a login
+   String NO_SUCH_USER = "no such user";
+   String BLOCKED = "has blocked you";
+   String ALREADY_MEMBER = "already in the chat";
+
+   /**
+    * Checks a whole set of prospective chat members at once. A login is
+    * rejected if it does not exist, if that user has blocked requester, or
+    * if it is already a member of chatId.
+    *
+    * @param chatId the chat being added to, or -1 for a chat not created yet
+    * @return the rejected logins with the reason, in the order given
+    */
+   Map<String, String> validateRecipients(String requester, int chatId, Collection<String> logins) throws SQLException;
+
+   /** Adds several members in one transaction; either all are added or none. */
+   void addMembers(int chatId, Collection<String> logins) throws SQLException;
+
+   /**
+    * Removes several members in one transaction.
+    *
+    * @return the logins that were members and have been removed
+    */
+   List<String> removeMembers(int chatId, Collection<String> logins) throws SQLException;
+
+   /** @return the latest message of every chat login belongs to, newest first */
+   List<ChatSummary> listChats(String login) throws SQLException;
+
+   // ---- messages -------------------------------------------------------
+
+   /**
+    * Sends a message. A client that may retry a send passes the same
+    * clientKey every time; a send whose key the sender already used is not
+    * stored again.
+    *
+    * @param clientKey the sender's idempotency key for this message, or null
+    * @return the new msg_id, or the msg_id first stored under clientKey
+    */
+   int postMessage(int chatId, String sender, String text, String clientKey) throws SQLException;
+
+   void editMessage(int msgId, String text) throws SQLException;
+
+   void deleteMessage(int msgId) throws SQLException;
+
+   /** @return true if the message belongs to the chat and was sent by login */
+   boolean isMessageSender(int chatId, int msgId, String login) throws SQLException;
+
+   /** @return the message, or null if it does not exist */
+   Message getMessage(int msgId) throws SQLException;
+
+   /** @return one page of a chat's messages, newest first */
+   List<Message> getMessages(int chatId, int limit, int offset) throws SQLException;
+
+   /** @return one page of the messages of all chats login belongs to, newest first */
+   List<Message> getFeed(String login, int limit, int offset) throws SQLException;
+
+   /**
+    * Returns up to limit changes made after watermark, oldest first: the
+    * messages changed in the chats login belongs to, and the chats login
+    * joined or left. The watermark is opaque; pass the one from the
+    * previous page, or null to start from now.
+    */
+   SyncPage sync(String login, String watermark, int limit) throws SQLException;
+
+}//end MessengerStore
@@ -0,0 +1,85 @@
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Store decorator that rate limits sending messages and creating chats, so
+ * one client cannot flood the message table or create chats in a loop.
+ * Messages are limited per sender and per chat, chat creation per user.
+ * When a limit is hit a SlowDownException is thrown and nothing is written.
+ *
+ * Limits are read from system properties (requests per second and burst):
+ *
+ *    messenger.rate.user.messages        (default 5,   burst 20)
+ *    messenger.rate.chat.messages        (default 20,  burst 50)
+ *    messenger.rate.user.chats           (default 0.2, burst 5)
+ *
+ * with the burst in the same name followed by ".burst". A rate of 0 turns
+ * that limit off.
+ *
+ * The buckets live in the sending client's own JVM and start full when it
+ * starts, so restarting the client, or running several, resets them. This
+ * guards against runaway loops and mistakes in a well-behaved client, not
+ * against abuse; that would need the limits enforced by the server.
+ */
+public class RateLimitedStore extends ForwardingMessengerStore {
+
+   private final RateLimiter userMessages;
+   private final RateLimiter chatMessages;
+   private final RateLimiter userChats;
+
+   public RateLimitedStore(MessengerStore delegate, RateLimiter userMessages,
+                           RateLimiter chatMessages, RateLimiter userChats){
+      super(delegate);
+      this.userMessages = userMessages;
+      this.chatMessages = chatMessages;
+      this.userChats = userChats;
+   }
+
+   /**
+    * @return a store limited as configured by the messenger.rate.* properties
+    */
+   public static RateLimitedStore fromSystemProperties(MessengerStore delegate){
+      return new RateLimitedStore(delegate,
+                                  limiter("messenger.rate.user.messages", 5, 20),
+                                  limiter("messenger.rate.chat.messages", 20, 50),
+                                  limiter("messenger.rate.user.chats", 0.2, 5));
+   }
+
+   private static RateLimiter limiter(String property, double perSecond, int burst){
+      return new RateLimiter(Double.parseDouble(System.getProperty(property, String.valueOf(perSecond))),
+                             Integer.parseInt(System.getProperty(property + ".burst", String.valueOf(burst))));
+   }
+
+   private static void check(RateLimiter limiter, Object key, String what) throws SlowDownException {
+      refuse(limiter.tryAcquire(key), what);
+   }
+
+   private static void refuse(long waitNanos, String what) throws SlowDownException {
+      if (waitNanos > 0){
+         long millis = Math.max(1L, waitNanos / 1000000L);
+         throw new SlowDownException("Slow down! Too many " + what + ", try again in " + millis + " ms", millis);
+      }
+   }
+
+   public int postMessage(int chatId, String sender, String text, String clientKey) throws SQLException {
+      // both limits are checked before either is charged, so a post refused
+      // for the chat does not use up the sender's allowance
+      refuse(userMessages.waitNanos(sender), "messages from " + sender);
+      refuse(chatMessages.waitNanos(chatId), "messages in chat " + chatId);
+      check(userMessages, sender, "messages from " + sender);
+      try {
+         check(chatMessages, chatId, "messages in chat " + chatId);
+      } catch (SlowDownException e){
+         // another thread took the chat's last token in between
+         userMessages.release(sender);
+         throw e;
+      }
+      return super.postMessage(chatId, sender, text, clientKey);
+   }
+
+   public int createChat(String initSender, String chatType, Collection<String> members) throws SQLException {
+      check(userChats, initSender, "new chats from " + initSender);
+      return super.createChat(initSender, chatType, members);
+   }
+
+}//end RateLimitedStore
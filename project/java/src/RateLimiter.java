@@ -0,0 +1,103 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket keyed by user or chat.
+ *
+ * Each key holds a single AtomicLong with its "theoretical arrival time"
+ * (the generic cell rate algorithm): a request is allowed while that time is
+ * no more than a burst's worth of intervals ahead of now, and each allowed
+ * request pushes it one interval further. This is equivalent to a bucket of
+ * burst tokens refilled at rate per second, but needs one CAS per request
+ * and no refill thread.
+ */
+public class RateLimiter {
+
+   // idle keys are forgotten once the map grows past this size
+   private static final int MAX_IDLE_KEYS = 100000;
+
+   private final long intervalNanos;
+   private final long toleranceNanos;
+   private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<Object, AtomicLong>();
+
+   /**
+    * @param perSecond sustained requests allowed per second; 0 or less disables the limiter
+    * @param burst requests allowed back to back after an idle period
+    */
+   public RateLimiter(double perSecond, int burst){
+      this.intervalNanos = perSecond > 0 ? (long) (1e9 / perSecond) : 0L;
+      this.toleranceNanos = intervalNanos * Math.max(burst - 1, 0);
+   }
+
+   public boolean enabled(){
+      return intervalNanos > 0;
+   }
+
+   /**
+    * Takes one token for key if one is available.
+    *
+    * @return 0 if the request is allowed, otherwise the nanoseconds to wait
+    *         before a token becomes available
+    */
+   public long tryAcquire(Object key){
+      if (!enabled())
+         return 0L;
+      long now = System.nanoTime();
+      AtomicLong tat = buckets.get(key);
+      if (tat == null){
+         if (buckets.size() > MAX_IDLE_KEYS)
+            evictIdle(now);
+         AtomicLong created = new AtomicLong(now);
+         tat = buckets.putIfAbsent(key, created);
+         if (tat == null)
+            tat = created;
+      }
+      while (true){
+         long current = tat.get();
+         long start = Math.max(current, now);
+         long wait = start - now - toleranceNanos;
+         if (wait > 0)
+            return wait;
+         if (tat.compareAndSet(current, start + intervalNanos))
+            return 0L;
+      }
+   }
+
+   /**
+    * @return 0 if a request for key would be allowed now, otherwise the
+    *         nanoseconds to wait; takes nothing
+    */
+   public long waitNanos(Object key){
+      if (!enabled())
+         return 0L;
+      AtomicLong tat = buckets.get(key);
+      if (tat == null)
+         return 0L;
+      long now = System.nanoTime();
+      return Math.max(0L, Math.max(tat.get(), now) - now - toleranceNanos);
+   }
+
+   /** Gives back a token taken by tryAcquire for a request that was not made after all. */
+   public void release(Object key){
+      if (!enabled())
+         return;
+      AtomicLong tat = buckets.get(key);
+      // an arrival time in the past counts as now, so this cannot overfill the bucket
+      if (tat != null)
+         tat.addAndGet(-intervalNanos);
+   }
+
+   /*
+    * A key whose arrival time has passed has a full bucket, which is the same
+    * as not being tracked at all
+    **/
+   private void evictIdle(long now){
+      for (Iterator<Map.Entry<Object, AtomicLong>> it = buckets.entrySet().iterator(); it.hasNext(); ){
+         if (it.next().getValue().get() <= now)
+            it.remove();
+      }
+   }
+
+}//end RateLimiter
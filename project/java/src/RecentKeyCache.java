@@ -0,0 +1,51 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded map from a recently used idempotency key to the msg_id it
+ * produced. Once full, the least recently used key is dropped; a retry of a
+ * dropped key still resolves correctly through the unique index, only with a
+ * database round trip.
+ *
+ * Split into independently locked stripes so concurrent senders rarely
+ * contend on the same monitor.
+ */
+public class RecentKeyCache {
+
+   private static final int STRIPES = 16;
+
+   private final Map<String, Integer>[] stripes;
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public RecentKeyCache(int capacity){
+      final int perStripe = Math.max(1, capacity / STRIPES);
+      stripes = new Map[STRIPES];
+      for (int i = 0; i < STRIPES; i++){
+         stripes[i] = new LinkedHashMap<String, Integer>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest){
+               return size() > perStripe;
+            }
+         };
+      }
+   }
+
+   private Map<String, Integer> stripe(String key){
+      return stripes[IntHashSet.mix(key.hashCode()) & (STRIPES - 1)];
+   }
+
+   /** @return the msg_id stored under key, or null */
+   public Integer get(String key){
+      Map<String, Integer> stripe = stripe(key);
+      synchronized (stripe){
+         return stripe.get(key);
+      }
+   }
+
+   public void put(String key, int msgId){
+      Map<String, Integer> stripe = stripe(key);
+      synchronized (stripe){
+         stripe.put(key, msgId);
+      }
+   }
+
+}//end RecentKeyCache
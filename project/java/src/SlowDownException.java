@@ -0,0 +1,27 @@
+import java.sql.SQLException;
+
+/**
+ * Thrown instead of performing a write when a rate limit is exceeded. The
+ * request is rejected outright rather than queued; the caller may retry
+ * after retryAfterMillis().
+ */
+public class SlowDownException extends SQLException {
+
+   private static final long serialVersionUID = 1L;
+
+   // Postgres' configuration_limit_exceeded class
+   public static final String SQL_STATE = "53400";
+
+   private final long retryAfterMillis;
+
+   public SlowDownException(String message, long retryAfterMillis){
+      super(message, SQL_STATE);
+      this.retryAfterMillis = retryAfterMillis;
+   }
+
+   /** @return how long to wait before the request can succeed */
+   public long retryAfterMillis(){
+      return retryAfterMillis;
+   }
+
+}//end SlowDownException
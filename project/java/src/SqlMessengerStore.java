@@ -0,0 +1,531 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MessengerStore backed by the Postgres schema in sql/src/create_tables.sql.
+ * Every call is issued through the embedded SQL helpers of Messenger, so it
+ * shares the application's single physical connection.
+ */
+public class SqlMessengerStore implements MessengerStore {
+
+   // the connection wrapper all statements go through
+   private final Messenger esql;
+
+   // fan-out-on-write vs fan-out-on-read for INBOX
+   private final InboxPolicy inbox;
+
+   // chat and message ids reserved ahead from their sequences
+   private final IdAllocator chatIds;
+
+   public SqlMessengerStore(Messenger esql, InboxPolicy inbox){
+      this.esql = esql;
+      this.inbox = inbox;
+      this.chatIds = new IdAllocator(esql, "chat_chat_id_seq", IdAllocator.BLOCK);
+   }
+
+   /*
+    * Escapes a value so it can be embedded in a quoted SQL literal
+    **/
+   static String esc(String value){
+      return value == null ? "" : value.replace("'", "''");
+   }
+
+   /*
+    * char(n) columns come back blank padded
+    **/
+   static String trim(String value){
+      return value == null ? null : value.trim();
+   }
+
+   static long toMillis(String timestamp){
+      return timestamp == null ? 0L : Timestamp.valueOf(timestamp.trim()).getTime();
+   }
+
+   /*
+    * The user_id of a login, as a scalar subquery; NULL if there is no such user
+    **/
+   static String idOf(String login){
+      return String.format("(SELECT user_id FROM usr WHERE login = '%s')", esc(login));
+   }
+
+   public void createUser(String login, String password, String phoneNum) throws SQLException {
+      // user plus empty block and contact lists in one atomic call, see create_functions.sql
+      esql.executeQuery(String.format("SELECT create_user('%s','%s','%s')",
+                                      esc(login), esc(password), esc(phoneNum)));
+   }
+
+   public boolean authenticate(String login, String password) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", esc(login), esc(password))) > 0;
+   }
+
+   public boolean userExists(String login) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT login FROM usr WHERE login='%s'", esc(login))) > 0;
+   }
+
+   public void deleteUser(String login) throws SQLException {
+      esql.executeUpdate(String.format("DELETE FROM usr WHERE login = '%s'", esc(login)));
+   }
+
+   public List<User> listUsers() throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT login, phoneNum, status FROM usr");
+      List<User> users = new ArrayList<User>(rows.size());
+      for (List<String> row : rows)
+         users.add(new User(trim(row.get(0)), trim(row.get(1)), trim(row.get(2))));
+      return users;
+   }
+
+   public String getStatus(String login) throws SQLException {
+      List<List<String>> result = esql.executeQueryAndReturnResult(String.format(
+         "Select status from usr where login = '%s'", esc(login)));
+      return result.isEmpty() ? null : trim(result.get(0).get(0));
+   }
+
+   public void setStatus(String login, String status) throws SQLException {
+      esql.executeUpdate(String.format(
+         "UPDATE usr SET status = '%s' WHERE login = '%s'", esc(status), esc(login)));
+   }
+
+   public boolean addToList(String owner, ListType type, String member) throws SQLException {
+      return "t".equals(esql.executeQueryAndReturnResult(String.format(
+         "SELECT list_add('%s','%s','%s')", esc(owner), type.sqlName(), esc(member))).get(0).get(0));
+   }
+
+   public boolean removeFromList(String owner, ListType type, String member) throws SQLException {
+      return "t".equals(esql.executeQueryAndReturnResult(String.format(
+         "SELECT list_remove('%s','%s','%s')", esc(owner), type.sqlName(), esc(member))).get(0).get(0));
+   }
+
+   public boolean listContains(String owner, ListType type, String member) throws SQLException {
+      String column = type == ListType.CONTACT ? "contact_list" : "block_list";
+      return esql.executeQuery(String.format(
+         "SELECT member_id FROM user_list_contains WHERE "
+         + "member_id = %s AND list_id = (SELECT %s "
+         + "FROM usr where login ='%s');", idOf(member), column, esc(owner))) > 0;
+   }
+
+   public List<User> listMembers(String owner, ListType type) throws SQLException {
+      String column = type == ListType.CONTACT ? "contact_list" : "block_list";
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT US.login, US.phoneNum, US.status FROM USR US, USR U, USER_LIST_CONTAINS ULC " +
+         "WHERE U.login = '%s' AND ULC.list_id = U.%s AND US.user_id = ULC.member_id", esc(owner), column));
+      List<User> users = new ArrayList<User>(rows.size());
+      for (List<String> row : rows)
+         users.add(new User(trim(row.get(0)), trim(row.get(1)), trim(row.get(2))));
+      return users;
+   }
+
+   public List<String> syncContacts(String owner, Collection<String> phoneNums) throws SQLException {
+      List<String> added = new ArrayList<String>();
+      StringBuilder book = new StringBuilder();
+      for (String phone : phoneNums){
+         String digits = LoginIndex.normalizePhone(phone);
+         if (digits.isEmpty())
+            continue;
+         if (book.length() > 0)
+            book.append(',');
+         book.append("('").append(digits).append("')");
+      }
+      if (book.length() == 0)
+         return added;
+      // one pass over the address book through usr_phone_digits_index
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "WITH added AS (" +
+         "INSERT INTO user_list_contains (list_id, member_id) " +
+         "SELECT DISTINCT O.contact_list, U.user_id " +
+         "FROM (VALUES %s) AS B(digits), usr U, usr O " +
+         "WHERE O.login = '%s' AND regexp_replace(U.phoneNum, '[^0-9]', '', 'g') = B.digits " +
+         "AND U.user_id <> O.user_id AND NOT EXISTS (SELECT 1 FROM user_list_contains C " +
+         "WHERE C.list_id = O.contact_list AND C.member_id = U.user_id) " +
+         "RETURNING member_id) " +
+         "SELECT U.login FROM added A, usr U WHERE U.user_id = A.member_id", book, esc(owner)));
+      for (List<String> row : rows)
+         added.add(trim(row.get(0)));
+      return added;
+   }
+
+   public int createChat(String initSender, String chatType, Collection<String> members) throws SQLException {
+      Connection connection = esql.connection();
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         int chat_id = chatIds.next();
+         esql.executeUpdate(String.format(
+            "INSERT INTO chat (chat_id, chat_type, init_sender_id, inbox_mode) VALUES (%d,'%s',%s,'%s');",
+            chat_id, esc(chatType), idOf(initSender), inbox.modeFor(members.size())));
+         insertMembers(chat_id, members);
+         connection.commit();
+         return chat_id;
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+
+   public void deleteChat(int chatId) throws SQLException {
+      esql.executeUpdate(String.format("DELETE FROM Chat where chat_id = %d", chatId));
+   }
+
+   public boolean isMember(int chatId, String login) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT chat_id from chat_list WHERE chat_list.chat_id = %d " +
+         "AND chat_list.member_id = %s;", chatId, idOf(login))) > 0;
+   }
+
+   public boolean isInitSender(int chatId, String login) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT init_sender_id FROM CHAT WHERE chat_id = %d AND init_sender_id = %s", chatId, idOf(login))) > 0;
+   }
+
+   public List<String> chatMembers(int chatId) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT U.login FROM chat_list CL, usr U WHERE CL.chat_id = %d AND U.user_id = CL.member_id", chatId));
+      List<String> members = new ArrayList<String>(rows.size());
+      for (List<String> row : rows)
+         members.add(trim(row.get(0)));
+      return members;
+   }
+
+   public void addMember(int chatId, String login) throws SQLException {
+      esql.executeUpdate(String.format(
+         "INSERT INTO chat_list (chat_id, member_id) VALUES (%d,%s)", chatId, idOf(login)));
+      demoteIfGrown(chatId);
+   }
+   /*
+    * A chat that outgrew the inbox threshold switches to fan-out-on-read for good
+    **/
+   private void demoteIfGrown(int chatId) throws SQLException {
+      if (esql.executeUpdate(String.format(
+             "UPDATE chat SET inbox_mode = '%s' WHERE chat_id = %d AND inbox_mode = '%s' " +
+             "AND (SELECT COUNT(*) FROM chat_list WHERE chat_id = %d) > %d",
+             InboxPolicy.READ, chatId, InboxPolicy.WRITE, chatId, inbox.threshold())) > 0)
+         esql.executeUpdate(String.format("DELETE FROM inbox WHERE chat_id = %d", chatId));
+   }
+   /*
+    * Adds all members with a single multi-row INSERT
+    **/
+   private void insertMembers(int chatId, Collection<String> logins) throws SQLException {
+      if (logins.isEmpty())
+         return;
+      StringBuilder values = new StringBuilder();
+      for (String login : logins){
+         if (values.length() > 0)
+            values.append(',');
+         values.append(String.format("(%d,%s)", chatId, idOf(login)));
+      }
+      esql.executeUpdate("INSERT INTO chat_list (chat_id, member_id) VALUES " + values);
+   }
+   /*
+    * Renders logins as a parenthesised list of quoted literals
+    **/
+   private static String inList(Collection<String> logins){
+      StringBuilder list = new StringBuilder("(");
+      for (String login : logins){
+         if (list.length() > 1)
+            list.append(',');
+         list.append('\'').append(esc(login)).append('\'');
+      }
+      return list.append(')').toString();
+   }
+   public void removeMember(int chatId, String login) throws SQLException {
+      Connection connection = esql.connection();
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         esql.executeUpdate(String.format(
+            "DELETE FROM chat_list WHERE chat_id = %d AND member_id = %s", chatId, idOf(login)));
+         esql.executeUpdate(String.format(
+            "DELETE FROM inbox WHERE chat_id = %d AND member_id = %s", chatId, idOf(login)));
+         connection.commit();
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+   public Map<String, String> validateRecipients(String requester, int chatId, Collection<String> logins) throws SQLException {
+      Map<String, String> rejected = new LinkedHashMap<String, String>();
+      if (logins.isEmpty())
+         return rejected;
+      // one row per name, numbered so the answer keeps the order given
+      StringBuilder names = new StringBuilder();
+      int pos = 0;
+      for (String login : new LinkedHashSet<String>(logins)){
+         if (names.length() > 0)
+            names.append(',');
+         names.append(String.format("(%d,'%s')", pos++, esc(login)));
+      }
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT name, reason FROM (" +
+         "SELECT N.pos, N.name, CASE WHEN U.login IS NULL THEN '%s' " +
+         "WHEN EXISTS (SELECT 1 FROM user_list_contains B WHERE B.list_id = U.block_list AND B.member_id = %s) THEN '%s' " +
+         "WHEN EXISTS (SELECT 1 FROM chat_list C WHERE C.chat_id = %d AND C.member_id = U.user_id) THEN '%s' END AS reason " +
+         "FROM (VALUES %s) AS N(pos, name) LEFT JOIN usr U ON U.login = N.name" +
+         ") R WHERE reason IS NOT NULL ORDER BY pos",
+         NO_SUCH_USER, idOf(requester), BLOCKED, chatId, ALREADY_MEMBER, names));
+      for (List<String> row : rows)
+         rejected.put(row.get(0), row.get(1));
+      return rejected;
+   }
+   public void addMembers(int chatId, Collection<String> logins) throws SQLException {
+      if (logins.isEmpty())
+         return;
+      Connection connection = esql.connection();
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         insertMembers(chatId, new LinkedHashSet<String>(logins));
+         demoteIfGrown(chatId);
+         connection.commit();
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+   public List<String> removeMembers(int chatId, Collection<String> logins) throws SQLException {
+      List<String> removed = new ArrayList<String>();
+      if (logins.isEmpty())
+         return removed;
+      Connection connection = esql.connection();
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+            "DELETE FROM chat_list CL USING usr U WHERE CL.chat_id = %d AND U.user_id = CL.member_id " +
+            "AND U.login IN %s RETURNING U.login", chatId, inList(logins)));
+         esql.executeUpdate(String.format(
+            "DELETE FROM inbox WHERE chat_id = %d AND member_id IN (SELECT user_id FROM usr WHERE login IN %s)",
+            chatId, inList(logins)));
+         connection.commit();
+         for (List<String> row : rows)
+            removed.add(trim(row.get(0)));
+         return removed;
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+
+   public List<ChatSummary> listChats(String login) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT M.chat_id, U.login, M.msg_timestamp " +
+         "FROM message M LEFT JOIN usr U ON U.user_id = M.sender_id " +
+         "WHERE M.chat_id = ANY (SELECT CL.chat_id FROM chat_list CL WHERE member_id = %s) " +
+         "  AND M.msg_timestamp = ANY (SELECT MAX(A.msg_timestamp) FROM message A " +
+         "      WHERE A.chat_id = ANY (SELECT CL.chat_id FROM chat_list CL WHERE member_id = %s) " +
+         "      GROUP BY A.chat_id) " +
+         "ORDER BY M.msg_timestamp desc", idOf(login), idOf(login)));
+      List<ChatSummary> chats = new ArrayList<ChatSummary>(rows.size());
+      for (List<String> row : rows)
+         chats.add(new ChatSummary(Integer.parseInt(row.get(0)), trim(row.get(1)), toMillis(row.get(2))));
+      return chats;
+   }
+
+   // Postgres' unique_violation
+   static final String UNIQUE_VIOLATION = "23505";
+
+   public int postMessage(int chatId, String sender, String text, String clientKey) throws SQLException {
+      // the message and its inbox rows commit together, so no member's feed misses it
+      Connection connection = esql.connection();
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         int msg_id;
+         boolean stored = true;
+         try {
+            // the sequence keeps msg_id in send order across clients
+            msg_id = Integer.parseInt(esql.executeQueryAndReturnResult(String.format(
+               "INSERT INTO message (msg_text, sender_id,chat_id,client_key) VALUES ('%s',%s,'%d',%s) RETURNING msg_id"
+               , esc(text), idOf(sender), chatId, clientKey == null ? "NULL" : "'" + esc(clientKey) + "'")).get(0).get(0));
+         } catch (SQLException e) {
+            if (clientKey == null || !UNIQUE_VIOLATION.equals(e.getSQLState()))
+               throw e;
+            // a retry of a send that already committed: hand back the first
+            // msg_id, and write any inbox rows the first attempt did not
+            connection.rollback();
+            List<List<String>> existing = esql.executeQueryAndReturnResult(String.format(
+               "SELECT msg_id FROM message WHERE sender_id = %s AND client_key = '%s'",
+               idOf(sender), esc(clientKey)));
+            if (existing.isEmpty())
+               throw e;
+            msg_id = Integer.parseInt(existing.get(0).get(0));
+            stored = false;
+         }
+         // fan-out-on-write: one inbox row per member, nothing for read mode chats
+         int rows = esql.executeUpdate(String.format(
+            "INSERT INTO inbox (member_id, msg_id, chat_id) " +
+            "SELECT CL.member_id, M.msg_id, M.chat_id FROM message M, chat_list CL, chat C " +
+            "WHERE M.msg_id = %d AND CL.chat_id = M.chat_id AND C.chat_id = M.chat_id AND C.inbox_mode = '%s' " +
+            "ON CONFLICT DO NOTHING",
+            msg_id, InboxPolicy.WRITE));
+         connection.commit();
+         if (stored)
+            inbox.recordPost(rows);
+         return msg_id;
+      } catch (SQLException e){
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+
+   public void editMessage(int msgId, String text) throws SQLException {
+      esql.executeUpdate(String.format(
+         "UPDATE message SET msg_text = '%s' WHERE msg_id = %d", esc(text), msgId));
+   }
+
+   public void deleteMessage(int msgId) throws SQLException {
+      esql.executeUpdate(String.format("DELETE FROM message where msg_id = %d", msgId));
+   }
+
+   public boolean isMessageSender(int chatId, int msgId, String login) throws SQLException {
+      return esql.executeQuery(String.format(
+         "SELECT * FROM message WHERE msg_id = %d and chat_id = %d and sender_id = %s",
+         msgId, chatId, idOf(login))) > 0;
+   }
+
+   public Message getMessage(int msgId) throws SQLException {
+      List<Message> messages = toMessages(esql.executeQueryAndReturnResult(String.format(
+         "SELECT M.msg_id, M.chat_id, U.login, M.msg_text, M.msg_timestamp " +
+         "FROM message M LEFT JOIN usr U ON U.user_id = M.sender_id WHERE M.msg_id = %d", msgId)));
+      return messages.isEmpty() ? null : messages.get(0);
+   }
+
+   public List<Message> getMessages(int chatId, int limit, int offset) throws SQLException {
+      return toMessages(esql.executeQueryAndReturnResult(String.format(
+         "SELECT M.msg_id, M.chat_id, U.login, M.msg_text, M.msg_timestamp " +
+         "FROM message M LEFT JOIN usr U ON U.user_id = M.sender_id " +
+         "WHERE M.chat_id= %d ORDER BY M.msg_timestamp desc LIMIT %d OFFSET %d", chatId, limit, offset)));
+   }
+
+   public List<Message> getFeed(String login, int limit, int offset) throws SQLException {
+      // write mode chats: a range scan of the member's inbox primary key;
+      // read mode chats: the newest messages of each chat via (chat_id, msg_id)
+      int window = limit + offset;
+      return toMessages(esql.executeQueryAndReturnResult(String.format(
+         "SELECT F.msg_id, F.chat_id, U.login, F.msg_text, F.msg_timestamp FROM (" +
+         "(SELECT M.msg_id, M.chat_id, M.sender_id, M.msg_text, M.msg_timestamp " +
+         "   FROM inbox I, message M WHERE I.member_id = %s AND M.msg_id = I.msg_id " +
+         "   ORDER BY I.msg_id DESC LIMIT %d) " +
+         "UNION ALL " +
+         "(SELECT M.msg_id, M.chat_id, M.sender_id, M.msg_text, M.msg_timestamp " +
+         "   FROM message M WHERE M.chat_id IN (SELECT CL.chat_id FROM chat_list CL, chat C " +
+         "      WHERE CL.member_id = %s AND C.chat_id = CL.chat_id AND C.inbox_mode = '%s') " +
+         "   ORDER BY M.msg_id DESC LIMIT %d) " +
+         "ORDER BY 1 DESC LIMIT %d OFFSET %d" +
+         ") F LEFT JOIN usr U ON U.user_id = F.sender_id ORDER BY F.msg_id DESC",
+         idOf(login), window, idOf(login), InboxPolicy.READ, window, limit, offset)));
+   }
+
+   public SyncPage sync(String login, String watermark, int limit) throws SQLException {
+      // only transactions older than all running ones are read, so a change
+      // that commits late never falls behind a watermark already handed out
+      List<String> horizon = esql.executeQueryAndReturnResult(
+         "SELECT txid_snapshot_xmin(txid_current_snapshot()), pruned_txid FROM change_log_horizon").get(0);
+      long xmin = Long.parseLong(horizon.get(0));
+      List<Message> posted = new ArrayList<Message>();
+      List<Message> edited = new ArrayList<Message>();
+      List<Integer> deleted = new ArrayList<Integer>();
+      List<Integer> joined = new ArrayList<Integer>();
+      List<Integer> left = new ArrayList<Integer>();
+      if (watermark == null)
+         return new SyncPage(posted, edited, deleted, joined, left, xmin + ":0", false, false);
+      long[] from = parseWatermark(watermark);
+      if (Long.parseLong(horizon.get(1)) >= from[0])
+         return new SyncPage(posted, edited, deleted, joined, left, xmin + ":0", false, true);
+      // one range scan of change_log (chat_id, txid, change_id) per chat of
+      // the user, and one of change_log_member_index for the user's own
+      // chat_list rows, which are gone once the user left the chat
+      String after = String.format("(C.txid, C.change_id) > (%d, %d) AND C.txid < %d", from[0], from[1], xmin);
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT C.txid, C.change_id, C.row_id, C.chat_id, C.op, U.login, M.msg_text, M.msg_timestamp, M.msg_id, C.table_name FROM (" +
+         "(SELECT C.* FROM chat_list CL JOIN change_log C ON C.chat_id = CL.chat_id " +
+         "   WHERE CL.member_id = %s AND C.table_name = 'message' AND %s ORDER BY C.txid, C.change_id LIMIT %d) " +
+         "UNION ALL " +
+         "(SELECT C.* FROM change_log C " +
+         "   WHERE C.table_name = 'chat_list' AND C.row_id = %s AND %s ORDER BY C.txid, C.change_id LIMIT %d) " +
+         ") C LEFT JOIN message M ON M.msg_id = C.row_id AND C.table_name = 'message' " +
+         "LEFT JOIN usr U ON U.user_id = M.sender_id " +
+         "ORDER BY C.txid, C.change_id LIMIT %d",
+         idOf(login), after, limit, idOf(login), after, limit, limit));
+      // the latest state of every message and membership touched in this page
+      Map<Integer, Message> posts = new LinkedHashMap<Integer, Message>();
+      Map<Integer, Message> edits = new LinkedHashMap<Integer, Message>();
+      LinkedHashSet<Integer> deletes = new LinkedHashSet<Integer>();
+      LinkedHashSet<Integer> joins = new LinkedHashSet<Integer>();
+      LinkedHashSet<Integer> leaves = new LinkedHashSet<Integer>();
+      for (List<String> row : rows){
+         if (trim(row.get(9)).equals("chat_list")){
+            Integer chatId = Integer.valueOf(row.get(3));
+            if (trim(row.get(4)).equals("I")){
+               leaves.remove(chatId);
+               joins.add(chatId);
+            } else {
+               joins.remove(chatId);
+               leaves.add(chatId);
+            }
+            continue;
+         }
+         int msgId = Integer.parseInt(row.get(2));
+         if (row.get(8) == null){
+            posts.remove(msgId);
+            edits.remove(msgId);
+            deletes.add(msgId);
+            continue;
+         }
+         Message message = new Message(msgId, Integer.parseInt(row.get(3)), trim(row.get(5)),
+                                       trim(row.get(6)), toMillis(row.get(7)));
+         if (trim(row.get(4)).equals("I"))
+            posts.put(msgId, message);
+         else if (!posts.containsKey(msgId))
+            edits.put(msgId, message);
+      }
+      posted.addAll(posts.values());
+      edited.addAll(edits.values());
+      deleted.addAll(deletes);
+      joined.addAll(joins);
+      left.addAll(leaves);
+      if (rows.size() < limit)
+         return new SyncPage(posted, edited, deleted, joined, left, xmin + ":0", false, false);
+      List<String> last = rows.get(rows.size() - 1);
+      return new SyncPage(posted, edited, deleted, joined, left, trim(last.get(0)) + ":" + trim(last.get(1)), true, false);
+   }
+
+   /*
+    * A watermark of sync() is the txid and change_id of the last change
+    * handed out, or the xmin all changes before which were
+    **/
+   static long[] parseWatermark(String watermark) throws SQLException {
+      int colon = watermark.indexOf(':');
+      try {
+         return new long[] { Long.parseLong(watermark.substring(0, colon)), Long.parseLong(watermark.substring(colon + 1)) };
+      } catch (RuntimeException e){
+         throw new SQLException("Invalid watermark " + watermark);
+      }
+   }
+
+   static List<Message> toMessages(List<List<String>> rows){
+      List<Message> messages = new ArrayList<Message>(rows.size());
+      for (List<String> row : rows)
+         messages.add(new Message(Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)),
+                                  trim(row.get(2)), trim(row.get(3)), toMillis(row.get(4))));
+      return messages;
+   }
+
+}//end SqlMessengerStore
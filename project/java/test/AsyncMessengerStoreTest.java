@@ -0,0 +1,126 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that AsyncMessengerStore cancels the statement of a timed out or
+ * cancelled call on a Connected store, and runs a call that lost its
+ * connection once more after reconnecting.
+ */
+public class AsyncMessengerStoreTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      timeoutCancelsStatement();
+      cancelCancelsStatement();
+      brokenConnectionIsRetried();
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   /*
+    * A worker store whose isMember blocks until cancelQuery, like a query
+    * stuck in a socket read, and whose chatMembers fails with a broken
+    * connection until reconnect
+    **/
+   static final class FakeWorker extends ForwardingMessengerStore implements AsyncMessengerStore.Connected {
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch cancelled = new CountDownLatch(1);
+      final AtomicInteger reconnects = new AtomicInteger();
+      volatile boolean broken = true;
+
+      FakeWorker(MessengerStore delegate){
+         super(delegate);
+      }
+
+      public boolean isMember(int chatId, String login) throws SQLException {
+         started.countDown();
+         while (true){
+            try {
+               // interrupts are ignored, as by the driver
+               if (cancelled.await(10, TimeUnit.SECONDS))
+                  throw new SQLException("canceling statement due to user request", "57014");
+               throw new SQLException("never cancelled");
+            } catch (InterruptedException e){
+               // keeps waiting
+            }
+         }
+      }
+
+      public List<String> chatMembers(int chatId) throws SQLException {
+         if (broken)
+            throw new SQLException("An I/O error occurred while sending to the backend.", "08006");
+         return super.chatMembers(chatId);
+      }
+
+      public void cancelQuery(){
+         cancelled.countDown();
+      }
+
+      public boolean reconnect(){
+         reconnects.incrementAndGet();
+         broken = false;
+         return true;
+      }
+   }//end FakeWorker
+
+   private static FakeWorker worker() throws SQLException {
+      InMemoryMessengerStore memory = new InMemoryMessengerStore();
+      memory.createUser("alice", "pw", "555-0001");
+      memory.createChat("alice", "private", Arrays.asList("alice"));
+      return new FakeWorker(memory);
+   }
+
+   private static AsyncMessengerStore async(final FakeWorker worker, long timeoutMillis){
+      return new AsyncMessengerStore(new Callable<MessengerStore>(){
+         public MessengerStore call(){
+            return worker;
+         }
+      }, 1, timeoutMillis);
+   }
+
+   static void timeoutCancelsStatement() throws Exception {
+      FakeWorker worker = worker();
+      CompletableFuture<Boolean> call = async(worker, 500).isMember(0, "alice");
+      try {
+         AsyncMessengerStore.join(call);
+         check(false, "a stuck call times out");
+      } catch (SQLException e){
+         // expected
+      }
+      check(worker.cancelled.await(5, TimeUnit.SECONDS), "the timeout cancelled the statement");
+   }
+
+   static void cancelCancelsStatement() throws Exception {
+      FakeWorker worker = worker();
+      AsyncMessengerStore store = async(worker, 0);
+      CompletableFuture<Boolean> call = store.isMember(0, "alice");
+      check(worker.started.await(5, TimeUnit.SECONDS), "the call started");
+      call.cancel(true);
+      check(worker.cancelled.await(5, TimeUnit.SECONDS), "cancelling the future cancelled the statement");
+      // the worker is free again
+      worker.broken = false;
+      check(AsyncMessengerStore.join(store.chatMembers(0)).equals(Arrays.asList("alice")), "the worker runs the next call");
+   }
+
+   static void brokenConnectionIsRetried() throws Exception {
+      FakeWorker worker = worker();
+      check(AsyncMessengerStore.join(async(worker, 0).chatMembers(0)).equals(Arrays.asList("alice")),
+            "a read that lost its connection succeeds on a new one");
+      check(worker.reconnects.get() == 1, "reconnected once, got " + worker.reconnects.get());
+   }
+
+}//end AsyncMessengerStoreTest
@@ -0,0 +1,108 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Checks that AuthorizationCache answers from memory until the chat's
+ * members change, drops answers read across a change, and that the shared
+ * Listener hands each membership notification to every listening session
+ * and caches nothing before it listens.
+ */
+public class AuthorizationCacheTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      cachedUntilInvalidated();
+      staleAnswerIsDropped();
+      listenerFansOut();
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   /*
+    * Counts the membership checks that reach the store
+    **/
+   static final class Counting extends ForwardingMessengerStore {
+      int isMember;
+
+      Counting(MessengerStore delegate){
+         super(delegate);
+      }
+
+      public boolean isMember(int chatId, String login) throws SQLException {
+         isMember++;
+         return super.isMember(chatId, login);
+      }
+   }//end Counting
+
+   private static Counting store() throws SQLException {
+      InMemoryMessengerStore store = new InMemoryMessengerStore();
+      store.createUser("alice", "pw", "555-0001");
+      store.createUser("bob", "pw", "555-0002");
+      store.createUser("carol", "pw", "555-0003");
+      store.createChat("alice", "group", Arrays.asList("alice", "bob", "carol"));
+      return new Counting(store);
+   }
+
+   static void cachedUntilInvalidated() throws SQLException {
+      Counting store = store();
+      AuthorizationCache bob = new AuthorizationCache("bob");
+      check(bob.isMember(store, 0) && bob.isMember(store, 0), "bob is a member");
+      check(store.isMember == 1, "the second check is answered from memory");
+
+      store.removeMember(0, "bob");
+      bob.invalidate(0);
+      check(!bob.isMember(store, 0), "after the change bob is no longer a member");
+      check(store.isMember == 2, "the change sent the check to the store");
+   }
+
+   static void staleAnswerIsDropped() throws SQLException {
+      AuthorizationCache bob = new AuthorizationCache("bob");
+      long version = bob.version(0);
+      // the members change while the answer is on its way
+      bob.invalidate(0);
+      bob.putMember(0, true, version);
+      check(bob.member(0) == null, "an answer read before the change is not kept");
+      bob.putMember(0, true, bob.version(0));
+      check(Boolean.TRUE.equals(bob.member(0)), "an answer read after it is");
+   }
+
+   static void listenerFansOut() throws SQLException {
+      Counting store = store();
+      AuthorizationCache.Listener listener = new AuthorizationCache.Listener(null);
+      AuthorizationCache bob = new AuthorizationCache("bob");
+      listener.add(bob);
+      bob.isMember(store, 0);
+      bob.isMember(store, 0);
+      check(store.isMember == 2, "nothing is cached before the listener listens");
+
+      listener.started();
+      AuthorizationCache carol = new AuthorizationCache("carol");
+      listener.add(carol);
+      bob.isMember(store, 0);
+      carol.isMember(store, 0);
+      store.isMember = 0;
+      check(bob.isMember(store, 0) && carol.isMember(store, 0) && store.isMember == 0,
+            "both sessions cache once the listener listens");
+
+      // another client removes bob and carol; one notification for the chat
+      store.removeMembers(0, Arrays.asList("bob", "carol"));
+      listener.deliver(0);
+      check(!bob.isMember(store, 0) && !carol.isMember(store, 0), "the notification reached both sessions");
+      check(store.isMember == 2, "each asked the store once");
+
+      listener.remove(bob);
+      store.addMembers(0, Arrays.asList("bob", "carol"));
+      listener.deliver(0);
+      check(carol.isMember(store, 0), "a listening session sees the change");
+      check(!bob.isMember(store, 0), "a stopped session gets no more notifications");
+   }
+
+}//end AuthorizationCacheTest
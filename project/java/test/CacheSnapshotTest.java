@@ -0,0 +1,128 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Checks the CacheSnapshot file without a database: the users survive a
+ * write and read, and a file of another database, of an older format,
+ * damaged, truncated or missing is not used, so load falls back to reading
+ * USR in full.
+ */
+public class CacheSnapshotTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      File dir = new File(System.getProperty("java.io.tmpdir"), "cachesnapshottest-" + System.nanoTime());
+      try {
+         roundTrip(dir);
+         otherDatabase(dir);
+         oldFormat(dir);
+         damaged(dir);
+      } finally {
+         File[] files = dir.listFiles();
+         if (files != null)
+            for (File file : files)
+               file.delete();
+         dir.delete();
+      }
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   private static final long SYSTEM_ID = 6523187718934560811L;
+
+   private static CacheSnapshot snapshot(File dir, long systemId, String database){
+      CacheSnapshot snapshot = new CacheSnapshot(dir, null, 0);
+      snapshot.identify(systemId, database);
+      return snapshot;
+   }
+
+   private static List<String> logins(List<MessengerStore.User> users){
+      List<String> logins = new ArrayList<String>();
+      for (MessengerStore.User user : users)
+         logins.add(user.login + "/" + user.phoneNum);
+      return logins;
+   }
+
+   /*
+    * Writes a snapshot of three users, one with a non-ASCII login
+    **/
+   private static List<String> written(File dir) throws Exception {
+      LoginIndex index = new LoginIndex();
+      index.add("alice", "555-0001");
+      index.add("bob", "+1 (555) 0002");
+      index.add("zo\u00eb", "555-0003");
+      snapshot(dir, SYSTEM_ID, "chat").write(index);
+      return logins(index.users());
+   }
+
+   private static File file(File dir){
+      return new File(dir, "users.snap");
+   }
+
+   static void roundTrip(File dir) throws Exception {
+      List<String> expected = written(dir);
+      List<MessengerStore.User> users = snapshot(dir, SYSTEM_ID, "chat").read();
+      check(users != null && logins(users).equals(expected), "the users come back " + (users == null ? null : logins(users)));
+      check(!new File(dir, "users.snap.tmp").exists(), "no temporary file is left");
+   }
+
+   static void otherDatabase(File dir) throws Exception {
+      written(dir);
+      check(snapshot(dir, SYSTEM_ID + 1, "chat").read() == null, "a file of another cluster is not used");
+      check(snapshot(dir, SYSTEM_ID, "chat_test").read() == null, "a file of another database is not used");
+      check(snapshot(dir, SYSTEM_ID, "chat").read() != null, "the same database still reads it");
+   }
+
+   static void oldFormat(File dir) throws Exception {
+      written(dir);
+      byte[] bytes = Files.readAllBytes(file(dir).toPath());
+      // format 1, with a checksum that matches
+      int at = CacheSnapshot.MAGIC.length;
+      bytes[at] = 0; bytes[at + 1] = 0; bytes[at + 2] = 0; bytes[at + 3] = 1;
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, bytes.length - 4);
+      int sum = (int) crc.getValue();
+      for (int i = 0; i < 4; i++)
+         bytes[bytes.length - 4 + i] = (byte) (sum >>> (24 - 8 * i));
+      Files.write(file(dir).toPath(), bytes);
+      check(snapshot(dir, SYSTEM_ID, "chat").read() == null, "a file of another format is not used");
+   }
+
+   static void damaged(File dir) throws Exception {
+      written(dir);
+      RandomAccessFile raf = new RandomAccessFile(file(dir), "rw");
+      try {
+         raf.seek(raf.length() / 2);
+         int b = raf.read();
+         raf.seek(raf.length() / 2);
+         raf.write(b ^ 0x20);
+      } finally {
+         raf.close();
+      }
+      check(snapshot(dir, SYSTEM_ID, "chat").read() == null, "a flipped bit is caught by the checksum");
+
+      written(dir);
+      byte[] bytes = Files.readAllBytes(file(dir).toPath());
+      for (int length : new int[] { 0, 7, 30, bytes.length - 1 }){
+         Files.write(file(dir).toPath(), Arrays.copyOf(bytes, length));
+         check(snapshot(dir, SYSTEM_ID, "chat").read() == null, "a file cut to " + length + " bytes is not used");
+      }
+
+      file(dir).delete();
+      check(snapshot(dir, SYSTEM_ID, "chat").read() == null, "no file");
+   }
+
+}//end CacheSnapshotTest
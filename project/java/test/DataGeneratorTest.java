@@ -0,0 +1,67 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that DataGenerator output depends only on the scale and the seed:
+ * the same seed gives byte-identical files with 1 and with several threads,
+ * at a scale where every file has more than one partition.
+ */
+public class DataGeneratorTest {
+
+   private static int failures = 0;
+
+   static final String[] FILES = {
+      "usr_list.csv", "usr.csv", "usr_list_contains.csv", "chat.csv", "chat_list.csv", "message.csv"
+   };
+
+   public static void main(String[] args) throws Exception {
+      File dir = new File(System.getProperty("java.io.tmpdir"), "datageneratortest-" + System.nanoTime());
+      try {
+         File one = generate(new File(dir, "one"), 3, 7L, 1);
+         File many = generate(new File(dir, "many"), 3, 7L, 4);
+         File other = generate(new File(dir, "other"), 3, 8L, 4);
+         for (String name : FILES){
+            byte[] expected = Files.readAllBytes(new File(one, name).toPath());
+            check(expected.length > 0, name + " is not empty");
+            check(Arrays.equals(expected, Files.readAllBytes(new File(many, name).toPath())),
+                  name + " is the same with 1 and 4 threads");
+         }
+         check(!Arrays.equals(Files.readAllBytes(new File(one, "message.csv").toPath()),
+                              Files.readAllBytes(new File(other, "message.csv").toPath())),
+               "another seed gives other messages");
+      } finally {
+         for (String sub : new String[] { "one", "many", "other" }){
+            for (String name : FILES)
+               new File(new File(dir, sub), name).delete();
+            new File(dir, sub).delete();
+         }
+         dir.delete();
+      }
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   private static File generate(File dir, double scale, long seed, int threads) throws Exception {
+      dir.mkdirs();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         DataGenerator data = new DataGenerator(scale, seed);
+         check(DataGenerator.partitions(data.users, DataGenerator.PARTITION) > 1, "more than one user partition");
+         DataGenerator.writeAll(pool, threads, dir, data);
+      } finally {
+         pool.shutdown();
+      }
+      return dir;
+   }
+
+}//end DataGeneratorTest
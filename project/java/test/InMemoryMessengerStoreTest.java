@@ -0,0 +1,179 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the MessengerStore contract against InMemoryMessengerStore:
+ * membership, validateRecipients, postMessage with client keys and the
+ * order of getFeed. Plain main, no test framework; run with
+ * scripts/test.sh. Exits with 1 if a check fails.
+ */
+public class InMemoryMessengerStoreTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      membership();
+      addMembersIsAllOrNothing();
+      validateRecipients();
+      postMessageDedup();
+      concurrentPosts();
+      feedOrder();
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   private static InMemoryMessengerStore users(String... logins) throws SQLException {
+      InMemoryMessengerStore store = new InMemoryMessengerStore();
+      for (int i = 0; i < logins.length; i++)
+         store.createUser(logins[i], "pw", "555-000" + i);
+      return store;
+   }
+
+   static void membership() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob", "carol");
+      int chat = store.createChat("alice", "group", Arrays.asList("alice", "bob"));
+      check(store.isMember(chat, "alice") && store.isMember(chat, "bob"), "members of a new chat");
+      check(!store.isMember(chat, "carol"), "non-member");
+      check(store.isInitSender(chat, "alice") && !store.isInitSender(chat, "bob"), "init sender");
+
+      store.addMember(chat, "carol");
+      check(store.isMember(chat, "carol"), "added member");
+      store.removeMember(chat, "bob");
+      check(!store.isMember(chat, "bob"), "removed member");
+      List<String> members = new ArrayList<String>(store.chatMembers(chat));
+      Collections.sort(members);
+      check(members.equals(Arrays.asList("alice", "carol")), "chatMembers " + members);
+
+      List<String> removed = store.removeMembers(chat, Arrays.asList("carol", "bob"));
+      check(removed.equals(Arrays.asList("carol")), "removeMembers returns only former members " + removed);
+
+      store.deleteChat(chat);
+      check(!store.isMember(chat, "alice"), "no members after deleteChat");
+   }
+
+   static void addMembersIsAllOrNothing() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob");
+      int chat = store.createChat("alice", "private", Arrays.asList("alice"));
+      try {
+         store.addMembers(chat, Arrays.asList("bob", "nobody"));
+         check(false, "addMembers with an unknown login fails");
+      } catch (SQLException e){
+         // expected
+      }
+      check(!store.isMember(chat, "bob"), "a failed addMembers adds no one");
+      store.addMembers(chat, Arrays.asList("bob"));
+      check(store.isMember(chat, "bob"), "addMembers");
+   }
+
+   static void validateRecipients() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob", "carol", "dave");
+      store.addToList("carol", MessengerStore.ListType.BLOCK, "alice");
+      int chat = store.createChat("alice", "group", Arrays.asList("alice", "bob"));
+
+      Map<String, String> rejected = store.validateRecipients("alice", chat,
+         Arrays.asList("dave", "nobody", "carol", "bob"));
+      check(new ArrayList<String>(rejected.keySet()).equals(Arrays.asList("nobody", "carol", "bob")),
+            "rejected logins in the order given " + rejected.keySet());
+      check(MessengerStore.NO_SUCH_USER.equals(rejected.get("nobody")), "unknown login");
+      check(MessengerStore.BLOCKED.equals(rejected.get("carol")), "blocked requester");
+      check(MessengerStore.ALREADY_MEMBER.equals(rejected.get("bob")), "existing member");
+
+      // a chat not created yet has no members to clash with
+      rejected = store.validateRecipients("alice", -1, Arrays.asList("bob", "dave"));
+      check(rejected.isEmpty(), "no rejections for a new chat " + rejected);
+   }
+
+   static void postMessageDedup() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob");
+      int chat = store.createChat("alice", "private", Arrays.asList("alice", "bob"));
+
+      int first = store.postMessage(chat, "alice", "hi", "k1");
+      int retry = store.postMessage(chat, "alice", "hi", "k1");
+      check(first == retry, "a retried key returns the first msg_id");
+      check(store.getMessages(chat, 10, 0).size() == 1, "a retried key stores nothing");
+
+      int other = store.postMessage(chat, "bob", "hi", "k1");
+      check(other != first, "keys are per sender");
+      int unkeyed1 = store.postMessage(chat, "alice", "again", null);
+      int unkeyed2 = store.postMessage(chat, "alice", "again", null);
+      check(unkeyed1 != unkeyed2, "posts without a key are never merged");
+      check(store.getMessages(chat, 10, 0).size() == 4, "four messages stored");
+
+      MessengerStore.Message message = store.getMessage(first);
+      check(message != null && message.chatId == chat && "alice".equals(message.sender) && "hi".equals(message.text),
+            "getMessage returns the stored row");
+      check(store.isMessageSender(chat, first, "alice") && !store.isMessageSender(chat, first, "bob"),
+            "isMessageSender");
+   }
+
+   static void concurrentPosts() throws Exception {
+      final InMemoryMessengerStore store = users("alice", "bob");
+      final int chat = store.createChat("alice", "group", Arrays.asList("alice", "bob"));
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      List<Future<Integer>> ids = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < 400; i++){
+         final String key = "k" + (i % 100);
+         ids.add(pool.submit(new Callable<Integer>(){
+            public Integer call() throws SQLException {
+               return store.postMessage(chat, "alice", "text", key);
+            }
+         }));
+      }
+      Set<Integer> distinct = new HashSet<Integer>();
+      for (Future<Integer> id : ids)
+         distinct.add(id.get());
+      pool.shutdown();
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+      check(distinct.size() == 100, "one message per key under concurrent retries, got " + distinct.size());
+      check(store.getMessages(chat, 1000, 0).size() == 100, "one stored row per key");
+   }
+
+   static void feedOrder() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob", "carol");
+      int ab = store.createChat("alice", "private", Arrays.asList("alice", "bob"));
+      int ac = store.createChat("alice", "private", Arrays.asList("alice", "carol"));
+      int bc = store.createChat("bob", "private", Arrays.asList("bob", "carol"));
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int i = 0; i < 5; i++){
+         expected.add(store.postMessage(ab, "bob", "ab" + i, null));
+         expected.add(store.postMessage(ac, "carol", "ac" + i, null));
+         store.postMessage(bc, "bob", "bc" + i, null);
+      }
+      int deleted = expected.remove(3);
+      store.deleteMessage(deleted);
+      Collections.reverse(expected);
+
+      List<Integer> feed = new ArrayList<Integer>();
+      for (MessengerStore.Message message : store.getFeed("alice", 100, 0))
+         feed.add(message.msgId);
+      check(feed.equals(expected), "feed is newest first, across chats, without deleted or foreign messages " + feed);
+
+      List<Integer> paged = new ArrayList<Integer>();
+      for (int offset = 0; offset < expected.size(); offset += 3){
+         for (MessengerStore.Message message : store.getFeed("alice", 3, offset))
+            paged.add(message.msgId);
+      }
+      check(paged.equals(expected), "pages of the feed line up " + paged);
+      check(store.getFeed("alice", 3, expected.size()).isEmpty(), "offset past the end");
+      check(store.getFeed("nobody", 10, 0).isEmpty(), "unknown user has an empty feed");
+   }
+
+}//end InMemoryMessengerStoreTest
@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Checks LoginIndex: prefix search on logins and phone numbers, contacts
+ * ranked first within the limit, and add and remove keeping both arrays in
+ * step, also for users sharing a phone number.
+ */
+public class LoginIndexTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      prefixSearch();
+      contactsFirst();
+      sharedPhones();
+      randomChanges();
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   private static final Set<String> NONE = Collections.<String>emptySet();
+
+   private static LoginIndex index(String... loginsAndPhones){
+      List<MessengerStore.User> users = new ArrayList<MessengerStore.User>();
+      for (int i = 0; i < loginsAndPhones.length; i += 2)
+         users.add(new MessengerStore.User(loginsAndPhones[i], loginsAndPhones[i + 1], null));
+      LoginIndex index = new LoginIndex();
+      index.load(users);
+      return index;
+   }
+
+   static void prefixSearch(){
+      LoginIndex index = index("carol", "+1(180)393-1512", "alice", "555-0001", "albert", "555-0002",
+                               "bob", "555-0003", "al", "1 180 555");
+      check(index.complete("al", NONE, 10).equals(Arrays.asList("al", "albert", "alice")), "logins in order "
+            + index.complete("al", NONE, 10));
+      check(index.complete("alb", NONE, 10).equals(Arrays.asList("albert")), "a longer prefix");
+      check(index.complete("z", NONE, 10).isEmpty(), "no match");
+      check(index.complete("al", NONE, 2).equals(Arrays.asList("al", "albert")), "the limit");
+      check(index.complete("555-000", NONE, 10).equals(Arrays.asList("alice", "albert", "bob")),
+            "a phone prefix is matched on digits " + index.complete("555-000", NONE, 10));
+      check(index.complete("+1 (180)", NONE, 10).equals(Arrays.asList("carol", "al")),
+            "punctuation in the query is ignored, matches in phone order " + index.complete("+1 (180)", NONE, 10));
+   }
+
+   static void contactsFirst(){
+      LoginIndex index = index("anna", "1", "anne", "2", "annie", "3", "ann", "4", "annabel", "5");
+      Set<String> contacts = new HashSet<String>(Arrays.asList("annie", "anne"));
+      check(index.complete("ann", contacts, 10).equals(Arrays.asList("anne", "annie", "ann", "anna", "annabel")),
+            "contacts first, then the rest, each in order " + index.complete("ann", contacts, 10));
+      check(index.complete("ann", contacts, 3).equals(Arrays.asList("anne", "annie", "ann")),
+            "the limit keeps contacts " + index.complete("ann", contacts, 3));
+      check(index.complete("ann", Collections.singleton("annie"), 1).equals(Arrays.asList("annie")),
+            "a contact past the first matches still wins the only slot");
+   }
+
+   static void sharedPhones(){
+      LoginIndex index = index("a", "555", "b", "555", "c", "555", "d", "556");
+      index.remove("b");
+      check(index.complete("555", NONE, 10).equals(Arrays.asList("a", "c")),
+            "only the removed user's phone entry is gone " + index.complete("555", NONE, 10));
+      check(index.complete("b", NONE, 10).isEmpty(), "and the login");
+      index.remove("c");
+      index.remove("a");
+      check(index.complete("55", NONE, 10).equals(Arrays.asList("d")), "the other number stays");
+      index.add("e", "555");
+      check(index.complete("555", NONE, 10).equals(Arrays.asList("e")), "added back");
+      index.remove("nobody");
+      check(index.size() == 2, "removing an unknown login changes nothing");
+   }
+
+   static void randomChanges(){
+      Random random = new Random(33);
+      LoginIndex index = new LoginIndex();
+      TreeMap<String, String> users = new TreeMap<String, String>();
+      for (int i = 0; i < 3000; i++){
+         String login = "u" + random.nextInt(400);
+         if (random.nextBoolean()){
+            String phone = "55" + random.nextInt(50);
+            index.add(login, phone);
+            if (!users.containsKey(login))
+               users.put(login, phone);
+         } else {
+            index.remove(login);
+            users.remove(login);
+         }
+      }
+      check(index.size() == users.size(), "size " + index.size() + " vs " + users.size());
+      List<String> phones = new ArrayList<String>();
+      for (MessengerStore.User user : index.users()){
+         check(user.phoneNum.equals(users.get(user.login)), "phone of " + user.login);
+         phones.add(user.phoneNum);
+      }
+      List<String> sorted = new ArrayList<String>(phones);
+      Collections.sort(sorted);
+      check(phones.equals(sorted) && phones.size() == users.size(), "phones stay sorted, one per user");
+      for (int p = 0; p < 50; p++){
+         Set<String> expected = new HashSet<String>();
+         for (String login : users.keySet()){
+            if (users.get(login).equals("55" + p))
+               expected.add(login);
+         }
+         // 555 also matches 5550..5559; compare exact numbers only
+         Set<String> found = new HashSet<String>();
+         for (String login : index.complete("55" + p, NONE, 1000)){
+            if (users.get(login).equals("55" + p))
+               found.add(login);
+         }
+         check(found.equals(expected), "users with phone 55" + p);
+      }
+   }
+
+}//end LoginIndexTest
@@ -0,0 +1,168 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks MessageLog through HotLogStore against InMemoryMessengerStore:
+ * pages agree with the store across the sparse index, rebuild limits,
+ * edits, deletes and retried sends; rebuilds read only what is paged; the
+ * TTL brings in messages written past the log; and sends to chats that are
+ * not open cost no read-back.
+ */
+public class MessageLogTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      File dir = new File(System.getProperty("java.io.tmpdir"), "messagelogtest-" + System.nanoTime());
+      try {
+         pagesMatchTheStore(dir);
+         rebuildReadsWhatIsPaged(dir);
+         ttlRebuild(dir);
+         closedChatsAreNotReadBack(dir);
+      } finally {
+         File[] files = dir.listFiles();
+         if (files != null)
+            for (File file : files)
+               file.delete();
+         dir.delete();
+      }
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   /*
+    * Counts the reads the log makes of the store beneath it
+    **/
+   static final class Counting extends ForwardingMessengerStore {
+      int getMessage;
+      int getMessages;
+      int rowsAsked;
+
+      Counting(MessengerStore delegate){
+         super(delegate);
+      }
+
+      public MessengerStore.Message getMessage(int msgId) throws SQLException {
+         getMessage++;
+         return super.getMessage(msgId);
+      }
+
+      public List<MessengerStore.Message> getMessages(int chatId, int limit, int offset) throws SQLException {
+         getMessages++;
+         rowsAsked += limit;
+         return super.getMessages(chatId, limit, offset);
+      }
+   }//end Counting
+
+   private static String text(List<MessengerStore.Message> page){
+      StringBuilder text = new StringBuilder();
+      for (MessengerStore.Message message : page)
+         text.append(message.msgId).append(':').append(message.text).append(' ');
+      return text.toString();
+   }
+
+   private static InMemoryMessengerStore chat() throws SQLException {
+      InMemoryMessengerStore store = new InMemoryMessengerStore();
+      store.createUser("alice", "pw", "555-0001");
+      store.createUser("bob", "pw", "555-0002");
+      store.createChat("alice", "private", Arrays.asList("alice", "bob"));
+      return store;
+   }
+
+   static void pagesMatchTheStore(File dir) throws SQLException {
+      for (int rebuild : new int[] { 1000, 99, 50, 20, 5 }){
+         InMemoryMessengerStore store = chat();
+         MessageLog log = new MessageLog(new File(dir, "pages-" + rebuild), 60000, rebuild, 4);
+         HotLogStore hot = new HotLogStore(store, log);
+         Random random = new Random(rebuild);
+         List<Integer> ids = new ArrayList<Integer>();
+         for (int i = 0; i < 400; i++){
+            int op = random.nextInt(10);
+            if (op < 7 || ids.isEmpty()){
+               int id = hot.postMessage(0, "alice", "m" + i, "k" + i);
+               ids.add(id);
+               // a retried send, and a late retry of an older one
+               check(hot.postMessage(0, "alice", "m" + i, "k" + i) == id, "retry returns the first id");
+               if (random.nextInt(8) == 0)
+                  hot.postMessage(0, "alice", "again", "k" + random.nextInt(i + 1));
+            } else if (op < 9){
+               hot.editMessage(ids.get(random.nextInt(ids.size())), "e" + i);
+            } else {
+               hot.deleteMessage(ids.remove(random.nextInt(ids.size())));
+            }
+            if (i % 7 == 0){
+               int limit = 1 + random.nextInt(20);
+               int offset = random.nextInt(150);
+               String fromLog = text(hot.getMessages(0, limit, offset));
+               String fromStore = text(store.getMessages(0, limit, offset));
+               check(fromLog.equals(fromStore), "rebuild " + rebuild + " step " + i + " page " + limit + "+" + offset
+                                                + "\n   log:   " + fromLog + "\n   store: " + fromStore);
+            }
+         }
+         log.close();
+      }
+   }
+
+   static void rebuildReadsWhatIsPaged(File dir) throws SQLException {
+      InMemoryMessengerStore store = chat();
+      for (int i = 0; i < 500; i++)
+         store.postMessage(0, "bob", "m" + i, null);
+      Counting counting = new Counting(store);
+      HotLogStore hot = new HotLogStore(counting, new MessageLog(new File(dir, "bounded"), 60000, 1000, 4));
+
+      hot.getMessages(0, 10, 0);
+      check(counting.rowsAsked <= 11, "the first page reads 11 rows, not the rebuild limit: " + counting.rowsAsked);
+      counting.rowsAsked = 0;
+      hot.getMessages(0, 10, 0);
+      check(counting.rowsAsked == 0, "the next read of it is served by the log");
+
+      check(text(hot.getMessages(0, 10, 10)).equals(text(store.getMessages(0, 10, 10))), "second page");
+      int grown = counting.rowsAsked;
+      check(grown > 0 && grown <= 21, "a deeper page grows the segment once: " + grown);
+      counting.rowsAsked = 0;
+      check(text(hot.getMessages(0, 10, 5)).equals(text(store.getMessages(0, 10, 5))), "page within the grown segment");
+      check(counting.rowsAsked == 0, "served by the grown segment");
+   }
+
+   static void ttlRebuild(File dir) throws Exception {
+      InMemoryMessengerStore store = chat();
+      MessageLog log = new MessageLog(new File(dir, "ttl"), 200, 1000, 4);
+      HotLogStore hot = new HotLogStore(store, log);
+      hot.postMessage(0, "alice", "first", null);
+      hot.getMessages(0, 10, 0);
+
+      // another process writes straight to the database
+      store.postMessage(0, "bob", "elsewhere", null);
+      check(hot.getMessages(0, 10, 0).size() == 1, "within the TTL the log is not reread");
+      Thread.sleep(300);
+      check(text(hot.getMessages(0, 10, 0)).equals(text(store.getMessages(0, 10, 0))), "after the TTL the log is rebuilt");
+   }
+
+   static void closedChatsAreNotReadBack(File dir) throws SQLException {
+      Counting counting = new Counting(chat());
+      MessageLog log = new MessageLog(new File(dir, "closed"), 60000, 1000, 4);
+      HotLogStore hot = new HotLogStore(counting, log);
+      int msgId = hot.postMessage(0, "alice", "hi", null);
+      hot.editMessage(msgId, "hello");
+      hot.deleteMessage(msgId);
+      check(counting.getMessage == 0, "no read-back for a chat without an open segment: " + counting.getMessage);
+
+      hot.getMessages(0, 10, 0);
+      msgId = hot.postMessage(0, "alice", "hi", null);
+      hot.deleteMessage(msgId);
+      check(counting.getMessage == 1, "a post to an open chat reads its row once, a delete none: " + counting.getMessage);
+      check(hot.getMessages(0, 10, 0).isEmpty(), "the delete reached the log");
+   }
+
+}//end MessageLogTest
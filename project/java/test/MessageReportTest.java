@@ -0,0 +1,155 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks MessageReport without a database: the COPY text parser, and
+ * chat_days and chat_sizes built from rows fed straight to the workers,
+ * with few enough pairs allowed that the workers spill runs to be merged,
+ * and with negative chat ids.
+ */
+public class MessageReportTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      parser();
+      File dir = new File(System.getProperty("java.io.tmpdir"), "messagereporttest-" + System.nanoTime());
+      dir.mkdirs();
+      try {
+         spillAndMerge(dir);
+      } finally {
+         File[] files = dir.listFiles();
+         if (files != null)
+            for (File file : files)
+               file.delete();
+         dir.delete();
+      }
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   private static int[] parse(String line, int width){
+      int[] row = new int[width];
+      Arrays.fill(row, 99);
+      MessageReport.parse(line.getBytes(), row);
+      return row;
+   }
+
+   static void parser(){
+      check(Arrays.equals(parse("12\t345\t19000", 3), new int[] { 12, 345, 19000 }), "plain columns");
+      check(Arrays.equals(parse("12\t\\N\t-3\n", 3), new int[] { 12, MessageReport.NULL, -3 }), "NULL and a negative day");
+      check(Arrays.equals(parse("-7\t0\t0", 3), new int[] { -7, 0, 0 }), "a negative chat id");
+      check(Arrays.equals(parse("2147483647", 1), new int[] { Integer.MAX_VALUE }), "the largest int");
+      check(Arrays.equals(parse("5\t6\t7", 1), new int[] { 5 }), "columns past the row are ignored");
+      check(parse("\\N", 1)[0] == MessageReport.NULL, "a NULL chat");
+   }
+
+   /*
+    * Feeds rows to the report as COPY would
+    **/
+   private static MessageReport.Lines lines(List<String> rows){
+      final Iterator<String> it = rows.iterator();
+      return new MessageReport.Lines(){
+         public byte[] next(){
+            return it.hasNext() ? (it.next() + "\n").getBytes() : null;
+         }
+      };
+   }
+
+   private static List<String> read(File file, boolean gzip) throws IOException {
+      List<String> lines = new ArrayList<String>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+         gzip ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file), "UTF-8"));
+      try {
+         String line;
+         while ((line = in.readLine()) != null)
+            lines.add(line);
+      } finally {
+         in.close();
+      }
+      return lines;
+   }
+
+   static void spillAndMerge(File dir) throws Exception {
+      Random random = new Random(42);
+      List<String> messages = new ArrayList<String>();
+      List<String> members = new ArrayList<String>();
+      // chat -> day -> messages, and chat -> members
+      TreeMap<Integer, TreeMap<Integer, Integer>> days = new TreeMap<Integer, TreeMap<Integer, Integer>>();
+      TreeMap<Integer, Integer> sizes = new TreeMap<Integer, Integer>();
+      for (int i = 0; i < 60000; i++){
+         int chat = random.nextInt(300) - 50;
+         if (chat == MessageReport.NULL)
+            continue;
+         int day = 18000 + random.nextInt(40);
+         messages.add(chat + "\t" + (1 + random.nextInt(50)) + "\t" + day);
+         if (!days.containsKey(chat))
+            days.put(chat, new TreeMap<Integer, Integer>());
+         Integer count = days.get(chat).get(day);
+         days.get(chat).put(day, count == null ? 1 : count + 1);
+      }
+      // a message whose chat was deleted
+      messages.add("\\N\t1\t18000");
+      for (int chat : days.keySet()){
+         int size = 2 + random.nextInt(5);
+         for (int m = 0; m < size; m++)
+            members.add(String.valueOf(chat));
+         sizes.put(chat, size);
+      }
+
+      // 300 pairs over 3 workers, far fewer than the 12000 there are
+      MessageReport report = new MessageReport(null, dir, 3, 300);
+      Thread[] threads = report.start();
+      try {
+         report.route(lines(messages), MessageReport.MESSAGES);
+         report.route(lines(members), MessageReport.MEMBERS);
+      } finally {
+         report.finish(threads);
+      }
+      int spilled = report.spilled();
+      check(spilled >= 3, "the workers spilled runs, got " + spilled);
+
+      File chatDays = new File(dir, "chat_days.tsv.gz");
+      report.writeChatDays(chatDays);
+      List<String> expected = new ArrayList<String>();
+      expected.add("chat_id\tday\tmessages");
+      for (Map.Entry<Integer, TreeMap<Integer, Integer>> chat : days.entrySet()){
+         for (Map.Entry<Integer, Integer> day : chat.getValue().entrySet())
+            expected.add(chat.getKey() + "\t" + LocalDate.ofEpochDay(day.getKey()) + "\t" + day.getValue());
+      }
+      List<String> got = read(chatDays, true);
+      check(got.equals(expected), "chat_days has every (chat, day) once, in order: " + got.size() + " lines vs " + expected.size());
+      check(dir.list().length == 1, "the runs are deleted after the merge " + Arrays.asList(dir.list()));
+
+      File chatSizes = new File(dir, "chat_sizes.tsv");
+      report.writeChatSizes(chatSizes);
+      TreeMap<Integer, Integer> bySize = new TreeMap<Integer, Integer>();
+      for (int size : sizes.values())
+         bySize.put(size, bySize.containsKey(size) ? bySize.get(size) + 1 : 1);
+      expected.clear();
+      expected.add("members\tchats");
+      for (Map.Entry<Integer, Integer> size : bySize.entrySet())
+         expected.add(size.getKey() + "\t" + size.getValue());
+      check(read(chatSizes, false).equals(expected), "chat_sizes " + read(chatSizes, false));
+   }
+
+}//end MessageReportTest
@@ -0,0 +1,84 @@
+/**
+ * Checks RateLimiter: a burst after an idle period, the sustained rate
+ * after it, a disabled limiter, and waitNanos and release, which take and
+ * give back nothing more than they should.
+ */
+public class RateLimiterTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      burst();
+      steadyRate();
+      disabled();
+      waitAndRelease();
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   static void burst(){
+      RateLimiter limiter = new RateLimiter(1, 5);
+      check(limiter.enabled(), "enabled");
+      for (int i = 0; i < 5; i++)
+         check(limiter.tryAcquire("alice") == 0, "request " + (i + 1) + " of the burst is allowed");
+      long wait = limiter.tryAcquire("alice");
+      check(wait > 900000000L && wait <= 1000000000L, "the next one waits about a second, got " + wait);
+      check(limiter.tryAcquire("bob") == 0, "keys have their own buckets");
+   }
+
+   static void steadyRate() throws InterruptedException {
+      RateLimiter limiter = new RateLimiter(100, 1);
+      check(limiter.tryAcquire("alice") == 0, "the first request is allowed");
+      long wait = limiter.tryAcquire("alice");
+      check(wait > 0 && wait <= 10000000L, "without a burst the second waits up to 10 ms, got " + wait);
+
+      int allowed = 0;
+      long end = System.nanoTime() + 300000000L;
+      while (System.nanoTime() < end){
+         if (limiter.tryAcquire("alice") == 0)
+            allowed++;
+         Thread.sleep(1);
+      }
+      check(allowed >= 20 && allowed <= 32, "about 30 requests in 300 ms at 100/s, got " + allowed);
+   }
+
+   static void disabled(){
+      RateLimiter limiter = new RateLimiter(0, 5);
+      check(!limiter.enabled(), "a rate of 0 disables the limiter");
+      for (int i = 0; i < 1000; i++)
+         check(limiter.tryAcquire("alice") == 0, "a disabled limiter allows everything");
+      check(limiter.waitNanos("alice") == 0, "and never waits");
+      limiter.release("alice");
+   }
+
+   static void waitAndRelease(){
+      RateLimiter limiter = new RateLimiter(1, 2);
+      check(limiter.waitNanos("alice") == 0, "an unknown key need not wait");
+      limiter.tryAcquire("alice");
+      limiter.tryAcquire("alice");
+      long wait = limiter.waitNanos("alice");
+      check(wait > 0, "an empty bucket waits");
+      check(limiter.waitNanos("alice") > 0 && limiter.waitNanos("alice") <= wait, "waitNanos takes nothing");
+
+      limiter.release("alice");
+      check(limiter.waitNanos("alice") == 0, "a released token can be taken again");
+      check(limiter.tryAcquire("alice") == 0, "and is");
+      check(limiter.tryAcquire("alice") > 0, "but only one");
+
+      // releasing more than was taken does not grow the bucket past its burst
+      RateLimiter idle = new RateLimiter(1, 2);
+      idle.tryAcquire("bob");
+      for (int i = 0; i < 10; i++)
+         idle.release("bob");
+      check(idle.tryAcquire("bob") == 0 && idle.tryAcquire("bob") == 0, "a full bucket still holds its burst");
+      check(idle.tryAcquire("bob") > 0, "and no more");
+   }
+
+}//end RateLimiterTest
@@ -0,0 +1,144 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks MessengerStore.sync against InMemoryMessengerStore: paging and
+ * watermarks, edits and deletes folded into one page, and chats the user
+ * joined, was removed from or lost when the chat was deleted.
+ */
+public class SyncTest {
+
+   private static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      pagesAndWatermarks();
+      foldedChanges();
+      membership();
+      deletedChat();
+      badWatermark();
+      System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+      System.exit(failures == 0 ? 0 : 1);
+   }
+
+   private static void check(boolean condition, String what){
+      if (!condition){
+         failures++;
+         System.out.println("FAILED: " + what);
+      }
+   }
+
+   private static InMemoryMessengerStore users(String... logins) throws SQLException {
+      InMemoryMessengerStore store = new InMemoryMessengerStore();
+      for (int i = 0; i < logins.length; i++)
+         store.createUser(logins[i], "pw", "555-000" + i);
+      return store;
+   }
+
+   private static List<Integer> ids(List<MessengerStore.Message> messages){
+      List<Integer> ids = new ArrayList<Integer>();
+      for (MessengerStore.Message message : messages)
+         ids.add(message.msgId);
+      return ids;
+   }
+
+   static void pagesAndWatermarks() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob");
+      int chat = store.createChat("alice", "private", Arrays.asList("alice", "bob"));
+      String watermark = store.sync("alice", null, 10).watermark;
+      check(watermark.startsWith("0:"), "watermark in txid:change_id form " + watermark);
+
+      List<Integer> sent = new ArrayList<Integer>();
+      for (int i = 0; i < 7; i++)
+         sent.add(store.postMessage(chat, "bob", "m" + i, null));
+      List<Integer> seen = new ArrayList<Integer>();
+      int pages = 0;
+      while (true){
+         MessengerStore.SyncPage page = store.sync("alice", watermark, 3);
+         seen.addAll(ids(page.posted));
+         watermark = page.watermark;
+         pages++;
+         if (!page.more)
+            break;
+      }
+      check(seen.equals(sent), "every post once, in order " + seen);
+      check(pages == 3, "pages of 3 for 7 changes, got " + pages);
+
+      MessengerStore.SyncPage idle = store.sync("alice", watermark, 3);
+      check(idle.posted.isEmpty() && !idle.more && idle.watermark.equals(watermark), "nothing new since the last watermark");
+   }
+
+   static void foldedChanges() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob");
+      int chat = store.createChat("alice", "private", Arrays.asList("alice", "bob"));
+      int old = store.postMessage(chat, "bob", "old", null);
+      String watermark = store.sync("alice", null, 10).watermark;
+
+      int fresh = store.postMessage(chat, "bob", "draft", null);
+      store.editMessage(fresh, "final");
+      store.editMessage(old, "old, edited");
+      int gone = store.postMessage(chat, "bob", "oops", null);
+      store.deleteMessage(gone);
+
+      MessengerStore.SyncPage page = store.sync("alice", watermark, 100);
+      check(ids(page.posted).equals(Arrays.asList(fresh)), "posted " + ids(page.posted));
+      check(page.posted.get(0).text.equals("final"), "a post carries its latest text");
+      check(ids(page.edited).equals(Arrays.asList(old)), "edited " + ids(page.edited));
+      check(page.deleted.equals(Arrays.asList(gone)), "deleted " + page.deleted);
+   }
+
+   static void membership() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob", "carol");
+      int chat = store.createChat("alice", "group", Arrays.asList("alice", "bob"));
+      String watermark = store.sync("carol", null, 10).watermark;
+
+      store.addMember(chat, "carol");
+      int before = store.postMessage(chat, "alice", "welcome", null);
+      MessengerStore.SyncPage page = store.sync("carol", watermark, 100);
+      check(page.joined.equals(Arrays.asList(chat)), "joined " + page.joined);
+      check(ids(page.posted).equals(Arrays.asList(before)), "messages of the joined chat");
+      watermark = page.watermark;
+
+      store.removeMember(chat, "carol");
+      store.postMessage(chat, "alice", "after carol left", null);
+      page = store.sync("carol", watermark, 100);
+      check(page.left.equals(Arrays.asList(chat)), "removed from the chat " + page.left);
+      check(page.joined.isEmpty() && page.posted.isEmpty(), "nothing from a chat the user left");
+      watermark = page.watermark;
+
+      // removed and added back within one page: still a member
+      store.addMembers(chat, Arrays.asList("carol"));
+      store.removeMembers(chat, Arrays.asList("carol"));
+      store.addMember(chat, "carol");
+      page = store.sync("carol", watermark, 100);
+      check(page.joined.equals(Arrays.asList(chat)) && page.left.isEmpty(),
+            "the last membership change wins " + page.joined + " " + page.left);
+
+      page = store.sync("bob", store.sync("bob", null, 1).watermark, 100);
+      check(page.joined.isEmpty() && page.left.isEmpty(), "other members' changes are not reported");
+   }
+
+   static void deletedChat() throws SQLException {
+      InMemoryMessengerStore store = users("alice", "bob");
+      int chat = store.createChat("alice", "private", Arrays.asList("alice", "bob"));
+      store.postMessage(chat, "alice", "hi", null);
+      String watermark = store.sync("bob", null, 10).watermark;
+
+      store.deleteChat(chat);
+      MessengerStore.SyncPage page = store.sync("bob", watermark, 100);
+      check(page.left.equals(Arrays.asList(chat)), "a deleted chat is left " + page.left);
+      check(!page.more, "one page");
+   }
+
+   static void badWatermark() throws SQLException {
+      InMemoryMessengerStore store = users("alice");
+      try {
+         store.sync("alice", "12", 10);
+         check(false, "a watermark without a txid is rejected");
+      } catch (SQLException e){
+         // expected
+      }
+   }
+
+}//end SyncTest
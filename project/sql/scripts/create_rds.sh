@@ -7,6 +7,8 @@ echo "creating tables..."
 chat < $DIR/../src/create_tables.sql
 echo "creating indexes..."
 chat < $DIR/../src/create_indexes.sql
+echo "creating functions..."
+chat < $DIR/../src/create_functions.sql
 echo "loading data"
 #user_list_upload="\\\copy user_list from '$DIR/../../data/usr_list.csv' with DELIMITER ';'" 
 #chat -c $user_list_upload;
@@ -0,0 +1,128 @@
+-- Server-side versions of the multi-statement user operations, so each one
+-- is a single atomic round trip from the application, and the triggers that
+-- announce membership changes and fill CHANGE_LOG. Run after
+-- create_tables.sql; safe to run again.
+
+-- a user together with its empty block and contact lists
+CREATE OR REPLACE FUNCTION create_user(new_login text, new_password text, new_phone text) RETURNS void AS $$
+DECLARE
+	block_id integer;
+	contact_id integer;
+BEGIN
+	INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id INTO block_id;
+	INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id INTO contact_id;
+	INSERT INTO USR (phoneNum, login, password, block_list, contact_list)
+	VALUES (new_phone, new_login, new_password, block_id, contact_id);
+END;
+$$ LANGUAGE plpgsql;
+
+-- adds member to owner's 'contact' or 'block' list; false if member does not exist
+CREATE OR REPLACE FUNCTION list_add(owner text, kind text, member text) RETURNS boolean AS $$
+BEGIN
+	INSERT INTO USER_LIST_CONTAINS (list_id, member_id)
+	SELECT CASE kind WHEN 'block' THEN O.block_list ELSE O.contact_list END, M.user_id
+	FROM USR O, USR M
+	WHERE O.login = owner AND M.login = member;
+	RETURN FOUND;
+END;
+$$ LANGUAGE plpgsql;
+
+-- removes member from owner's 'contact' or 'block' list; false if it was not there
+CREATE OR REPLACE FUNCTION list_remove(owner text, kind text, member text) RETURNS boolean AS $$
+BEGIN
+	DELETE FROM USER_LIST_CONTAINS
+	WHERE member_id = (SELECT user_id FROM USR WHERE login = member)
+	  AND list_id = (SELECT CASE kind WHEN 'block' THEN block_list ELSE contact_list END
+	                 FROM USR WHERE login = owner);
+	RETURN FOUND;
+END;
+$$ LANGUAGE plpgsql;
+
+-- tells clients listening on chat_membership that a chat's members or owner
+-- changed, with the chat_id as payload; repeats within a transaction are
+-- delivered once
+CREATE OR REPLACE FUNCTION notify_membership() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('chat_membership', OLD.chat_id::text);
+	ELSE
+		PERFORM pg_notify('chat_membership', NEW.chat_id::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_membership ON CHAT_LIST;
+CREATE TRIGGER chat_list_membership AFTER INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE notify_membership();
+DROP TRIGGER IF EXISTS chat_membership ON CHAT;
+CREATE TRIGGER chat_membership AFTER UPDATE OR DELETE ON CHAT
+	FOR EACH ROW EXECUTE PROCEDURE notify_membership();
+
+-- records inserted, deleted and renamed users in CHANGE_LOG; login is the
+-- one a cache may hold, i.e. the old one on UPDATE and DELETE
+CREATE OR REPLACE FUNCTION log_usr_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO CHANGE_LOG (table_name, row_id, login, op) VALUES ('usr', NEW.user_id, NEW.login, 'I');
+	ELSE
+		INSERT INTO CHANGE_LOG (table_name, row_id, login, op) VALUES ('usr', OLD.user_id, OLD.login, substr(TG_OP, 1, 1));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS usr_change_log ON USR;
+CREATE TRIGGER usr_change_log AFTER INSERT OR DELETE OR UPDATE OF login, phoneNum ON USR
+	FOR EACH ROW EXECUTE PROCEDURE log_usr_change();
+
+-- records posted, edited and deleted messages in CHANGE_LOG with their chat,
+-- for the delta sync of reconnecting clients
+CREATE OR REPLACE FUNCTION log_message_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		INSERT INTO CHANGE_LOG (table_name, row_id, chat_id, op) VALUES ('message', OLD.msg_id, OLD.chat_id, 'D');
+	ELSE
+		INSERT INTO CHANGE_LOG (table_name, row_id, chat_id, op) VALUES ('message', NEW.msg_id, NEW.chat_id, substr(TG_OP, 1, 1));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_change_log ON MESSAGE;
+CREATE TRIGGER message_change_log AFTER INSERT OR DELETE OR UPDATE OF msg_text ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE log_message_change();
+
+-- records members added to and removed from chats in CHANGE_LOG, keyed by
+-- the member (row_id), since a removed member's CHAT_LIST row is gone when
+-- sync looks for it; deleting a chat removes every member through the
+-- cascade
+CREATE OR REPLACE FUNCTION log_member_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		INSERT INTO CHANGE_LOG (table_name, row_id, chat_id, op) VALUES ('chat_list', OLD.member_id, OLD.chat_id, 'D');
+	ELSE
+		INSERT INTO CHANGE_LOG (table_name, row_id, chat_id, op) VALUES ('chat_list', NEW.member_id, NEW.chat_id, 'I');
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_change_log ON CHAT_LIST;
+CREATE TRIGGER chat_list_change_log AFTER INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE log_member_change();
+
+-- forgets changes older than keep, e.g. SELECT prune_change_log('7 days');
+-- a cache whose snapshot is older than that is read again in full, and a
+-- client syncing from before it is told to reload
+CREATE OR REPLACE FUNCTION prune_change_log(keep interval) RETURNS bigint AS $$
+DECLARE
+	pruned bigint;
+BEGIN
+	UPDATE CHANGE_LOG_HORIZON SET pruned_txid = GREATEST(pruned_txid,
+		(SELECT COALESCE(MAX(txid), 0) FROM CHANGE_LOG WHERE changed_at < NOW() - keep));
+	DELETE FROM CHANGE_LOG WHERE changed_at < NOW() - keep;
+	GET DIAGNOSTICS pruned = ROW_COUNT;
+	RETURN pruned;
+END;
+$$ LANGUAGE plpgsql;
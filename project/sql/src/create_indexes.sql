@@ -3,3 +3,21 @@ CREATE INDEX chat_index ON chat using HASH (chat_id);
 CREATE INDEX user_name_index ON usr using HASH (login);
 
 CREATE INDEX list_id_index ON user_list_contains using HASH (list_id);
+
+CREATE INDEX message_chat_index ON message (chat_id, msg_id);
+
+CREATE INDEX inbox_chat_index ON inbox (chat_id);
+
+CREATE UNIQUE INDEX message_client_key_index ON message (sender_id, client_key);
+
+CREATE INDEX attachment_msg_index ON attachment (msg_id);
+
+CREATE INDEX attachment_chunk_hash_index ON attachment_chunk (chunk_hash);
+
+CREATE INDEX usr_phone_digits_index ON usr (regexp_replace(phoneNum, '[^0-9]', '', 'g'));
+
+CREATE INDEX change_log_txid_index ON change_log (txid);
+
+CREATE INDEX change_log_chat_index ON change_log (chat_id, txid, change_id);
+
+CREATE INDEX change_log_member_index ON change_log (row_id, txid, change_id) WHERE table_name = 'chat_list';
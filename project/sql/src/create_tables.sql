@@ -1,55 +1,128 @@
-DROP TABLE MESSAGE;
-DROP TABLE CHAT_LIST;
-DROP TABLE CHAT;
-DROP TABLE USER_LIST_CONTAINS;
-DROP TABLE USR;
-DROP TABLE USER_LIST;
-
-CREATE TABLE USER_LIST(
-	list_id serial,
-	list_type char(10) NOT NULL, 
-	PRIMARY KEY(list_id));
-
-CREATE TABLE USR(
-	login char(50), 
-	phoneNum CHAR(16) UNIQUE NOT NULL, 
-	password char(50) NOT NULL,
-	status char(140),
-	block_list integer,
-	contact_list integer,
-	Primary Key(login),
-	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
-	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id) ON DELETE CASCADE);
-
-CREATE TABLE USER_LIST_CONTAINS(
-	list_id integer,
-	list_member char(50),
-	PRIMARY KEY(list_id,list_member), 
-	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
-	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
-
-CREATE TABLE CHAT(
-	chat_id serial, 
-	chat_type char(50) NOT NULL,
-	init_sender char(50),
-	PRIMARY KEY(chat_id), 
-	FOREIGN KEY(init_sender) REFERENCES USR(login) ON DELETE CASCADE);
-
-CREATE TABLE CHAT_LIST(
-	chat_id integer, 
-	member char(50),
-	PRIMARY KEY(chat_id,member), 
-	FOREIGN KEY(member) REFERENCES USR(login) ON DELETE CASCADE, 
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
-
-CREATE TABLE MESSAGE(
-	msg_id serial, 
-	msg_text char(300) NOT NULL, 
-	msg_timestamp timestamp NOT NULL DEFAULT NOW(),
-    sender_login char(50),
-	chat_id integer,
-	PRIMARY KEY(msg_id), 
-	FOREIGN KEY(sender_login) REFERENCES USR(login) ON DELETE CASCADE,
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
-
-
+DROP TABLE CHANGE_LOG_HORIZON;
+DROP TABLE CHANGE_LOG;
+DROP TABLE ATTACHMENT_CHUNK;
+DROP TABLE CHUNK;
+DROP TABLE ATTACHMENT;
+DROP TABLE INBOX;
+DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST;
+DROP TABLE CHAT;
+DROP TABLE USER_LIST_CONTAINS;
+DROP TABLE USR;
+DROP TABLE USER_LIST;
+
+CREATE TABLE USER_LIST(
+	list_id serial,
+	list_type char(10) NOT NULL, 
+	PRIMARY KEY(list_id));
+
+CREATE TABLE USR(
+	user_id serial,
+	login char(50) UNIQUE NOT NULL, 
+	phoneNum CHAR(16) UNIQUE NOT NULL, 
+	password char(50) NOT NULL,
+	status char(140),
+	block_list integer,
+	contact_list integer,
+	Primary Key(user_id),
+	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
+	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id) ON DELETE CASCADE);
+
+CREATE TABLE USER_LIST_CONTAINS(
+	list_id integer,
+	member_id integer,
+	PRIMARY KEY(list_id,member_id), 
+	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
+	FOREIGN KEY(member_id) REFERENCES USR(user_id) ON DELETE CASCADE);
+
+CREATE TABLE CHAT(
+	chat_id serial, 
+	chat_type char(50) NOT NULL,
+	init_sender_id integer,
+	inbox_mode char(5) NOT NULL DEFAULT 'read',
+	PRIMARY KEY(chat_id), 
+	FOREIGN KEY(init_sender_id) REFERENCES USR(user_id) ON DELETE CASCADE);
+
+CREATE TABLE CHAT_LIST(
+	chat_id integer, 
+	member_id integer,
+	PRIMARY KEY(chat_id,member_id), 
+	FOREIGN KEY(member_id) REFERENCES USR(user_id) ON DELETE CASCADE, 
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+CREATE TABLE MESSAGE(
+	msg_id serial, 
+	msg_text char(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL DEFAULT NOW(),
+    sender_id integer,
+	chat_id integer,
+	client_key char(36),
+	PRIMARY KEY(msg_id), 
+	FOREIGN KEY(sender_id) REFERENCES USR(user_id) ON DELETE CASCADE,
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+CREATE TABLE INBOX(
+	member_id integer,
+	msg_id integer,
+	chat_id integer NOT NULL,
+	PRIMARY KEY(member_id, msg_id),
+	FOREIGN KEY(member_id) REFERENCES USR(user_id) ON DELETE CASCADE,
+	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id) ON DELETE CASCADE,
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+CREATE TABLE ATTACHMENT(
+	att_id serial,
+	msg_id integer NOT NULL,
+	file_name char(255) NOT NULL,
+	file_size bigint NOT NULL,
+	PRIMARY KEY(att_id),
+	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id) ON DELETE CASCADE);
+
+-- file contents, split in chunks and stored once per distinct SHA-256
+CREATE TABLE CHUNK(
+	chunk_hash char(64),
+	chunk_data bytea NOT NULL,
+	PRIMARY KEY(chunk_hash));
+
+CREATE TABLE ATTACHMENT_CHUNK(
+	att_id integer,
+	seq integer,
+	chunk_hash char(64) NOT NULL,
+	PRIMARY KEY(att_id, seq),
+	FOREIGN KEY(att_id) REFERENCES ATTACHMENT(att_id) ON DELETE CASCADE,
+	FOREIGN KEY(chunk_hash) REFERENCES CHUNK(chunk_hash));
+
+-- a chunk goes away with the last attachment that uses it
+CREATE OR REPLACE FUNCTION drop_orphan_chunk() RETURNS trigger AS $$
+BEGIN
+	DELETE FROM CHUNK WHERE chunk_hash = OLD.chunk_hash
+	  AND NOT EXISTS (SELECT 1 FROM ATTACHMENT_CHUNK WHERE chunk_hash = OLD.chunk_hash);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER attachment_chunk_gc AFTER DELETE ON ATTACHMENT_CHUNK
+	FOR EACH ROW EXECUTE PROCEDURE drop_orphan_chunk();
+
+-- one row per change to a row that clients keep in memory or on their
+-- device, so a cache or a reconnecting client can catch up by replaying only
+-- what changed since some point; chat_id is set for rows of MESSAGE.
+-- txid is the writing transaction; changes by transactions at or after the
+-- xmin of the snapshot the cache was read in may be missing from it.
+-- Filled by triggers in create_functions.sql
+CREATE TABLE CHANGE_LOG(
+	change_id bigserial,
+	txid bigint NOT NULL DEFAULT txid_current(),
+	table_name char(20) NOT NULL,
+	row_id integer NOT NULL,
+	chat_id integer,
+	login char(50),
+	op char(1) NOT NULL,
+	changed_at timestamp NOT NULL DEFAULT NOW(),
+	PRIMARY KEY(change_id));
+
+-- the newest txid whose changes prune_change_log may have removed; clients
+-- that last caught up before it have to read everything again
+CREATE TABLE CHANGE_LOG_HORIZON(
+	pruned_txid bigint NOT NULL);
+INSERT INTO CHANGE_LOG_HORIZON VALUES (0);
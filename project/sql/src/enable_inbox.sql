@@ -0,0 +1,20 @@
+-- Switches existing chats with at most :threshold members to fan-out-on-write
+-- and backfills their members' inboxes from MESSAGE. Run with the same
+-- threshold the application is started with, e.g.
+--    psql -v threshold=50 -p $PGPORT $DB_NAME < enable_inbox.sql
+
+BEGIN;
+
+UPDATE CHAT SET inbox_mode = 'write'
+WHERE inbox_mode = 'read'
+  AND (SELECT COUNT(*) FROM CHAT_LIST CL WHERE CL.chat_id = CHAT.chat_id) <= :threshold;
+
+INSERT INTO INBOX (member_id, msg_id, chat_id)
+SELECT CL.member_id, M.msg_id, M.chat_id
+FROM MESSAGE M, CHAT_LIST CL, CHAT C
+WHERE C.inbox_mode = 'write' AND CL.chat_id = C.chat_id AND M.chat_id = C.chat_id
+  AND NOT EXISTS (SELECT 1 FROM INBOX I WHERE I.member_id = CL.member_id AND I.msg_id = M.msg_id);
+
+COMMIT;
+
+ANALYZE INBOX;
@@ -0,0 +1,75 @@
+-- Online migration to integer user ids, step 2 of 2. Run after
+-- migrate_user_ids.sql with the old application stopped:
+--
+--    psql -p $PGPORT $DB_NAME < finish_user_ids.sql
+--    psql -p $PGPORT $DB_NAME < create_functions.sql
+--
+-- Swaps the keys over to user_id and drops the login columns in one short
+-- transaction, using the indexes step 1 built ahead of time. The new
+-- foreign keys are validated afterwards without blocking writes, and the
+-- stored functions must be reinstalled for the new columns.
+
+BEGIN;
+
+DROP TRIGGER user_list_contains_user_id ON USER_LIST_CONTAINS;
+DROP TRIGGER chat_user_id ON CHAT;
+DROP TRIGGER chat_list_user_id ON CHAT_LIST;
+DROP TRIGGER message_user_id ON MESSAGE;
+DO $$
+BEGIN
+	IF to_regclass('inbox') IS NOT NULL THEN
+		DROP TRIGGER inbox_user_id ON INBOX;
+	END IF;
+END;
+$$;
+DROP FUNCTION fill_user_id();
+
+-- also drops the foreign keys that reference USR(login)
+ALTER TABLE USR DROP CONSTRAINT usr_pkey CASCADE;
+ALTER TABLE USR ALTER COLUMN user_id SET NOT NULL;
+ALTER TABLE USR ADD CONSTRAINT usr_pkey PRIMARY KEY USING INDEX usr_user_id_key;
+ALTER TABLE USR ADD CONSTRAINT usr_login_key UNIQUE USING INDEX usr_login_key;
+ALTER TABLE USR ALTER COLUMN login SET NOT NULL;
+
+ALTER TABLE USER_LIST_CONTAINS DROP COLUMN list_member;
+ALTER TABLE USER_LIST_CONTAINS ALTER COLUMN member_id SET NOT NULL;
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT user_list_contains_pkey PRIMARY KEY USING INDEX user_list_contains_id_key;
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT user_list_contains_member_id_fkey
+	FOREIGN KEY (member_id) REFERENCES USR(user_id) ON DELETE CASCADE NOT VALID;
+
+ALTER TABLE CHAT DROP COLUMN init_sender;
+ALTER TABLE CHAT ADD CONSTRAINT chat_init_sender_id_fkey
+	FOREIGN KEY (init_sender_id) REFERENCES USR(user_id) ON DELETE CASCADE NOT VALID;
+
+ALTER TABLE CHAT_LIST DROP COLUMN member;
+ALTER TABLE CHAT_LIST ALTER COLUMN member_id SET NOT NULL;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_pkey PRIMARY KEY USING INDEX chat_list_id_key;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_member_id_fkey
+	FOREIGN KEY (member_id) REFERENCES USR(user_id) ON DELETE CASCADE NOT VALID;
+
+-- drops message_client_key_index with the column, if there is a client_key
+ALTER TABLE MESSAGE DROP COLUMN sender_login;
+ALTER INDEX IF EXISTS message_client_key_id_index RENAME TO message_client_key_index;
+ALTER TABLE MESSAGE ADD CONSTRAINT message_sender_id_fkey
+	FOREIGN KEY (sender_id) REFERENCES USR(user_id) ON DELETE CASCADE NOT VALID;
+
+DO $$
+BEGIN
+	IF to_regclass('inbox') IS NOT NULL THEN
+		ALTER TABLE INBOX DROP COLUMN member;
+		ALTER TABLE INBOX ALTER COLUMN member_id SET NOT NULL;
+		ALTER TABLE INBOX ADD CONSTRAINT inbox_pkey PRIMARY KEY USING INDEX inbox_id_key;
+		ALTER TABLE INBOX ADD CONSTRAINT inbox_member_id_fkey
+			FOREIGN KEY (member_id) REFERENCES USR(user_id) ON DELETE CASCADE NOT VALID;
+	END IF;
+END;
+$$;
+
+COMMIT;
+
+ALTER TABLE USER_LIST_CONTAINS VALIDATE CONSTRAINT user_list_contains_member_id_fkey;
+ALTER TABLE CHAT VALIDATE CONSTRAINT chat_init_sender_id_fkey;
+ALTER TABLE CHAT_LIST VALIDATE CONSTRAINT chat_list_member_id_fkey;
+ALTER TABLE MESSAGE VALIDATE CONSTRAINT message_sender_id_fkey;
+SELECT 'ALTER TABLE INBOX VALIDATE CONSTRAINT inbox_member_id_fkey' WHERE to_regclass('inbox') IS NOT NULL
+\gexec
@@ -1,20 +1,43 @@
 --http://docs.aws.amazon.com/AmazonRDS/latest/UserGuide/PostgreSQL.Procedural.Importing.html
 
+-- a bulk load is not a change clients have to catch up on
+ALTER TABLE USR DISABLE TRIGGER usr_change_log;
+ALTER TABLE MESSAGE DISABLE TRIGGER message_change_log;
+ALTER TABLE CHAT_LIST DISABLE TRIGGER chat_list_change_log;
+
 \copy USER_LIST FROM '/home/mehran/workspace/Chat-Project/project/data/usr_list.csv' WITH DELIMITER ';';
 
-ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
+-- past the loaded ids, whatever the size of the data set
+SELECT setval('user_list_list_id_seq', (SELECT COALESCE(MAX(list_id), 0) + 1 FROM USER_LIST), false);
 
-\copy USR FROM '/home/mehran/workspace/Chat-Project/project/data/usr.csv' WITH DELIMITER ';';
+\copy USR (login, phoneNum, password, status, block_list, contact_list) FROM '/home/mehran/workspace/Chat-Project/project/data/usr.csv' WITH DELIMITER ';';
 
-\copy USER_LIST_CONTAINS FROM '/home/mehran/workspace/Chat-Project/project/data/usr_list_contains.csv' WITH DELIMITER ';';
+-- the remaining files name users by login: they are loaded into staging
+-- tables and joined with USR to get the user_id
+CREATE TEMP TABLE user_list_contains_csv (list_id integer, list_member char(50));
+\copy user_list_contains_csv FROM '/home/mehran/workspace/Chat-Project/project/data/usr_list_contains.csv' WITH DELIMITER ';';
+INSERT INTO USER_LIST_CONTAINS (list_id, member_id)
+SELECT C.list_id, U.user_id FROM user_list_contains_csv C, USR U WHERE U.login = C.list_member;
 
-\copy CHAT FROM '/home/mehran/workspace/Chat-Project/project/data/chat.csv' WITH DELIMITER ';';
+CREATE TEMP TABLE chat_csv (chat_id integer, chat_type char(50), init_sender char(50));
+\copy chat_csv FROM '/home/mehran/workspace/Chat-Project/project/data/chat.csv' WITH DELIMITER ';';
+INSERT INTO CHAT (chat_id, chat_type, init_sender_id)
+SELECT C.chat_id, C.chat_type, U.user_id FROM chat_csv C LEFT JOIN USR U ON U.login = C.init_sender;
 
-ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
+SELECT setval('chat_chat_id_seq', (SELECT COALESCE(MAX(chat_id), 0) + 1 FROM CHAT), false);
 
-\copy CHAT_LIST FROM '/home/mehran/workspace/Chat-Project/project/data/chat_list.csv' WITH DELIMITER ';';
+CREATE TEMP TABLE chat_list_csv (chat_id integer, member char(50));
+\copy chat_list_csv FROM '/home/mehran/workspace/Chat-Project/project/data/chat_list.csv' WITH DELIMITER ';';
+INSERT INTO CHAT_LIST (chat_id, member_id)
+SELECT C.chat_id, U.user_id FROM chat_list_csv C, USR U WHERE U.login = C.member;
 
-\copy MESSAGE (msg_id, msg_text, msg_timestamp, sender_login, chat_id) FROM '/home/mehran/workspace/Chat-Project/project/data/message.csv' WITH DELIMITER ';';
+CREATE TEMP TABLE message_csv (msg_id integer, msg_text char(300), msg_timestamp timestamp, sender_login char(50), chat_id integer);
+\copy message_csv FROM '/home/mehran/workspace/Chat-Project/project/data/message.csv' WITH DELIMITER ';';
+INSERT INTO MESSAGE (msg_id, msg_text, msg_timestamp, sender_id, chat_id)
+SELECT C.msg_id, C.msg_text, C.msg_timestamp, U.user_id, C.chat_id FROM message_csv C LEFT JOIN USR U ON U.login = C.sender_login;
 
-ALTER SEQUENCE message_msg_id_seq RESTART 50000;
+SELECT setval('message_msg_id_seq', (SELECT COALESCE(MAX(msg_id), 0) + 1 FROM MESSAGE), false);
 
+ALTER TABLE USR ENABLE TRIGGER usr_change_log;
+ALTER TABLE MESSAGE ENABLE TRIGGER message_change_log;
+ALTER TABLE CHAT_LIST ENABLE TRIGGER chat_list_change_log;
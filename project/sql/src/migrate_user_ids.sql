@@ -0,0 +1,140 @@
+-- Online migration of a database created before USR had an integer key,
+-- step 1 of 2. Adds user_id to USR and a matching id column next to every
+-- login foreign key, backfills them, and keeps them filled for rows the
+-- running application writes, all without blocking it:
+--
+--    psql -p $PGPORT $DB_NAME < migrate_user_ids.sql
+--
+-- Then stop the old application, run finish_user_ids.sql and start the new
+-- one. The end of this script compares the login and user_id indexes and
+-- joins on the live data.
+--
+-- Backfills run in batches of 10000 ids, each its own transaction, so no
+-- statement locks or rewrites a whole table; they are generated and run
+-- with \gexec (psql 9.6 or newer). INBOX and MESSAGE.client_key are only
+-- migrated if the database has them.
+
+-- 1. the new key; ADD COLUMN without a default does not rewrite the table
+ALTER TABLE USR ADD COLUMN user_id integer;
+CREATE SEQUENCE usr_user_id_seq OWNED BY USR.user_id;
+ALTER TABLE USR ALTER COLUMN user_id SET DEFAULT nextval('usr_user_id_seq');
+-- USR has no integer key to range over yet: number the rows 10000 at a time
+SELECT 'UPDATE USR SET user_id = nextval(''usr_user_id_seq'') WHERE login IN '
+    || '(SELECT login FROM USR WHERE user_id IS NULL LIMIT 10000)'
+FROM generate_series(1, (SELECT ((COUNT(*) + 9999) / 10000)::integer FROM USR WHERE user_id IS NULL))
+\gexec
+
+ALTER TABLE USER_LIST_CONTAINS ADD COLUMN member_id integer;
+ALTER TABLE CHAT ADD COLUMN init_sender_id integer;
+ALTER TABLE CHAT_LIST ADD COLUMN member_id integer;
+ALTER TABLE MESSAGE ADD COLUMN sender_id integer;
+DO $$
+BEGIN
+	IF to_regclass('inbox') IS NOT NULL THEN
+		ALTER TABLE INBOX ADD COLUMN member_id integer;
+	END IF;
+END;
+$$;
+
+-- 2. rows written from now on get their ids from the login
+CREATE OR REPLACE FUNCTION fill_user_id() RETURNS trigger AS $$
+BEGIN
+	IF TG_TABLE_NAME = 'user_list_contains' THEN
+		NEW.member_id := (SELECT user_id FROM USR WHERE login = NEW.list_member);
+	ELSIF TG_TABLE_NAME = 'chat' THEN
+		NEW.init_sender_id := (SELECT user_id FROM USR WHERE login = NEW.init_sender);
+	ELSIF TG_TABLE_NAME = 'chat_list' THEN
+		NEW.member_id := (SELECT user_id FROM USR WHERE login = NEW.member);
+	ELSIF TG_TABLE_NAME = 'message' THEN
+		NEW.sender_id := (SELECT user_id FROM USR WHERE login = NEW.sender_login);
+	ELSIF TG_TABLE_NAME = 'inbox' THEN
+		NEW.member_id := (SELECT user_id FROM USR WHERE login = NEW.member);
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER user_list_contains_user_id BEFORE INSERT OR UPDATE ON USER_LIST_CONTAINS
+	FOR EACH ROW EXECUTE PROCEDURE fill_user_id();
+CREATE TRIGGER chat_user_id BEFORE INSERT OR UPDATE ON CHAT
+	FOR EACH ROW EXECUTE PROCEDURE fill_user_id();
+CREATE TRIGGER chat_list_user_id BEFORE INSERT OR UPDATE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE fill_user_id();
+CREATE TRIGGER message_user_id BEFORE INSERT OR UPDATE ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE fill_user_id();
+DO $$
+BEGIN
+	IF to_regclass('inbox') IS NOT NULL THEN
+		CREATE TRIGGER inbox_user_id BEFORE INSERT OR UPDATE ON INBOX
+			FOR EACH ROW EXECUTE PROCEDURE fill_user_id();
+	END IF;
+END;
+$$;
+
+-- 3. backfill the rows written before the triggers, one range of the
+-- leading key column of each table's index per transaction
+SELECT format('UPDATE USER_LIST_CONTAINS T SET member_id = U.user_id FROM USR U '
+           || 'WHERE U.login = T.list_member AND T.member_id IS NULL AND T.list_id >= %s AND T.list_id < %s', lo, lo + 10000)
+FROM generate_series((SELECT MIN(list_id) FROM USER_LIST_CONTAINS), (SELECT MAX(list_id) FROM USER_LIST_CONTAINS), 10000) AS lo
+\gexec
+SELECT format('UPDATE CHAT T SET init_sender_id = U.user_id FROM USR U '
+           || 'WHERE U.login = T.init_sender AND T.init_sender_id IS NULL AND T.chat_id >= %s AND T.chat_id < %s', lo, lo + 10000)
+FROM generate_series((SELECT MIN(chat_id) FROM CHAT), (SELECT MAX(chat_id) FROM CHAT), 10000) AS lo
+\gexec
+SELECT format('UPDATE CHAT_LIST T SET member_id = U.user_id FROM USR U '
+           || 'WHERE U.login = T.member AND T.member_id IS NULL AND T.chat_id >= %s AND T.chat_id < %s', lo, lo + 10000)
+FROM generate_series((SELECT MIN(chat_id) FROM CHAT_LIST), (SELECT MAX(chat_id) FROM CHAT_LIST), 10000) AS lo
+\gexec
+SELECT format('UPDATE MESSAGE T SET sender_id = U.user_id FROM USR U '
+           || 'WHERE U.login = T.sender_login AND T.sender_id IS NULL AND T.msg_id >= %s AND T.msg_id < %s', lo, lo + 10000)
+FROM generate_series((SELECT MIN(msg_id) FROM MESSAGE), (SELECT MAX(msg_id) FROM MESSAGE), 10000) AS lo
+\gexec
+-- INBOX by chat, through inbox_chat_index
+SELECT format('UPDATE INBOX T SET member_id = U.user_id FROM USR U '
+           || 'WHERE U.login = T.member AND T.member_id IS NULL AND T.chat_id >= %s AND T.chat_id < %s', lo, lo + 10000)
+FROM generate_series((SELECT MIN(chat_id) FROM CHAT), (SELECT MAX(chat_id) FROM CHAT), 10000) AS lo
+WHERE to_regclass('inbox') IS NOT NULL
+\gexec
+
+-- 4. the indexes finish_user_ids.sql turns into keys, built without
+-- blocking writes
+CREATE UNIQUE INDEX CONCURRENTLY usr_user_id_key ON USR (user_id);
+CREATE UNIQUE INDEX CONCURRENTLY usr_login_key ON USR (login);
+CREATE UNIQUE INDEX CONCURRENTLY user_list_contains_id_key ON USER_LIST_CONTAINS (list_id, member_id);
+CREATE UNIQUE INDEX CONCURRENTLY chat_list_id_key ON CHAT_LIST (chat_id, member_id);
+SELECT 'CREATE UNIQUE INDEX CONCURRENTLY inbox_id_key ON INBOX (member_id, msg_id)'
+WHERE to_regclass('inbox') IS NOT NULL
+\gexec
+SELECT 'CREATE UNIQUE INDEX CONCURRENTLY message_client_key_id_index ON MESSAGE (sender_id, client_key)'
+WHERE EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'message' AND column_name = 'client_key')
+\gexec
+
+ANALYZE USR;
+ANALYZE USER_LIST_CONTAINS;
+ANALYZE CHAT;
+ANALYZE CHAT_LIST;
+ANALYZE MESSAGE;
+SELECT 'ANALYZE INBOX' WHERE to_regclass('inbox') IS NOT NULL
+\gexec
+
+-- 5. what the switch buys: the same indexes and the same membership join
+-- keyed by login and by user_id
+\echo index sizes, login vs user_id
+SELECT C.relname AS index, pg_size_pretty(pg_relation_size(C.oid)) AS size
+FROM pg_class C
+WHERE C.relname IN ('usr_pkey', 'usr_user_id_key',
+                    'user_list_contains_pkey', 'user_list_contains_id_key',
+                    'chat_list_pkey', 'chat_list_id_key',
+                    'inbox_pkey', 'inbox_id_key',
+                    'message_client_key_index', 'message_client_key_id_index')
+ORDER BY C.relname;
+
+\echo members of every chat with their senders, joined on login
+EXPLAIN ANALYZE
+SELECT COUNT(*) FROM CHAT_LIST CL, USR U, MESSAGE M
+WHERE U.login = CL.member AND M.chat_id = CL.chat_id AND M.sender_login = CL.member;
+
+\echo the same join on user_id
+EXPLAIN ANALYZE
+SELECT COUNT(*) FROM CHAT_LIST CL, USR U, MESSAGE M
+WHERE U.user_id = CL.member_id AND M.chat_id = CL.chat_id AND M.sender_id = CL.member_id;